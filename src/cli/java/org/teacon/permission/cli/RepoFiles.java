@@ -0,0 +1,225 @@
+package org.teacon.permission.cli;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import org.teacon.permission.repo.GroupDefinitions;
+import org.teacon.permission.repo.MetaValue;
+import org.teacon.permission.repo.MetaValueTypeAdapter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Contents of a {@code simpleperms} folder, read without Minecraft. Groups
+ * are kept as raw JSON so that prefixes and other fields survive a
+ * conversion untouched.
+ */
+final class RepoFiles implements GroupDefinitions {
+
+    static final String PLAYER_DATA = "player_data.dat";
+    static final String PLAYER_GROUPS = "player_groups.dat";
+    static final String GROUPS = "groups";
+    static final String GROUP_INDEX = "index.dat";
+    static final String GROUP_DATA = "group_data.dat";
+    static final String FALLBACK_GROUPS = "default_groups.dat";
+    static final String LEGACY_FALLBACK_GROUP = "default_group.dat";
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(MetaValue.class, new MetaValueTypeAdapter())
+            .setLenient().create();
+    private static final Type USER_LIST_TYPE = new TypeToken<Map<UUID, String>>() {
+    }.getType();
+    private static final Type ADDITIONAL_GROUPS_TYPE = new TypeToken<Map<UUID, Map<String, Integer>>>() {
+    }.getType();
+    private static final Type GROUP_LIST_TYPE = new TypeToken<Map<String, JsonObject>>() {
+    }.getType();
+    private static final Type DEFAULT_GROUPS_TYPES = new TypeToken<Map<Integer, String>>() {
+    }.getType();
+    private static final Type GROUP_INDEX_TYPE = new TypeToken<List<String>>() {
+    }.getType();
+
+    /**
+     * How groups are laid out on disk.
+     */
+    enum Layout {
+        /**
+         * One file per group under {@code groups/}, plus an index. Read and
+         * written by the mod.
+         */
+        SHARDED,
+        /**
+         * Every group in {@code group_data.dat}. Read by older versions of
+         * the mod and migrated on first load by newer ones.
+         */
+        SINGLE
+    }
+
+    final Map<UUID, String> users = new HashMap<>();
+    final Map<UUID, Map<String, Integer>> additionalGroups = new HashMap<>();
+    final Map<String, JsonObject> groups = new LinkedHashMap<>();
+    final Map<Integer, String> fallbackGroups = new TreeMap<>(Collections.singletonMap(0, ""));
+
+    /**
+     * Total size in bytes of the files read.
+     */
+    long bytesRead;
+
+    /**
+     * True if the legacy single fallback group file was found.
+     */
+    boolean legacyFallbackGroup;
+
+    Layout layout = Layout.SHARDED;
+
+    static RepoFiles read(Path root) throws IOException {
+        final RepoFiles files = new RepoFiles();
+        final Path playerData = root.resolve(PLAYER_DATA);
+        if (Files.exists(playerData)) {
+            files.users.putAll(files.readJson(playerData, USER_LIST_TYPE));
+        }
+        final Path playerGroups = root.resolve(PLAYER_GROUPS);
+        if (Files.exists(playerGroups)) {
+            files.<Map<UUID, Map<String, Integer>>>readJson(playerGroups, ADDITIONAL_GROUPS_TYPE).forEach((id, groups) -> {
+                if (!groups.isEmpty()) {
+                    files.additionalGroups.put(id, groups);
+                }
+            });
+        }
+        final Path groupIndex = root.resolve(GROUPS).resolve(GROUP_INDEX);
+        final Path groupData = root.resolve(GROUP_DATA);
+        if (Files.exists(groupIndex)) {
+            final List<String> names = files.readJson(groupIndex, GROUP_INDEX_TYPE);
+            for (String name : names) {
+                final Path groupPath = groupPath(root, name);
+                if (Files.exists(groupPath)) {
+                    files.groups.put(name, files.readJson(groupPath, JsonObject.class));
+                }
+            }
+        } else if (Files.exists(groupData)) {
+            files.layout = Layout.SINGLE;
+            files.groups.putAll(files.readJson(groupData, GROUP_LIST_TYPE));
+        }
+        final Path legacyFallback = root.resolve(LEGACY_FALLBACK_GROUP);
+        if (Files.exists(legacyFallback)) {
+            files.legacyFallbackGroup = true;
+            files.bytesRead += Files.size(legacyFallback);
+            files.fallbackGroups.put(0, new String(Files.readAllBytes(legacyFallback), StandardCharsets.UTF_8));
+        }
+        final Path fallbackGroups = root.resolve(FALLBACK_GROUPS);
+        if (Files.exists(fallbackGroups)) {
+            files.fallbackGroups.clear();
+            files.fallbackGroups.put(0, "");
+            files.fallbackGroups.putAll(files.readJson(fallbackGroups, DEFAULT_GROUPS_TYPES));
+        }
+        return files;
+    }
+
+    private <T> T readJson(Path path, Type type) throws IOException {
+        this.bytesRead += Files.size(path);
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            final T result = GSON.fromJson(reader, type);
+            if (result == null) {
+                throw new IOException("Empty file " + path);
+            }
+            return result;
+        }
+    }
+
+    static Path groupPath(Path root, String name) throws IOException {
+        return root.resolve(GROUPS).resolve(URLEncoder.encode(name, StandardCharsets.UTF_8.name()) + ".json");
+    }
+
+    /**
+     * Write the contents in the given layout. The legacy fallback group file
+     * is never written; its content lives in {@code default_groups.dat}
+     * instead.
+     */
+    void write(Path root, Layout layout, boolean pretty) throws IOException {
+        final GsonBuilder builder = new GsonBuilder();
+        if (pretty) {
+            builder.setPrettyPrinting();
+        }
+        final Gson gson = builder.create();
+        Files.createDirectories(root);
+        Files.write(root.resolve(PLAYER_DATA), gson.toJson(this.users).getBytes(StandardCharsets.UTF_8));
+        if (!this.additionalGroups.isEmpty()) {
+            Files.write(root.resolve(PLAYER_GROUPS), gson.toJson(this.additionalGroups).getBytes(StandardCharsets.UTF_8));
+        }
+        if (layout == Layout.SINGLE) {
+            Files.write(root.resolve(GROUP_DATA), gson.toJson(this.groups).getBytes(StandardCharsets.UTF_8));
+        } else {
+            Files.createDirectories(root.resolve(GROUPS));
+            for (Map.Entry<String, JsonObject> entry : this.groups.entrySet()) {
+                Files.write(groupPath(root, entry.getKey()), gson.toJson(entry.getValue()).getBytes(StandardCharsets.UTF_8));
+            }
+            final List<String> names = new ArrayList<>(this.groups.keySet());
+            Collections.sort(names);
+            Files.write(root.resolve(GROUPS).resolve(GROUP_INDEX), gson.toJson(names).getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(root.resolve(FALLBACK_GROUPS), gson.toJson(this.fallbackGroups).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Set<String> parentsOf(String group) {
+        final JsonObject json = this.groups.get(group);
+        if (json == null || !json.has("parents") || !json.get("parents").isJsonArray()) {
+            return Collections.emptySet();
+        }
+        final Set<String> parents = new LinkedHashSet<>();
+        for (JsonElement parent : json.getAsJsonArray("parents")) {
+            parents.add(parent.getAsString());
+        }
+        return parents;
+    }
+
+    @Override
+    public Map<String, Boolean> permissionsOf(String group) {
+        final JsonObject json = this.groups.get(group);
+        if (json == null || !json.has("permissions") || !json.get("permissions").isJsonObject()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Boolean> permissions = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("permissions").entrySet()) {
+            permissions.put(entry.getKey(), entry.getValue().getAsBoolean());
+        }
+        return permissions;
+    }
+
+    @Override
+    public Map<String, MetaValue> metaOf(String group) {
+        final JsonObject json = this.groups.get(group);
+        if (json == null || !json.has("meta") || !json.get("meta").isJsonObject()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, MetaValue> meta = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("meta").entrySet()) {
+            meta.put(entry.getKey(), GSON.fromJson(entry.getValue(), MetaValue.class));
+        }
+        return meta;
+    }
+
+    /**
+     * Read op levels from a server's {@code ops.json}.
+     */
+    static Map<UUID, Integer> readOps(Path opsJson) throws IOException {
+        final Map<UUID, Integer> levels = new HashMap<>();
+        try (Reader reader = Files.newBufferedReader(opsJson, StandardCharsets.UTF_8)) {
+            final JsonArray ops = GSON.fromJson(reader, JsonArray.class);
+            for (JsonElement op : ops) {
+                final JsonObject entry = op.getAsJsonObject();
+                levels.put(UUID.fromString(entry.get("uuid").getAsString()), entry.get("level").getAsInt());
+            }
+        }
+        return levels;
+    }
+}
@@ -0,0 +1,192 @@
+package org.teacon.permission.cli;
+
+import org.teacon.permission.repo.CompiledGroup;
+import org.teacon.permission.repo.RepoSnapshot;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Offline tool for {@code simpleperms} folders. Reads the same files as the
+ * mod, but needs neither a server nor Minecraft on the class path.
+ */
+public final class SimplePermsCli {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -jar SimplePermission-cli.jar <command> <simpleperms folder> [arguments]",
+            "Commands:",
+            "  validate <folder>                           Check that every referenced group exists",
+            "  stats <folder>                              Print size and shape of the repo",
+            "  convert <folder> <target> [--single] [--pretty]",
+            "                                              Rewrite the repo with one file per group, or all",
+            "                                              groups in a single file for older versions",
+            "  query <folder> <queries> [--ops <ops.json>] Evaluate '<uuid> <node>' lines of a file");
+
+    private final PrintStream out;
+
+    private SimplePermsCli(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            System.exit(new SimplePermsCli(System.out).run(args));
+        } catch (Exception e) {
+            System.err.println("Failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    private int run(String[] args) throws Exception {
+        final Path root = Paths.get(args[1]);
+        final RepoFiles files = this.time("load", () -> RepoFiles.read(root));
+        switch (args[0]) {
+            case "validate":
+                return this.validate(files);
+            case "stats":
+                return this.stats(files);
+            case "convert":
+                if (args.length < 3) break;
+                final boolean pretty = Arrays.asList(args).contains("--pretty");
+                final RepoFiles.Layout layout = Arrays.asList(args).contains("--single") ? RepoFiles.Layout.SINGLE : RepoFiles.Layout.SHARDED;
+                this.time("write", () -> {
+                    files.write(Paths.get(args[2]), layout, pretty);
+                    return null;
+                });
+                return 0;
+            case "query":
+                if (args.length < 3) break;
+                final int opsIndex = Arrays.asList(args).indexOf("--ops");
+                final Map<UUID, Integer> ops = opsIndex > 0 && opsIndex + 1 < args.length
+                        ? this.time("ops", () -> RepoFiles.readOps(Paths.get(args[opsIndex + 1])))
+                        : Collections.emptyMap();
+                return this.query(files, Paths.get(args[2]), ops);
+            default:
+                break;
+        }
+        System.err.println(USAGE);
+        return 2;
+    }
+
+    private <T> T time(String phase, Callable<T> task) throws Exception {
+        final long start = System.nanoTime();
+        final T result = task.call();
+        this.out.printf("[%s] %.3f ms%n", phase, (System.nanoTime() - start) / 1e6);
+        return result;
+    }
+
+    private static RepoSnapshot compile(RepoFiles files) {
+        final Map<String, CompiledGroup> compiled = new HashMap<>();
+        for (String name : files.groups.keySet()) {
+            compiled.put(name, CompiledGroup.compile(name, files));
+        }
+        return new RepoSnapshot(0L, files.users, files.additionalGroups, compiled, files.fallbackGroups, null);
+    }
+
+    private int validate(RepoFiles files) throws Exception {
+        final List<String> problems = this.time("validate", () -> {
+            final List<String> found = new ArrayList<>();
+            files.users.forEach((id, group) -> {
+                if (!group.isEmpty() && !files.groups.containsKey(group)) {
+                    found.add("Player " + id + " is assigned to missing group '" + group + "'");
+                }
+            });
+            files.additionalGroups.forEach((id, groups) -> groups.keySet().forEach(group -> {
+                if (!files.groups.containsKey(group)) {
+                    found.add("Player " + id + " is additionally in missing group '" + group + "'");
+                }
+            }));
+            files.fallbackGroups.forEach((level, group) -> {
+                if (!group.isEmpty() && !files.groups.containsKey(group)) {
+                    found.add("Op level " + level + " falls back to missing group '" + group + "'");
+                }
+            });
+            for (String group : files.groups.keySet()) {
+                for (String parent : files.parentsOf(group)) {
+                    if (!files.groups.containsKey(parent)) {
+                        found.add("Group '" + group + "' has missing parent '" + parent + "'");
+                    }
+                }
+                try {
+                    files.permissionsOf(group);
+                } catch (RuntimeException e) {
+                    found.add("Group '" + group + "' has a non-boolean permission value: " + e.getMessage());
+                }
+                try {
+                    files.metaOf(group);
+                } catch (RuntimeException e) {
+                    found.add("Group '" + group + "' has an invalid meta value: " + e.getMessage());
+                }
+            }
+            return found;
+        });
+        problems.forEach(this.out::println);
+        if (files.legacyFallbackGroup) {
+            this.out.println("Note: legacy " + RepoFiles.LEGACY_FALLBACK_GROUP + " found, 'convert' migrates it");
+        }
+        this.out.println(problems.isEmpty() ? "OK" : problems.size() + " problem(s) found");
+        return problems.isEmpty() ? 0 : 1;
+    }
+
+    private int stats(RepoFiles files) throws Exception {
+        final RepoSnapshot snapshot = this.time("compile", () -> compile(files));
+        final Map<String, Integer> members = new TreeMap<>();
+        files.users.values().forEach(group -> members.merge(group, 1, Integer::sum));
+        files.additionalGroups.forEach((id, groups) -> groups.keySet().forEach(group -> {
+            if (!group.equals(files.users.get(id))) {
+                members.merge(group, 1, Integer::sum);
+            }
+        }));
+        final Set<String> nodes = new HashSet<>();
+        files.groups.keySet().forEach(group -> nodes.addAll(files.permissionsOf(group).keySet()));
+        int maxDepth = 0;
+        long effective = 0L;
+        for (CompiledGroup group : snapshot.getGroups().values()) {
+            maxDepth = Math.max(maxDepth, group.getChain().size());
+            effective += group.getPermissions().size();
+        }
+        this.out.printf("Layout: %s%n", files.layout.name().toLowerCase(Locale.ROOT));
+        this.out.printf("Bytes read: %d%n", files.bytesRead);
+        this.out.printf("Players: %d%n", files.users.size());
+        this.out.printf("Players in additional groups: %d, distinct combinations: %d%n",
+                files.additionalGroups.size(), snapshot.getCombinationCount());
+        this.out.printf("Groups: %d%n", files.groups.size());
+        this.out.printf("Distinct nodes: %d%n", nodes.size());
+        this.out.printf("Longest resolution chain: %d%n", maxDepth);
+        this.out.printf("Effective nodes per group: %.1f%n", files.groups.isEmpty() ? 0.0 : (double) effective / files.groups.size());
+        this.out.printf("Fallback groups: %s%n", files.fallbackGroups);
+        members.forEach((group, count) -> this.out.printf("  %s: %d member(s)%n", group, count));
+        return 0;
+    }
+
+    private int query(RepoFiles files, Path queries, Map<UUID, Integer> ops) throws Exception {
+        final RepoSnapshot snapshot = this.time("compile", () -> compile(files));
+        final List<String> lines = this.time("read queries", () -> Files.readAllLines(queries, StandardCharsets.UTF_8));
+        final List<String> results = this.time("evaluate", () -> {
+            final List<String> evaluated = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                final String[] parts = line.trim().split("\\s+");
+                if (parts.length < 2 || line.trim().startsWith("#")) {
+                    continue;
+                }
+                final UUID id = UUID.fromString(parts[0]);
+                final Boolean result = snapshot.hasPermission(id, parts[1], ops.getOrDefault(id, 0));
+                evaluated.add(parts[0] + " " + parts[1] + " " + (result == null ? "unset" : result.toString()));
+            }
+            return evaluated;
+        });
+        results.forEach(this.out::println);
+        this.out.printf("Evaluated %d queries%n", results.size());
+        return 0;
+    }
+}
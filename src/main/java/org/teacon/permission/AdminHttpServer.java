@@ -0,0 +1,235 @@
+package org.teacon.permission;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.teacon.permission.repo.CompiledGroup;
+import org.teacon.permission.repo.MetaValue;
+import org.teacon.permission.repo.MetaValueTypeAdapter;
+import org.teacon.permission.repo.RepoSnapshot;
+import org.teacon.permission.repo.UserDataRepo;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Read-only JSON view of the repo for dashboards, served on its own thread
+ * pool from {@link RepoSnapshot}s so that requests never touch the server
+ * thread. Everything but {@code /stats} carries the snapshot version as
+ * ETag, after an epoch telling this run apart from earlier ones whose
+ * versions counted from zero too, and answers conditional requests with 304.
+ * <ul>
+ * <li>{@code GET /groups}: every group with its parents and member count</li>
+ * <li>{@code GET /groups/<name>}: effective nodes, meta and members of a group</li>
+ * <li>{@code GET /players/<uuid>}: groups and effective nodes of a player</li>
+ * <li>{@code GET /stats}: check counters of the permission handler</li>
+ * </ul>
+ */
+final class AdminHttpServer {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(MetaValue.class, new MetaValueTypeAdapter())
+            .create();
+
+    private final UserDataRepo repo;
+
+    private final SimplePermissionHandler handler;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+    /**
+     * Members of every group, computed once per snapshot.
+     */
+    private volatile Members members = new Members(-1L, Collections.emptyMap());
+
+    private static final class Members {
+        final long version;
+        final Map<String, List<UUID>> byGroup;
+
+        Members(long version, Map<String, List<UUID>> byGroup) {
+            this.version = version;
+            this.byGroup = byGroup;
+        }
+    }
+
+    AdminHttpServer(UserDataRepo repo, SimplePermissionHandler handler, String host, int port, int threads) throws IOException {
+        this.repo = repo;
+        this.handler = handler;
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("SimplePerms-Http-%d").setDaemon(true).build());
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+    }
+
+    void start() {
+        this.server.start();
+        LOGGER.info("Serving simple permission admin API on http://{}", this.server.getAddress());
+    }
+
+    void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                this.send(exchange, 405, null, error("Only GET and HEAD are supported"));
+                return;
+            }
+            final String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+            if (path.length == 1 && "stats".equals(path[0])) {
+                this.send(exchange, 200, null, this.stats());
+                return;
+            }
+            final RepoSnapshot snapshot = this.repo.snapshot();
+            final String etag = "\"" + this.epoch + "-" + snapshot.getVersion() + "\"";
+            final String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (etag.equals(ifNoneMatch)) {
+                this.send(exchange, 304, etag, null);
+                return;
+            }
+            final JsonElement body;
+            if (path.length == 1 && "groups".equals(path[0])) {
+                body = this.groups(snapshot);
+            } else if (path.length == 2 && "groups".equals(path[0]) && snapshot.getGroups().containsKey(path[1])) {
+                body = this.group(snapshot, snapshot.getGroup(path[1]));
+            } else if (path.length == 2 && "players".equals(path[0]) && isUuid(path[1])) {
+                body = this.player(snapshot, UUID.fromString(path[1]));
+            } else {
+                this.send(exchange, 404, null, error("Not found"));
+                return;
+            }
+            this.send(exchange, 200, etag, body);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to answer {}", exchange.getRequestURI(), e);
+            this.send(exchange, 500, null, error("Internal error"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, @Nullable String etag,
+                      @Nullable JsonElement body) throws IOException {
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        }
+        if (body == null || "HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        final byte[] bytes = GSON.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static JsonObject error(String message) {
+        final JsonObject json = new JsonObject();
+        json.addProperty("error", message);
+        return json;
+    }
+
+    private static boolean isUuid(String text) {
+        try {
+            UUID.fromString(text);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private Map<String, List<UUID>> members(RepoSnapshot snapshot) {
+        Members current = this.members;
+        if (current.version != snapshot.getVersion()) {
+            final Map<String, List<UUID>> byGroup = new HashMap<>();
+            snapshot.getUsers().forEach((id, group) -> byGroup.computeIfAbsent(group, k -> new ArrayList<>()).add(id));
+            snapshot.getAdditionalGroups().forEach((id, groups) -> groups.keySet().forEach(group -> {
+                final List<UUID> members = byGroup.computeIfAbsent(group, k -> new ArrayList<>());
+                // Players may also be in their primary group additionally
+                if (!group.equals(snapshot.getUsers().get(id))) {
+                    members.add(id);
+                }
+            }));
+            byGroup.values().forEach(Collections::sort);
+            this.members = current = new Members(snapshot.getVersion(), byGroup);
+        }
+        return current.byGroup;
+    }
+
+    private JsonElement groups(RepoSnapshot snapshot) {
+        final Map<String, List<UUID>> members = this.members(snapshot);
+        final JsonArray array = new JsonArray();
+        for (CompiledGroup group : new TreeMap<>(snapshot.getGroups()).values()) {
+            final JsonObject json = new JsonObject();
+            json.addProperty("name", group.getName());
+            json.add("chain", GSON.toJsonTree(group.getChain()));
+            json.addProperty("members", members.getOrDefault(group.getName(), Collections.emptyList()).size());
+            array.add(json);
+        }
+        return array;
+    }
+
+    private JsonElement group(RepoSnapshot snapshot, CompiledGroup group) {
+        final JsonObject json = new JsonObject();
+        json.addProperty("name", group.getName());
+        json.add("chain", GSON.toJsonTree(group.getChain()));
+        json.add("permissions", GSON.toJsonTree(new TreeMap<>(group.getPermissions())));
+        json.add("meta", GSON.toJsonTree(new TreeMap<>(group.getMeta())));
+        json.add("members", GSON.toJsonTree(this.members(snapshot).getOrDefault(group.getName(), Collections.emptyList())));
+        return json;
+    }
+
+    private JsonElement player(RepoSnapshot snapshot, UUID id) {
+        // Op levels live on the server thread; unassigned players are shown with the level 0 fallback
+        final boolean assigned = snapshot.getUsers().containsKey(id);
+        final CompiledGroup group = snapshot.resolve(id, 0);
+        final JsonObject json = new JsonObject();
+        json.addProperty("uuid", id.toString());
+        json.addProperty("group", group.getName());
+        json.addProperty("assigned", assigned);
+        json.add("additionalGroups", GSON.toJsonTree(new TreeMap<>(snapshot.getAdditionalGroups().getOrDefault(id, Collections.emptyMap()))));
+        json.add("permissions", GSON.toJsonTree(new TreeMap<>(group.getPermissions())));
+        json.add("meta", GSON.toJsonTree(new TreeMap<>(group.getMeta())));
+        return json;
+    }
+
+    private JsonElement stats() {
+        final JsonObject json = new JsonObject();
+        json.addProperty("checks", this.handler.getCheckCount());
+        json.addProperty("shortCircuits", this.handler.getShortCircuitCount());
+        json.addProperty("memoHits", this.handler.getMemoHitCount());
+        json.addProperty("memoMisses", this.handler.getMemoMissCount());
+        json.addProperty("commandCacheHits", this.handler.getCommandCacheHitCount());
+        json.addProperty("commandCacheMisses", this.handler.getCommandCacheMissCount());
+        json.addProperty("snapshotVersion", this.repo.snapshot().getVersion());
+        json.addProperty("groupCombinations", this.repo.snapshot().getCombinationCount());
+        return json;
+    }
+}
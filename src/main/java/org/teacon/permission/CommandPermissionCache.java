@@ -0,0 +1,201 @@
+package org.teacon.permission;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.teacon.permission.repo.RepoListener;
+
+/**
+ * Results of checks made with nothing but the player as context, which is
+ * how {@code requires} predicates of commands check, so that sending the
+ * command tree again costs a bit test per node. Nodes are numbered the
+ * first time they are checked; each player has a fixed-size bitmask
+ * holding 4 bits per node: whether the result is known, the result, and
+ * whether the repo gave it.
+ * <p>
+ * The bitmask of a player is dropped as soon as their effective
+ * permissions may have changed, and filled again by the next checks. A
+ * check fetches the bitmask before it computes the result, so that a
+ * result computed before a change only ever ends up in a dropped bitmask.
+ * <p>
+ * Results are those of the player's current op level. Op levels change
+ * without the repo knowing, so {@link SimplePermissionHandler#checkOpLevels}
+ * drops the bitmask of a player whose op level changed, and has their
+ * command tree sent again.
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+final class CommandPermissionCache implements RepoListener {
+
+    private static final int BITS_PER_NODE = 4;
+    private static final int NODES_PER_CELL = Long.SIZE / BITS_PER_NODE;
+
+    private static final long KNOWN = 1L;
+    private static final long GRANTED = 2L;
+    private static final long FROM_REPO = 4L;
+
+    static final int UNKNOWN = 0;
+
+    private final Map<String, Integer> indices = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    private final int maxNodes;
+
+    private final Map<UUID, AtomicLongArray> players = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    CommandPermissionCache(int maxNodes) {
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * @return the number of the node, or -1 if all numbers are taken.
+     */
+    int indexOf(String node) {
+        final Integer index = this.indices.get(node);
+        if (index != null) {
+            return index;
+        }
+        if (this.nextIndex.get() >= this.maxNodes) {
+            return -1;
+        }
+        return this.indices.computeIfAbsent(node, k -> {
+            final int next = this.nextIndex.getAndIncrement();
+            return next < this.maxNodes ? next : -1;
+        });
+    }
+
+    /**
+     * @return the number of the node, or -1 if it has none yet.
+     */
+    int indexIfPresent(String node) {
+        final Integer index = this.indices.get(node);
+        return index == null ? -1 : index;
+    }
+
+    @Nullable
+    AtomicLongArray bitsIfPresent(UUID id) {
+        return this.players.get(id);
+    }
+
+    AtomicLongArray bitsOf(UUID id) {
+        final AtomicLongArray bits = this.players.get(id);
+        return bits != null ? bits : this.players.computeIfAbsent(id,
+                k -> new AtomicLongArray((this.maxNodes + NODES_PER_CELL - 1) / NODES_PER_CELL));
+    }
+
+    /**
+     * Does not count as hit or miss, see {@link #count}.
+     *
+     * @return {@link #UNKNOWN}, or a state to pass to {@link #isGranted}
+     * and {@link #isFromRepo}.
+     */
+    int get(AtomicLongArray bits, int index) {
+        return (int) (bits.get(index / NODES_PER_CELL) >>> shift(index) & 0xF);
+    }
+
+    void count(boolean hit) {
+        (hit ? this.hits : this.misses).increment();
+    }
+
+    static boolean isGranted(int state) {
+        return (state & GRANTED) != 0;
+    }
+
+    static boolean isFromRepo(int state) {
+        return (state & FROM_REPO) != 0;
+    }
+
+    void put(AtomicLongArray bits, int index, boolean granted, boolean fromRepo) {
+        final long state = KNOWN | (granted ? GRANTED : 0L) | (fromRepo ? FROM_REPO : 0L);
+        final int cell = index / NODES_PER_CELL;
+        final int shift = shift(index);
+        long prev;
+        do {
+            prev = bits.get(cell);
+        } while (!bits.compareAndSet(cell, prev, prev & ~(0xFL << shift) | state << shift));
+    }
+
+    private static int shift(int index) {
+        return index % NODES_PER_CELL * BITS_PER_NODE;
+    }
+
+    void invalidate(UUID id) {
+        this.players.remove(id);
+    }
+
+    /**
+     * Drop the bitmasks of every player but the given ones.
+     */
+    void retain(Set<UUID> ids) {
+        this.players.keySet().retainAll(ids);
+    }
+
+    void clear() {
+        this.players.clear();
+    }
+
+    private void invalidate(Set<UUID> ids) {
+        ids.forEach(this.players::remove);
+    }
+
+    long getHitCount() {
+        return this.hits.sum();
+    }
+
+    long getMissCount() {
+        return this.misses.sum();
+    }
+
+    int getNodeCount() {
+        return Math.min(this.nextIndex.get(), this.maxNodes);
+    }
+
+    @Override
+    public void onMembershipChanged(UUID id, String previous, String current) {
+        this.invalidate(id);
+    }
+
+    @Override
+    public void onAdditionalGroupChanged(UUID id, String group, @Nullable Integer previous, @Nullable Integer current) {
+        this.invalidate(id);
+    }
+
+    @Override
+    public void onPermissionChanged(String group, String node, @Nullable Boolean previous, @Nullable Boolean current, Set<UUID> affected) {
+        this.invalidate(affected);
+    }
+
+    @Override
+    public void onParentsChanged(String group, String parent, boolean added, Set<UUID> affected) {
+        this.invalidate(affected);
+    }
+
+    @Override
+    public void onGroupChanged(String group, Set<UUID> affected) {
+        // A replicated group may come with different nodes, in which case the descendants are affected too
+        this.invalidate(affected);
+    }
+
+    @Override
+    public void onFallbackGroupChanged(int opLevel, String group, Set<UUID> affected) {
+        this.invalidate(affected);
+    }
+
+    @Override
+    public void onReloaded(Set<UUID> affected) {
+        this.invalidate(affected);
+    }
+}
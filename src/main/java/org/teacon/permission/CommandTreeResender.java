@@ -0,0 +1,100 @@
+package org.teacon.permission;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.server.MinecraftServer;
+import org.teacon.permission.repo.RepoListener;
+import org.teacon.permission.repo.UserDataRepo;
+
+/**
+ * Sends the command tree again to online players whose permissions may
+ * have changed, so that clients stop suggesting commands they lost and
+ * start suggesting those they gained. Changes are collected as they happen
+ * and sent once per tick from {@link #flush}, so that a burst of changes
+ * costs one resend per affected player.
+ */
+final class CommandTreeResender implements RepoListener {
+
+    private final UserDataRepo repo;
+
+    private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+
+    CommandTreeResender(UserDataRepo repo) {
+        this.repo = repo;
+    }
+
+    private void mark(Set<UUID> affected) {
+        for (UUID id : affected) {
+            this.mark(id);
+        }
+    }
+
+    /**
+     * Send the command tree of the given player again on the next flush,
+     * for changes the repo does not know about, like their op level.
+     */
+    void resend(UUID id) {
+        this.mark(id);
+    }
+
+    private void mark(UUID id) {
+        if (this.repo.isOnline(id)) {
+            this.pending.add(id);
+        }
+    }
+
+    /**
+     * Must be called on the server thread.
+     */
+    void flush(MinecraftServer server) {
+        for (Iterator<UUID> iterator = this.pending.iterator(); iterator.hasNext(); ) {
+            final UUID id = iterator.next();
+            iterator.remove();
+            final ServerPlayerEntity player = server.getPlayerList().getPlayer(id);
+            if (player != null) {
+                server.getCommands().sendCommands(player);
+            }
+        }
+    }
+
+    @Override
+    public void onMembershipChanged(UUID id, String previous, String current) {
+        this.mark(id);
+    }
+
+    @Override
+    public void onAdditionalGroupChanged(UUID id, String group, @Nullable Integer previous, @Nullable Integer current) {
+        this.mark(id);
+    }
+
+    @Override
+    public void onPermissionChanged(String group, String node, @Nullable Boolean previous, @Nullable Boolean current, Set<UUID> affected) {
+        this.mark(affected);
+    }
+
+    @Override
+    public void onParentsChanged(String group, String parent, boolean added, Set<UUID> affected) {
+        this.mark(affected);
+    }
+
+    @Override
+    public void onGroupChanged(String group, Set<UUID> affected) {
+        this.mark(affected);
+    }
+
+    @Override
+    public void onFallbackGroupChanged(int opLevel, String group, Set<UUID> affected) {
+        this.mark(affected);
+    }
+
+    @Override
+    public void onReloaded(Set<UUID> affected) {
+        this.mark(affected);
+    }
+}
@@ -0,0 +1,101 @@
+package org.teacon.permission;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Memo of results returned by the permission handler wrapped by
+ * {@link SimplePermissionHandler}, keyed by player and node. Those results
+ * depend on the player's op level, so the entries of a player are dropped
+ * whenever it is seen to change, see
+ * {@link SimplePermissionHandler#checkOpLevels}.
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+final class DelegatedResultMemo {
+
+    private final Map<UUID, Map<String, Boolean>> results = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final int maxEntries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    DelegatedResultMemo(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    @Nullable
+    Boolean get(UUID id, String node) {
+        final Boolean result = this.peek(id, node);
+        (result == null ? this.misses : this.hits).increment();
+        return result;
+    }
+
+    /**
+     * Like {@link #get}, but not counted as hit or miss.
+     */
+    @Nullable
+    Boolean peek(UUID id, String node) {
+        final Map<String, Boolean> forPlayer = this.results.get(id);
+        return forPlayer == null ? null : forPlayer.get(node);
+    }
+
+    void put(UUID id, String node, boolean result) {
+        if (this.size.get() >= this.maxEntries) {
+            this.clear();
+        }
+        if (this.results.computeIfAbsent(id, k -> new ConcurrentHashMap<>()).put(node, result) == null) {
+            this.size.incrementAndGet();
+        }
+    }
+
+    void invalidate(UUID id) {
+        final Map<String, Boolean> forPlayer = this.results.remove(id);
+        if (forPlayer != null) {
+            this.size.addAndGet(-forPlayer.size());
+        }
+    }
+
+    void invalidate(String node) {
+        for (Map<String, Boolean> forPlayer : this.results.values()) {
+            if (forPlayer.remove(node) != null) {
+                this.size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drop the entries of every player but the given ones.
+     */
+    void retain(Set<UUID> ids) {
+        for (UUID id : this.results.keySet()) {
+            if (!ids.contains(id)) {
+                this.invalidate(id);
+            }
+        }
+    }
+
+    void clear() {
+        this.results.clear();
+        this.size.set(0);
+    }
+
+    long getHitCount() {
+        return this.hits.sum();
+    }
+
+    long getMissCount() {
+        return this.misses.sum();
+    }
+}
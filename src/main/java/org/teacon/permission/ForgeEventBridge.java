@@ -0,0 +1,64 @@
+package org.teacon.permission;
+
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraftforge.common.MinecraftForge;
+import org.teacon.permission.event.PermissionChangedEvent;
+import org.teacon.permission.repo.RepoListener;
+
+/**
+ * Posts {@link PermissionChangedEvent}s for changes to the repo. Changes
+ * made off the server thread, such as reloads, are posted on it later.
+ */
+final class ForgeEventBridge implements RepoListener {
+
+    private final MinecraftServer server;
+
+    ForgeEventBridge(MinecraftServer server) {
+        this.server = server;
+    }
+
+    private void post(PermissionChangedEvent event) {
+        // Runs right away when already on the server thread
+        this.server.execute(() -> MinecraftForge.EVENT_BUS.post(event));
+    }
+
+    @Override
+    public void onMembershipChanged(UUID id, String previous, String current) {
+        this.post(new PermissionChangedEvent.Membership(id, previous, current));
+    }
+
+    @Override
+    public void onAdditionalGroupChanged(UUID id, String group, @Nullable Integer previous, @Nullable Integer current) {
+        this.post(new PermissionChangedEvent.AdditionalGroup(id, group, previous, current));
+    }
+
+    @Override
+    public void onPermissionChanged(String group, String node, @Nullable Boolean previous, @Nullable Boolean current, Set<UUID> affected) {
+        this.post(new PermissionChangedEvent.Node(group, node, previous, current, affected));
+    }
+
+    @Override
+    public void onParentsChanged(String group, String parent, boolean added, Set<UUID> affected) {
+        this.post(new PermissionChangedEvent.Parents(group, parent, added, affected));
+    }
+
+    @Override
+    public void onGroupChanged(String group, Set<UUID> affected) {
+        this.post(new PermissionChangedEvent.Group(group, affected));
+    }
+
+    @Override
+    public void onFallbackGroupChanged(int opLevel, String group, Set<UUID> affected) {
+        this.post(new PermissionChangedEvent.Fallback(opLevel, group, affected));
+    }
+
+    @Override
+    public void onReloaded(Set<UUID> affected) {
+        this.post(new PermissionChangedEvent.Reload(affected));
+    }
+}
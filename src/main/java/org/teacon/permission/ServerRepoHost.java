@@ -0,0 +1,54 @@
+package org.teacon.permission;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.server.MinecraftServer;
+import org.teacon.permission.repo.RepoHost;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+public final class ServerRepoHost implements RepoHost {
+
+    private final MinecraftServer server;
+
+    public ServerRepoHost(MinecraftServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public Collection<UUID> getOnlinePlayers() {
+        // The repo may be loaded before the player list exists
+        if (this.server.getPlayerList() == null) {
+            return Collections.emptyList();
+        }
+        return this.server.getPlayerList().getPlayers().stream().map(ServerPlayerEntity::getUUID).collect(Collectors.toList());
+    }
+
+    @Override
+    public void refreshDisplayName(UUID id) {
+        final ServerPlayerEntity player = this.server.getPlayerList().getPlayer(id);
+        if (player != null) {
+            player.refreshDisplayName();
+        }
+    }
+
+    @Override
+    public int getOpLevel(UUID id) {
+        final GameProfile profile = this.server.getProfileCache().get(id);
+        return profile == null ? 0 : this.server.getProfilePermissions(profile);
+    }
+
+    @Override
+    public int getOpLevel(GameProfile profile) {
+        return this.server.getProfilePermissions(profile);
+    }
+
+    @Override
+    public Executor getMainExecutor() {
+        return this.server;
+    }
+}
@@ -1,6 +1,8 @@
 package org.teacon.permission;
 
 import com.mojang.authlib.GameProfile;
+import com.mojang.brigadier.context.ParsedCommandNode;
+import net.minecraft.command.CommandSource;
 import net.minecraft.crash.CrashReport;
 import net.minecraft.crash.ReportedException;
 import net.minecraft.entity.player.ServerPlayerEntity;
@@ -11,12 +13,15 @@ import net.minecraft.util.text.ITextComponent;
 import net.minecraft.world.GameType;
 import net.minecraft.world.storage.FolderName;
 import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.CommandEvent;
 import net.minecraftforge.event.RegisterCommandsEvent;
 import net.minecraftforge.event.TickEvent;
 import net.minecraftforge.event.entity.player.PlayerEvent;
 import net.minecraftforge.fml.ExtensionPoint;
 import net.minecraftforge.fml.ModLoadingContext;
 import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.config.ModConfig;
+import net.minecraftforge.fml.event.server.FMLServerAboutToStartEvent;
 import net.minecraftforge.fml.event.server.FMLServerStartingEvent;
 import net.minecraftforge.fml.event.server.FMLServerStoppingEvent;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
@@ -28,13 +33,24 @@ import net.minecraftforge.server.permission.PermissionAPI;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.teacon.permission.audit.AuditLog;
 import org.teacon.permission.command.SimplePermissionCommand;
 import org.teacon.permission.command.arguments.ArgumentsRegistry;
+import org.teacon.permission.replication.ReplicationAuthority;
+import org.teacon.permission.replication.ReplicationFollower;
 import org.teacon.permission.repo.UserDataRepo;
+import org.teacon.permission.trace.TraceRecorder;
+
+import javax.annotation.Nullable;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Mod("simple_permission")
 public class SimplePermission {
@@ -47,15 +63,45 @@ public class SimplePermission {
 
     private static SimplePermissionHandler permissionHandler;
 
+    /**
+     * Repo being loaded in parallel with the world, from
+     * {@link #serverAboutToStart} until {@link #serverStart} takes it.
+     */
+    private static CompletableFuture<UserDataRepo> pendingRepo;
+
+    @Nullable
+    private static AuditLog auditLog;
+
+    @Nullable
+    private static AdminHttpServer httpServer;
+
+    @Nullable
+    private static ReplicationAuthority replicationAuthority;
+
+    @Nullable
+    private static ReplicationFollower replicationFollower;
+
+    @Nullable
+    private static CommandTreeResender commandTreeResender;
+
+    /**
+     * Set by /op and /deop, which are only run on the server thread.
+     */
+    private static boolean opsChanged;
+
     public SimplePermission() {
         ModLoadingContext.get().registerExtensionPoint(ExtensionPoint.DISPLAYTEST,
                 () -> Pair.of(() -> FMLNetworkConstants.IGNORESERVERONLY, (serverVer, isDedicated) -> true));
+        ModLoadingContext.get().registerConfig(ModConfig.Type.SERVER, SimplePermissionConfig.SPEC);
         FMLJavaModLoadingContext.get().getModEventBus().addListener(ArgumentsRegistry::registerArguments);
+        MinecraftForge.EVENT_BUS.addListener(SimplePermission::serverAboutToStart);
         MinecraftForge.EVENT_BUS.addListener(SimplePermission::serverStart);
         MinecraftForge.EVENT_BUS.addListener(SimplePermission::serverStop);
         MinecraftForge.EVENT_BUS.addListener(SimplePermission::onServerTick);
+        MinecraftForge.EVENT_BUS.addListener(SimplePermission::onCommand);
         MinecraftForge.EVENT_BUS.addListener(SimplePermission::registerCommands);
         MinecraftForge.EVENT_BUS.addListener(SimplePermission::handlePlayerLogin);
+        MinecraftForge.EVENT_BUS.addListener(SimplePermission::handlePlayerLogout);
         MinecraftForge.EVENT_BUS.addListener(SimplePermission::onPlayerNameFormat);
     }
 
@@ -63,19 +109,99 @@ public class SimplePermission {
         return permissionHandler;
     }
 
+    @Nullable
+    public static AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    /**
+     * @return whether the repo follows a replication authority, which
+     * overwrites changes made here.
+     */
+    public static boolean isReplicationFollower() {
+        return replicationFollower != null;
+    }
+
+    public static void serverAboutToStart(FMLServerAboutToStartEvent event) {
+        final MinecraftServer server = event.getServer();
+        final Path dataPath = server.getWorldPath(SIMPLE_PERMS_FOLDER_NAME);
+        pendingRepo = CompletableFuture.supplyAsync(() -> {
+            final long start = System.nanoTime();
+            try {
+                final UserDataRepo repo = new UserDataRepo(new ServerRepoHost(server), dataPath);
+                LOGGER.info("Loaded simple permission data repo in {} ms", (System.nanoTime() - start) / 1_000_000L);
+                return repo;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, task -> {
+            final Thread thread = new Thread(task, "SimplePerms-Preload");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
     public static void serverStart(FMLServerStartingEvent event) {
         Path DATA_PATH = event.getServer().getWorldPath(SIMPLE_PERMS_FOLDER_NAME);
 
         PermissionAPI.registerNode(PermissionNodes.MANAGE, DefaultPermissionLevel.OP, "Management permission of simple permission");
 
         try {
-            REPO = new UserDataRepo(event.getServer(), DATA_PATH);
+            // Players cannot join and our handler is not installed until the repo is ready
+            final long start = System.nanoTime();
+            REPO = pendingRepo == null ? new UserDataRepo(new ServerRepoHost(event.getServer()), DATA_PATH) : pendingRepo.join();
+            pendingRepo = null;
+            LOGGER.info("Waited {} ms for simple permission data repo", (System.nanoTime() - start) / 1_000_000L);
+            REPO.addListener(new ForgeEventBridge(event.getServer()));
             // TODO We still don't know where to call setPermissionHandler
             final IPermissionHandler previous = PermissionAPI.getPermissionHandler();
             LOGGER.debug("SimplePermission is going to wrap up the current permission handler {}", previous);
             PermissionAPI.setPermissionHandler(permissionHandler = new SimplePermissionHandler(previous));
+            if (permissionHandler.getCommandCache() != null) {
+                REPO.addListener(permissionHandler.getCommandCache());
+            }
+            REPO.addListener(commandTreeResender = new CommandTreeResender(REPO));
+            if (SimplePermissionConfig.TRACE_ENABLED.get()) {
+                LOGGER.info("Recording permission checks to {}", DATA_PATH.resolve("traces"));
+                permissionHandler.setTraceRecorder(new TraceRecorder(DATA_PATH.resolve("traces"),
+                        SimplePermissionConfig.TRACE_MAX_FILE_SIZE_MB.get() * 1024L * 1024L,
+                        SimplePermissionConfig.TRACE_MAX_FILES.get(), SimplePermissionConfig.TRACE_BUFFER_SIZE.get()));
+            }
+            if (SimplePermissionConfig.AUDIT_ENABLED.get()) {
+                auditLog = new AuditLog(DATA_PATH.resolve("audit"), SimplePermissionConfig.AUDIT_SEGMENT_ENTRIES.get());
+            }
+            if (SimplePermissionConfig.HTTP_ENABLED.get()) {
+                try {
+                    httpServer = new AdminHttpServer(REPO, permissionHandler, SimplePermissionConfig.HTTP_HOST.get(),
+                            SimplePermissionConfig.HTTP_PORT.get(), SimplePermissionConfig.HTTP_THREADS.get());
+                    httpServer.start();
+                } catch (IOException e) {
+                    // Dashboards are optional, the server does not depend on them
+                    LOGGER.error("Failed to start simple permission admin API", e);
+                }
+            }
+            final String role = SimplePermissionConfig.REPLICATION_ROLE.get();
+            final String secret = SimplePermissionConfig.REPLICATION_SECRET.get();
+            if (!"none".equals(role) && secret.isEmpty()) {
+                LOGGER.error("Not starting simple permission replication as {}, no secret is configured", role);
+            } else if ("authority".equals(role)) {
+                try {
+                    replicationAuthority = new ReplicationAuthority(REPO, SimplePermissionConfig.REPLICATION_PORT.get(),
+                            SimplePermissionConfig.REPLICATION_BACKLOG.get(), secret);
+                    replicationAuthority.start();
+                } catch (IOException e) {
+                    // Followers keep their own data until the authority is back
+                    LOGGER.error("Failed to start simple permission replication", e);
+                }
+            } else if ("follower".equals(role)) {
+                replicationFollower = new ReplicationFollower(REPO, event.getServer(), SimplePermissionConfig.REPLICATION_PORT.get(), secret);
+                replicationFollower.start();
+            }
         } catch (IOException e) {
             throw new ReportedException(new CrashReport("Failed to initialize user data repo", e));
+        } catch (CompletionException e) {
+            pendingRepo = null;
+            throw new ReportedException(new CrashReport("Failed to initialize user data repo", e.getCause()));
         }
     }
 
@@ -85,6 +211,32 @@ public class SimplePermission {
 
     @SuppressWarnings("unused")
     public static void serverStop(FMLServerStoppingEvent event) {
+        final TraceRecorder recorder = permissionHandler == null ? null : permissionHandler.getTraceRecorder();
+        if (recorder != null) {
+            permissionHandler.setTraceRecorder(null);
+            recorder.close();
+            LOGGER.info("Stopped recording permission checks, {} dropped", recorder.getDroppedCount());
+        }
+        if (httpServer != null) {
+            httpServer.stop();
+            httpServer = null;
+        }
+        if (replicationAuthority != null) {
+            replicationAuthority.stop();
+            replicationAuthority = null;
+        }
+        if (replicationFollower != null) {
+            replicationFollower.stop();
+            replicationFollower = null;
+        }
+        if (commandTreeResender != null) {
+            REPO.removeListener(commandTreeResender);
+            commandTreeResender = null;
+        }
+        if (auditLog != null) {
+            auditLog.close();
+            auditLog = null;
+        }
         try {
             LOGGER.info("Saving simple permission data repo");
             REPO.save();
@@ -97,6 +249,16 @@ public class SimplePermission {
         if (event.phase != TickEvent.Phase.END) return;
         MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
         if (server == null) return;
+        if (permissionHandler != null && (opsChanged || server.getTickCount() % 20 == 0)) {
+            final List<UUID> changed = opsChanged ? permissionHandler.opsChanged(server) : permissionHandler.checkOpLevels(server);
+            opsChanged = false;
+            if (commandTreeResender != null) {
+                changed.forEach(commandTreeResender::resend);
+            }
+        }
+        if (commandTreeResender != null) {
+            commandTreeResender.flush(server);
+        }
         if (ServerLifecycleHooks.getCurrentServer().getTickCount() % 6000 == 0) {
             if (REPO.dirty()) {
                 try {
@@ -109,10 +271,24 @@ public class SimplePermission {
         }
     }
 
+    public static void onCommand(CommandEvent event) {
+        final List<ParsedCommandNode<CommandSource>> nodes = event.getParseResults().getContext().getNodes();
+        if (permissionHandler == null || nodes.isEmpty()) return;
+        final String command = nodes.get(0).getNode().getName();
+        if ("op".equals(command) || "deop".equals(command)) {
+            // The command runs right after this event, the next tick picks up its effect
+            opsChanged = true;
+        }
+    }
+
     public static void handlePlayerLogin(PlayerEvent.PlayerLoggedInEvent event) {
         if (event.getPlayer() instanceof ServerPlayerEntity) {
             final ServerPlayerEntity player = (ServerPlayerEntity) event.getPlayer();
             final GameProfile playerGameProfile = player.getGameProfile();
+            if (permissionHandler != null) {
+                permissionHandler.invalidate(playerGameProfile.getId());
+            }
+            REPO.playerLoggedIn(playerGameProfile.getId());
             REPO.initForSpawn(playerGameProfile, group -> {
                 final Optional<String> gameTypeOptional = REPO.getGameType(group);
                 gameTypeOptional.ifPresent(type -> player.setGameMode(GameType.byName(type)));
@@ -126,6 +302,13 @@ public class SimplePermission {
         }
     }
 
+    public static void handlePlayerLogout(PlayerEvent.PlayerLoggedOutEvent event) {
+        if (permissionHandler != null) {
+            permissionHandler.invalidate(event.getPlayer().getUUID());
+        }
+        REPO.playerLoggedOut(event.getPlayer().getUUID());
+    }
+
     public static void onPlayerNameFormat(PlayerEvent.NameFormat event) {
         if (event.getPlayer() instanceof ServerPlayerEntity) {
             final ServerPlayerEntity player = (ServerPlayerEntity) event.getPlayer();
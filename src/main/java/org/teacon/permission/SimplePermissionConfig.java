@@ -0,0 +1,148 @@
+package org.teacon.permission;
+
+import net.minecraftforge.common.ForgeConfigSpec;
+
+import java.util.Arrays;
+
+public final class SimplePermissionConfig {
+
+    public static final ForgeConfigSpec SPEC;
+
+    public static final ForgeConfigSpec.BooleanValue PARENT_MEMO_ENABLED;
+    public static final ForgeConfigSpec.IntValue PARENT_MEMO_MAX_ENTRIES;
+
+    public static final ForgeConfigSpec.BooleanValue COMMAND_CACHE_ENABLED;
+    public static final ForgeConfigSpec.IntValue COMMAND_CACHE_MAX_NODES;
+
+    public static final ForgeConfigSpec.IntValue PAGE_SIZE;
+    public static final ForgeConfigSpec.IntValue QUERY_CONCURRENCY;
+    public static final ForgeConfigSpec.IntValue QUERY_TIMEOUT_SECONDS;
+
+    public static final ForgeConfigSpec.BooleanValue TRACE_ENABLED;
+    public static final ForgeConfigSpec.IntValue TRACE_MAX_FILE_SIZE_MB;
+    public static final ForgeConfigSpec.IntValue TRACE_MAX_FILES;
+    public static final ForgeConfigSpec.IntValue TRACE_BUFFER_SIZE;
+
+    public static final ForgeConfigSpec.BooleanValue AUDIT_ENABLED;
+    public static final ForgeConfigSpec.IntValue AUDIT_SEGMENT_ENTRIES;
+    public static final ForgeConfigSpec.IntValue AUDIT_HISTORY_LIMIT;
+
+    public static final ForgeConfigSpec.BooleanValue HTTP_ENABLED;
+    public static final ForgeConfigSpec.ConfigValue<String> HTTP_HOST;
+    public static final ForgeConfigSpec.IntValue HTTP_PORT;
+    public static final ForgeConfigSpec.IntValue HTTP_THREADS;
+
+    public static final ForgeConfigSpec.ConfigValue<String> REPLICATION_ROLE;
+    public static final ForgeConfigSpec.IntValue REPLICATION_PORT;
+    public static final ForgeConfigSpec.IntValue REPLICATION_BACKLOG;
+    public static final ForgeConfigSpec.ConfigValue<String> REPLICATION_SECRET;
+
+    static {
+        final ForgeConfigSpec.Builder builder = new ForgeConfigSpec.Builder();
+
+        builder.push("parent_memo");
+        PARENT_MEMO_ENABLED = builder
+                .comment("Remember results of the wrapped permission handler for registered nodes.",
+                        "Disable this if the wrapped handler answers differently depending on the context of a check.")
+                .define("enabled", true);
+        PARENT_MEMO_MAX_ENTRIES = builder
+                .comment("Upper bound of remembered results across all players. The memo is cleared once it is reached.")
+                .defineInRange("max_entries", 65536, 1, Integer.MAX_VALUE);
+        builder.pop();
+
+        builder.push("command_cache");
+        COMMAND_CACHE_ENABLED = builder
+                .comment("Keep the results of checks made with nothing but the player as context, such as those of",
+                        "commands, as a bitmask per player until their permissions change. This makes sending the",
+                        "command tree cheap. Takes effect on the next server start.")
+                .define("enabled", true);
+        COMMAND_CACHE_MAX_NODES = builder
+                .comment("Number of distinct nodes kept. Each online player takes half a byte per node.")
+                .defineInRange("max_nodes", 4096, 16, 1 << 16);
+        builder.pop();
+
+        builder.push("commands");
+        PAGE_SIZE = builder
+                .comment("Number of entries shown per page by list commands such as /sp groups.")
+                .defineInRange("page_size", 10, 1, 100);
+        QUERY_CONCURRENCY = builder
+                .comment("Number of list commands, such as /sp group <group> members, computed in the background at",
+                        "the same time. Further ones are refused until one of them finishes.")
+                .defineInRange("max_concurrent_queries", 2, 1, 16);
+        QUERY_TIMEOUT_SECONDS = builder
+                .comment("Seconds after which a list command still being computed is answered with an error.")
+                .defineInRange("query_timeout_seconds", 10, 1, 300);
+        builder.pop();
+
+        builder.push("trace");
+        TRACE_ENABLED = builder
+                .comment("Record every permission check into simpleperms/traces for replaying it later.",
+                        "Player ids are hashed. Takes effect on the next server start.")
+                .define("enabled", false);
+        TRACE_MAX_FILE_SIZE_MB = builder
+                .comment("Size in MiB after which a new trace file is started.")
+                .defineInRange("max_file_size_mb", 64, 1, 4096);
+        TRACE_MAX_FILES = builder
+                .comment("Number of trace files kept; older ones are deleted.")
+                .defineInRange("max_files", 8, 1, 1024);
+        TRACE_BUFFER_SIZE = builder
+                .comment("Number of checks buffered in memory before further ones are dropped.")
+                .defineInRange("buffer_size", 65536, 1024, 1 << 24);
+        builder.pop();
+
+        builder.push("audit");
+        AUDIT_ENABLED = builder
+                .comment("Record every change made through /sp commands into simpleperms/audit, see /sp history.",
+                        "Takes effect on the next server start.")
+                .define("enabled", true);
+        AUDIT_SEGMENT_ENTRIES = builder
+                .comment("Number of entries after which a new audit log segment is started.")
+                .defineInRange("segment_entries", 65536, 16, 1 << 24);
+        AUDIT_HISTORY_LIMIT = builder
+                .comment("Maximum number of entries /sp history looks up.")
+                .defineInRange("history_limit", 1000, 1, 100000);
+        builder.pop();
+
+        builder.push("http");
+        HTTP_ENABLED = builder
+                .comment("Serve groups, members, effective permissions and stats as read-only JSON for dashboards.",
+                        "There is no authentication, so only bind it to addresses trusted clients alone can reach.",
+                        "Takes effect on the next server start.")
+                .define("enabled", false);
+        HTTP_HOST = builder
+                .comment("Address to listen on.")
+                .define("host", "127.0.0.1");
+        HTTP_PORT = builder
+                .comment("Port to listen on.")
+                .defineInRange("port", 8765, 1, 65535);
+        HTTP_THREADS = builder
+                .comment("Number of threads answering requests.")
+                .defineInRange("threads", 2, 1, 16);
+        builder.pop();
+
+        builder.push("replication");
+        REPLICATION_ROLE = builder
+                .comment("Share one data repo between servers on this machine. The authority streams every change",
+                        "to its followers over a localhost socket. Commands changing the repo are refused on followers,",
+                        "make changes on the authority instead. Takes effect on the next server start.")
+                .defineInList("role", "none", Arrays.asList("none", "authority", "follower"));
+        REPLICATION_PORT = builder
+                .comment("Localhost port the authority listens on and followers connect to.")
+                .defineInRange("port", 8766, 1, 65535);
+        REPLICATION_BACKLOG = builder
+                .comment("Number of latest changes the authority keeps for followers catching up after a reconnect.",
+                        "Followers further behind receive the whole repo instead.")
+                .defineInRange("backlog", 8192, 16, 1 << 20);
+        REPLICATION_SECRET = builder
+                .comment("Secret the authority and its followers prove to each other they know, so that other",
+                        "processes on this machine can neither read the repo nor pose as the authority.",
+                        "Must be the same on every server, and replication does not start while it is empty.")
+                .define("secret", "");
+        builder.pop();
+
+        SPEC = builder.build();
+    }
+
+    private SimplePermissionConfig() {
+    }
+}
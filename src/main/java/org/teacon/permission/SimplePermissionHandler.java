@@ -1,18 +1,32 @@
 package org.teacon.permission;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.mojang.authlib.GameProfile;
 
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.text.TranslationTextComponent;
 import net.minecraftforge.fml.server.ServerLifecycleHooks;
 import net.minecraftforge.server.permission.DefaultPermissionLevel;
 import net.minecraftforge.server.permission.IPermissionHandler;
 import net.minecraftforge.server.permission.context.IContext;
+import net.minecraftforge.server.permission.context.PlayerContext;
+import org.teacon.permission.jfr.PermissionEvents;
+import org.teacon.permission.repo.CompiledGroup;
+import org.teacon.permission.repo.NodeCatalogue;
+import org.teacon.permission.trace.TraceRecorder;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -30,13 +44,62 @@ public final class SimplePermissionHandler implements IPermissionHandler {
 
     private final Set<UUID> verboseList = ConcurrentHashMap.newKeySet();
 
+    private final LongAdder checkCount = new LongAdder();
+
+    /**
+     * Number of checks delegated to {@link #parent} right away because no
+     * group configures the node.
+     */
+    private final LongAdder shortCircuitCount = new LongAdder();
+
+    /**
+     * Nodes registered with a {@link DefaultPermissionLevel}, whose results
+     * from {@link #parent} depend on nothing but the player's op level.
+     */
+    private final Set<String> levelledNodes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Op levels of online players as of the last {@link #checkOpLevels}, used
+     * to find out whose memoized results went stale.
+     */
+    private final Map<UUID, Integer> opLevels = new ConcurrentHashMap<>();
+
+    @Nullable
+    private final DelegatedResultMemo memo;
+
+    @Nullable
+    private final CommandPermissionCache commandCache;
+
+    /**
+     * Catalogue of registered nodes for command suggestions, {@code null}
+     * until first needed and again after a node is registered.
+     */
+    @Nullable
+    private volatile NodeCatalogue nodeCatalogue;
+
+    @Nullable
+    private volatile TraceRecorder traceRecorder;
+
     public SimplePermissionHandler(IPermissionHandler previous) {
         this.parent = previous;
+        this.levelledNodes.addAll(previous.getRegisteredNodes());
+        this.memo = SimplePermissionConfig.PARENT_MEMO_ENABLED.get()
+                ? new DelegatedResultMemo(SimplePermissionConfig.PARENT_MEMO_MAX_ENTRIES.get()) : null;
+        this.commandCache = SimplePermissionConfig.COMMAND_CACHE_ENABLED.get()
+                ? new CommandPermissionCache(SimplePermissionConfig.COMMAND_CACHE_MAX_NODES.get()) : null;
     }
 
     @Override
     public void registerNode(String node, DefaultPermissionLevel level, String desc) {
         this.parent.registerNode(node, level, desc);
+        this.levelledNodes.add(node);
+        this.nodeCatalogue = null;
+        if (this.memo != null) {
+            this.memo.invalidate(node);
+        }
+        if (this.commandCache != null) {
+            this.commandCache.clear();
+        }
     }
 
     @Override
@@ -44,27 +107,324 @@ public final class SimplePermissionHandler implements IPermissionHandler {
         return this.parent.getRegisteredNodes();
     }
 
+    public NodeCatalogue getNodeCatalogue() {
+        NodeCatalogue catalogue = this.nodeCatalogue;
+        if (catalogue == null) {
+            this.nodeCatalogue = catalogue = NodeCatalogue.of(this.getRegisteredNodes());
+        }
+        return catalogue;
+    }
+
     @Override
     public boolean hasPermission(GameProfile profile, String node, @Nullable IContext context) {
+        this.checkCount.increment();
+        final Object event = PermissionEvents.beginCheck();
+        // Commands check with the player alone, which is all the cached results may depend on
+        final int index = this.commandCache != null && REPO != null
+                && (context == null || context.getClass() == PlayerContext.class) ? this.commandCache.indexOf(node) : -1;
+        final AtomicLongArray bits = index < 0 ? null : this.commandCache.bitsOf(profile.getId());
+        if (bits != null) {
+            final int state = this.commandCache.get(bits, index);
+            this.commandCache.count(state != CommandPermissionCache.UNKNOWN);
+            if (state != CommandPermissionCache.UNKNOWN) {
+                final boolean ret = CommandPermissionCache.isGranted(state);
+                final boolean fromRepo = CommandPermissionCache.isFromRepo(state);
+                this.report(profile, node, ret, fromRepo);
+                PermissionEvents.endCheck(event, node, profile.getId(), ret, fromRepo);
+                return ret;
+            }
+        }
+        final Boolean result;
         // TODO REPO can be null if someone call it on logical client
-        final Boolean result = REPO == null ? null : REPO.hasPermission(profile.getId(), node);
-        boolean ret = result == null ? this.parent.hasPermission(profile, node, context) : result;
+        if (REPO == null || !REPO.isConfigured(node)) {
+            this.shortCircuitCount.increment();
+            result = null;
+        } else {
+            result = REPO.hasPermission(profile.getId(), node);
+        }
+        final boolean ret = result == null ? this.delegate(profile, node, context) : result;
+        // Delegated results are kept only where the memo would keep them too
+        if (bits != null && (result != null || this.memo != null && this.isMemoizable(node, context))) {
+            this.commandCache.put(bits, index, ret, result != null);
+        }
+        this.report(profile, node, ret, result != null);
+        PermissionEvents.endCheck(event, node, profile.getId(), ret, result != null);
+        return ret;
+    }
+
+    /**
+     * Hits and misses of the caches during {@link #checkQuietly}, kept by the
+     * caller instead of the caches' own counters.
+     */
+    public static final class QuietCounters {
+        public long cacheHits;
+        public long cacheMisses;
+        public long memoHits;
+        public long memoMisses;
+    }
+
+    /**
+     * Check like {@link #hasPermission} with no context, looking into the
+     * same caches, but without filling them, counting, tracing or reporting
+     * the check. Resolves against the current snapshot with the op level
+     * given, so that it is safe to call off the server thread; the wrapped
+     * handler is not asked for the same reason. Meant for benchmarks.
+     *
+     * @param opLevel op level of the player, fetched on the server thread
+     * @return {@code null} where the wrapped handler would have been asked.
+     */
+    @Nullable
+    public Boolean checkQuietly(GameProfile profile, String node, int opLevel, QuietCounters counters) {
+        final UUID id = profile.getId();
+        // Nodes are not numbered here, which would take slots from the nodes of commands
+        final int index = this.commandCache != null && REPO != null ? this.commandCache.indexIfPresent(node) : -1;
+        if (index >= 0) {
+            final AtomicLongArray bits = this.commandCache.bitsIfPresent(id);
+            final int state = bits == null ? CommandPermissionCache.UNKNOWN : this.commandCache.get(bits, index);
+            if (state != CommandPermissionCache.UNKNOWN) {
+                ++counters.cacheHits;
+                return CommandPermissionCache.isGranted(state);
+            }
+            ++counters.cacheMisses;
+        }
+        final Boolean result = REPO == null || !REPO.isConfigured(node) ? null : REPO.snapshot().hasPermission(id, node, opLevel);
+        if (result != null || this.memo == null || !this.isMemoizable(node, null)) {
+            return result;
+        }
+        final Boolean memoized = this.memo.peek(id, node);
+        if (memoized == null) {
+            ++counters.memoMisses;
+        } else {
+            ++counters.memoHits;
+        }
+        return memoized;
+    }
+
+    /**
+     * Check many nodes of one player at once, resolving the player's group
+     * only once.
+     *
+     * @return bit {@code i} set if the player holds {@code nodes[i]}.
+     */
+    public BitSet hasPermissions(GameProfile profile, String[] nodes, @Nullable IContext context) {
+        this.checkCount.add(nodes.length);
+        final BitSet ret = new BitSet(nodes.length);
+        final CompiledGroup group = REPO == null ? null : REPO.resolve(profile.getId());
+        for (int i = 0; i < nodes.length; ++i) {
+            final Boolean result;
+            if (group == null || !REPO.isConfigured(nodes[i])) {
+                this.shortCircuitCount.increment();
+                result = null;
+            } else {
+                result = group.hasPermission(nodes[i]);
+            }
+            final boolean granted = result == null ? this.delegate(profile, nodes[i], context) : result;
+            ret.set(i, granted);
+            this.report(profile, nodes[i], granted, result != null);
+        }
+        return ret;
+    }
+
+    /**
+     * Find the online players holding a node. Players are grouped by their
+     * compiled group first, so the node is looked up once per distinct group;
+     * only players whose group leaves it unset are asked one by one.
+     */
+    public List<ServerPlayerEntity> playersWith(MinecraftServer server, String node) {
+        final List<ServerPlayerEntity> players = server.getPlayerList().getPlayers();
+        this.checkCount.add(players.size());
+        final Map<CompiledGroup, List<ServerPlayerEntity>> byGroup = new IdentityHashMap<>();
+        final List<ServerPlayerEntity> unset = new ArrayList<>();
+        if (REPO == null || !REPO.isConfigured(node)) {
+            this.shortCircuitCount.add(players.size());
+            unset.addAll(players);
+        } else {
+            for (ServerPlayerEntity player : players) {
+                byGroup.computeIfAbsent(REPO.resolve(player.getUUID()), g -> new ArrayList<>()).add(player);
+            }
+        }
+        final List<ServerPlayerEntity> ret = new ArrayList<>();
+        for (Map.Entry<CompiledGroup, List<ServerPlayerEntity>> entry : byGroup.entrySet()) {
+            final Boolean result = entry.getKey().hasPermission(node);
+            if (result == null) {
+                unset.addAll(entry.getValue());
+                continue;
+            }
+            for (ServerPlayerEntity player : entry.getValue()) {
+                if (result) {
+                    ret.add(player);
+                }
+                this.report(player.getGameProfile(), node, result, true);
+            }
+        }
+        for (ServerPlayerEntity player : unset) {
+            final boolean granted = this.delegate(player.getGameProfile(), node, new PlayerContext(player));
+            if (granted) {
+                ret.add(player);
+            }
+            this.report(player.getGameProfile(), node, granted, false);
+        }
+        return ret;
+    }
+
+    private void report(GameProfile profile, String node, boolean ret, boolean fromRepo) {
+        final TraceRecorder recorder = this.traceRecorder;
+        if (recorder != null) {
+            recorder.record(node, profile.getId(), ret, fromRepo);
+        }
         if (!verboseList.isEmpty()) {
+            final Object event = PermissionEvents.beginVerboseBroadcast();
             verboseList.stream().map(ServerLifecycleHooks.getCurrentServer().getPlayerList()::getPlayer)
                     .filter(Objects::nonNull)
                     .forEach(p -> p.displayClientMessage(
                             new TranslationTextComponent("command.simple_perms.info.verbose", p.getName().getString(), node, ret),
                             false)
                     );
+            PermissionEvents.endVerboseBroadcast(event, node, ret, verboseList.size());
+        }
+    }
+
+    private boolean delegate(GameProfile profile, String node, @Nullable IContext context) {
+        final boolean memoizable = this.memo != null && this.isMemoizable(node, context);
+        if (memoizable) {
+            final Boolean memoized = this.memo.get(profile.getId(), node);
+            if (memoized != null) {
+                return memoized;
+            }
+        }
+        final boolean ret = this.parent.hasPermission(profile, node, context);
+        if (memoizable) {
+            this.memo.put(profile.getId(), node, ret);
         }
         return ret;
     }
 
+    /**
+     * @return true if the wrapped handler's result depends on nothing but the
+     * player's op level.
+     */
+    private boolean isMemoizable(String node, @Nullable IContext context) {
+        // Contexts carrying more than the player (positions, targets, ...) may change the answer
+        return this.levelledNodes.contains(node) && (context == null || context.getClass() == PlayerContext.class);
+    }
+
+    /**
+     * Drop cached results of players whose op level changed since the last
+     * call, and let the repo and the command tree catch up. Must be called
+     * on the server thread.
+     *
+     * @return the players whose op level changed, whose command tree vanilla
+     * may have sent with results of the old op level.
+     */
+    public List<UUID> checkOpLevels(MinecraftServer server) {
+        final List<UUID> changed = new ArrayList<>();
+        for (ServerPlayerEntity player : server.getPlayerList().getPlayers()) {
+            final UUID id = player.getUUID();
+            final int opLevel = server.getProfilePermissions(player.getGameProfile());
+            final Integer previous = this.opLevels.put(id, opLevel);
+            // Results cached before the first observation may be of another op level too
+            if (previous == null || previous != opLevel) {
+                if (this.memo != null) {
+                    this.memo.invalidate(id);
+                }
+                if (this.commandCache != null) {
+                    this.commandCache.invalidate(id);
+                }
+                if (previous != null) {
+                    // Players without an assigned group may fall back to another group now
+                    if (REPO != null) {
+                        REPO.opLevelChanged(id);
+                    }
+                    changed.add(id);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Called right after /op or /deop, so that their targets do not get
+     * results of their old op level until the next {@link #checkOpLevels}.
+     * Nothing watches the op level of offline players, so their cached
+     * results are dropped as well. Must be called on the server thread.
+     *
+     * @return the players whose op level changed, like {@link #checkOpLevels}.
+     */
+    public List<UUID> opsChanged(MinecraftServer server) {
+        final List<UUID> changed = this.checkOpLevels(server);
+        if (this.memo != null) {
+            this.memo.retain(this.opLevels.keySet());
+        }
+        if (this.commandCache != null) {
+            this.commandCache.retain(this.opLevels.keySet());
+        }
+        return changed;
+    }
+
+    /**
+     * Forget everything known about the given player, e.g. when they log in
+     * or out.
+     */
+    public void invalidate(UUID id) {
+        this.opLevels.remove(id);
+        if (this.memo != null) {
+            this.memo.invalidate(id);
+        }
+        if (this.commandCache != null) {
+            this.commandCache.invalidate(id);
+        }
+    }
+
     @Override
     public String getNodeDescription(String node) {
         return this.parent.getNodeDescription(node);
     }
 
+    public void setTraceRecorder(@Nullable TraceRecorder recorder) {
+        this.traceRecorder = recorder;
+    }
+
+    @Nullable
+    public TraceRecorder getTraceRecorder() {
+        return this.traceRecorder;
+    }
+
+    public long getCheckCount() {
+        return this.checkCount.sum();
+    }
+
+    public long getShortCircuitCount() {
+        return this.shortCircuitCount.sum();
+    }
+
+    public long getMemoHitCount() {
+        return this.memo == null ? 0L : this.memo.getHitCount();
+    }
+
+    public long getMemoMissCount() {
+        return this.memo == null ? 0L : this.memo.getMissCount();
+    }
+
+    /**
+     * @return the cache to register as repo listener, {@code null} if disabled.
+     */
+    @Nullable
+    CommandPermissionCache getCommandCache() {
+        return this.commandCache;
+    }
+
+    public long getCommandCacheHitCount() {
+        return this.commandCache == null ? 0L : this.commandCache.getHitCount();
+    }
+
+    public long getCommandCacheMissCount() {
+        return this.commandCache == null ? 0L : this.commandCache.getMissCount();
+    }
+
+    public int getCommandCacheNodeCount() {
+        return this.commandCache == null ? 0 : this.commandCache.getNodeCount();
+    }
+
     public void verbose(UUID uuid) {
         verboseList.add(uuid);
     }
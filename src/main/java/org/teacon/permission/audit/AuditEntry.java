@@ -0,0 +1,83 @@
+package org.teacon.permission.audit;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * One change made through a command. Targets are strings such as
+ * {@code group:admin} or {@code player:<uuid>}; a change may concern several,
+ * e.g. moving a player concerns the player and both groups.
+ */
+@Immutable
+public final class AuditEntry {
+
+    private final long time;
+    private final String actor;
+    private final String action;
+    private final List<String> targets;
+    @Nullable
+    private final String key;
+    @Nullable
+    private final String before;
+    @Nullable
+    private final String after;
+
+    public AuditEntry(long time, String actor, String action, List<String> targets,
+                      @Nullable String key, @Nullable String before, @Nullable String after) {
+        this.time = time;
+        this.actor = actor;
+        this.action = action;
+        this.targets = Collections.unmodifiableList(targets);
+        this.key = key;
+        this.before = before;
+        this.after = after;
+    }
+
+    public static String group(String name) {
+        return "group:" + name;
+    }
+
+    public static String player(Object id) {
+        return "player:" + id;
+    }
+
+    /**
+     * @return milliseconds since the epoch.
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    public String getActor() {
+        return this.actor;
+    }
+
+    public String getAction() {
+        return this.action;
+    }
+
+    public List<String> getTargets() {
+        return this.targets;
+    }
+
+    /**
+     * @return what was changed on the targets, e.g. a node or a meta key.
+     */
+    @Nullable
+    public String getKey() {
+        return this.key;
+    }
+
+    @Nullable
+    public String getBefore() {
+        return this.before;
+    }
+
+    @Nullable
+    public String getAfter() {
+        return this.after;
+    }
+}
@@ -0,0 +1,271 @@
+package org.teacon.permission.audit;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Append-only log of {@link AuditEntry audit entries}, one JSON object per
+ * line. Callers only enqueue; a background thread writes entries in
+ * batches. Entries go to numbered segments of bounded length, each with a
+ * small index of its time range and targets, so that a history query only
+ * reads the segments mentioning its target.
+ */
+@ThreadSafe
+public final class AuditLog {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * Index of one segment. Mutated only by the writer thread, and only for
+     * the segment being written.
+     */
+    private static final class SegmentIndex {
+        volatile long first = Long.MAX_VALUE;
+        volatile long last = Long.MIN_VALUE;
+        volatile int count;
+        final Set<String> targets = ConcurrentHashMap.newKeySet();
+
+        void add(AuditEntry entry) {
+            this.first = Math.min(this.first, entry.getTime());
+            this.last = Math.max(this.last, entry.getTime());
+            this.targets.addAll(entry.getTargets());
+            ++this.count;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentEntries;
+
+    private final BlockingQueue<AuditEntry> queue = new LinkedBlockingQueue<>();
+
+    private final NavigableMap<Integer, SegmentIndex> segments = new ConcurrentSkipListMap<>();
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    // Only touched by the writer thread
+    private BufferedWriter out;
+    private int currentSegment;
+
+    public AuditLog(Path directory, int segmentEntries) throws IOException {
+        this.directory = directory;
+        this.segmentEntries = segmentEntries;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                final Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    final int segment = Integer.parseInt(matcher.group(1));
+                    this.segments.put(segment, this.readIndex(segment, false));
+                }
+            }
+        }
+        if (!this.segments.isEmpty()) {
+            // Entries written right before a crash may be missing from the index
+            this.segments.put(this.segments.lastKey(), this.readIndex(this.segments.lastKey(), true));
+        }
+        this.currentSegment = this.segments.isEmpty() ? 0 : this.segments.lastKey();
+        this.writer = new Thread(this::writeLoop, "SimplePerms-Audit-Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue an entry for writing. Never blocks. Entries appended once the
+     * log is closed are dropped with a warning, as nothing would write them.
+     */
+    public void append(AuditEntry entry) {
+        if (!this.running || !this.queue.offer(entry)) {
+            LOGGER.warn("Dropped audit entry {} on {}", entry.getAction(), entry.getTargets());
+        } else if (!this.running && this.queue.remove(entry)) {
+            // Closed meanwhile, and the writer may have stopped before seeing it
+            LOGGER.warn("Dropped audit entry {} on {}", entry.getAction(), entry.getTargets());
+        }
+    }
+
+    /**
+     * Write out what is queued and stop. Entries appended afterwards are
+     * not written.
+     */
+    public void close() {
+        this.running = false;
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Find the latest entries concerning a target, newest first. Reads
+     * files, so call it off the server thread. Entries still queued for
+     * writing are not included.
+     */
+    public List<AuditEntry> history(String target, int limit) throws IOException {
+        final List<AuditEntry> result = new ArrayList<>();
+        for (Map.Entry<Integer, SegmentIndex> segment : this.segments.descendingMap().entrySet()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (!segment.getValue().targets.contains(target)) {
+                continue;
+            }
+            final List<AuditEntry> matches = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(this.segmentPath(segment.getKey()), StandardCharsets.UTF_8)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    final AuditEntry entry = parse(line);
+                    if (entry != null && entry.getTargets().contains(target)) {
+                        matches.add(entry);
+                    }
+                }
+            }
+            for (int i = matches.size() - 1; i >= 0 && result.size() < limit; --i) {
+                result.add(matches.get(i));
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    private static AuditEntry parse(String line) {
+        try {
+            return GSON.fromJson(line, AuditEntry.class);
+        } catch (JsonParseException e) {
+            // The last line of the segment being written may be incomplete
+            return null;
+        }
+    }
+
+    private void writeLoop() {
+        final List<AuditEntry> batch = new ArrayList<>();
+        try {
+            while (this.running || !this.queue.isEmpty()) {
+                final AuditEntry first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                this.queue.drainTo(batch, MAX_BATCH - 1);
+                for (AuditEntry entry : batch) {
+                    this.write(entry);
+                }
+                if (!batch.isEmpty()) {
+                    this.out.flush();
+                    this.writeIndex(this.currentSegment);
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to write audit log, {} entries lost", batch.size() + this.queue.size(), e);
+        } catch (InterruptedException e) {
+            LOGGER.error("Audit log writer interrupted, {} entries lost", batch.size() + this.queue.size(), e);
+        } finally {
+            this.closeSegment();
+        }
+    }
+
+    private void write(AuditEntry entry) throws IOException {
+        SegmentIndex index = this.segments.get(this.currentSegment);
+        if (this.out == null || index == null || index.count >= this.segmentEntries) {
+            if (index != null && index.count >= this.segmentEntries) {
+                this.closeSegment();
+                ++this.currentSegment;
+            }
+            this.out = Files.newBufferedWriter(this.segmentPath(this.currentSegment), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            index = this.segments.computeIfAbsent(this.currentSegment, k -> new SegmentIndex());
+        }
+        this.out.write(GSON.toJson(entry));
+        this.out.newLine();
+        index.add(entry);
+    }
+
+    private void closeSegment() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+                this.writeIndex(this.currentSegment);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close audit log segment", e);
+            }
+            this.out = null;
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return this.directory.resolve(String.format("segment-%08d.log", segment));
+    }
+
+    private Path indexPath(int segment) {
+        return this.directory.resolve(String.format("segment-%08d.idx", segment));
+    }
+
+    private void writeIndex(int segment) throws IOException {
+        final SegmentIndex index = this.segments.get(segment);
+        if (index != null) {
+            final Path temp = this.indexPath(segment).resolveSibling(this.indexPath(segment).getFileName() + ".tmp");
+            Files.write(temp, GSON.toJson(index).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, this.indexPath(segment), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Read the index of a segment, or rebuild it from the segment if it is
+     * missing or damaged, e.g. after a crash.
+     */
+    private SegmentIndex readIndex(int segment, boolean rebuild) throws IOException {
+        final Path indexPath = this.indexPath(segment);
+        if (!rebuild && Files.exists(indexPath)) {
+            try (Reader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+                final SegmentIndex index = GSON.fromJson(reader, SegmentIndex.class);
+                if (index != null) {
+                    return index;
+                }
+            } catch (JsonParseException e) {
+                LOGGER.warn("Rebuilding damaged audit index {}", indexPath);
+            }
+        }
+        final SegmentIndex index = new SegmentIndex();
+        try (BufferedReader reader = Files.newBufferedReader(this.segmentPath(segment), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final AuditEntry entry = parse(line);
+                if (entry != null) {
+                    index.add(entry);
+                }
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,107 @@
+package org.teacon.permission.command;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.brigadier.Command;
+import net.minecraft.command.CommandSource;
+import net.minecraft.util.text.ITextComponent;
+import net.minecraft.util.text.TranslationTextComponent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.teacon.permission.SimplePermissionConfig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Computes the output of read-only commands in the background, so that
+ * listing a large group does not stall the tick. Queries only read the
+ * repo, whose snapshots are immutable and whose other state is safe to
+ * read from any thread; the finished message is sent on the server thread.
+ * <p>
+ * At most {@link SimplePermissionConfig#QUERY_CONCURRENCY} queries run at
+ * once. A query that takes longer than the timeout is answered with an
+ * error and its result dropped, but it keeps its slot until it actually
+ * finishes, so that repeating a slow command cannot pile up work.
+ */
+final class CommandQueries {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("SimplePerms-Command-%d").setDaemon(true).build());
+
+    private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("SimplePerms-Command-Timeout").setDaemon(true).build());
+
+    private static final AtomicInteger RUNNING = new AtomicInteger();
+
+    private CommandQueries() {
+    }
+
+    /**
+     * Must be called on the server thread.
+     *
+     * @param query computes the message to send, off the server thread
+     * @return the result of the command, 0 if there are too many queries
+     * running already.
+     */
+    static int run(CommandSource source, Supplier<ITextComponent> query) {
+        return run(source, query, Function.identity());
+    }
+
+    /**
+     * Like {@link #run(CommandSource, Supplier)}, for results that need
+     * state only safe to read on the server thread to be turned into text.
+     *
+     * @param query  computes the result, off the server thread
+     * @param render turns the result into the message to send, on the server thread
+     */
+    static <T> int run(CommandSource source, Supplier<T> query, Function<T, ITextComponent> render) {
+        if (RUNNING.incrementAndGet() > SimplePermissionConfig.QUERY_CONCURRENCY.get()) {
+            RUNNING.decrementAndGet();
+            source.sendFailure(new TranslationTextComponent("command.simple_perms.error.query_busy"));
+            return 0;
+        }
+        // Whichever of the result and the timeout comes first answers the source
+        final AtomicBoolean answered = new AtomicBoolean();
+        final int timeout = SimplePermissionConfig.QUERY_TIMEOUT_SECONDS.get();
+        final ScheduledFuture<?> timer = TIMEOUTS.schedule(() -> {
+            if (answered.compareAndSet(false, true)) {
+                source.getServer().execute(() -> source.sendFailure(
+                        new TranslationTextComponent("command.simple_perms.error.query_timeout", timeout)));
+            }
+        }, timeout, TimeUnit.SECONDS);
+        EXECUTOR.execute(() -> {
+            try {
+                final T result = query.get();
+                if (answered.compareAndSet(false, true)) {
+                    timer.cancel(false);
+                    source.getServer().execute(() -> {
+                        try {
+                            source.sendSuccess(render.apply(result), false);
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Failed to run command query", e);
+                            source.sendFailure(new TranslationTextComponent("command.simple_perms.error.query"));
+                        }
+                    });
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Failed to run command query", e);
+                if (answered.compareAndSet(false, true)) {
+                    timer.cancel(false);
+                    source.getServer().execute(() -> source.sendFailure(new TranslationTextComponent("command.simple_perms.error.query")));
+                }
+            } finally {
+                RUNNING.decrementAndGet();
+            }
+        });
+        return Command.SINGLE_SUCCESS;
+    }
+}
@@ -0,0 +1,114 @@
+package org.teacon.permission.command;
+
+import net.minecraft.command.CommandSource;
+import net.minecraft.util.Util;
+import net.minecraft.util.text.IFormattableTextComponent;
+import net.minecraft.util.text.ITextComponent;
+import net.minecraft.util.text.TextFormatting;
+import net.minecraft.util.text.TranslationTextComponent;
+import net.minecraft.util.text.event.ClickEvent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.teacon.permission.SimplePermissionConfig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.teacon.permission.SimplePermission.REPO;
+
+/**
+ * Renders list command results either as a single chat message per page,
+ * or as a plain text file under {@code simpleperms/exports}.
+ */
+final class PagedOutput {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    private static final DateTimeFormatter EXPORT_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private PagedOutput() {
+    }
+
+    /**
+     * @param page        1-based page number, clamped to the available pages
+     * @param pageCommand command showing another page once the page number is appended
+     * @param footer      line appended after the entries, e.g. a total count
+     */
+    static <T> void sendPage(CommandSource source, List<T> entries, int page, String pageCommand,
+                             Function<T, ITextComponent> renderer, ITextComponent footer) {
+        source.sendSuccess(page(entries, page, pageCommand, renderer, footer), false);
+    }
+
+    /**
+     * Like {@link #sendPage}, but only renders the page, so that it can be
+     * done off the server thread.
+     */
+    static <T> ITextComponent page(List<T> entries, int page, String pageCommand,
+                                   Function<T, ITextComponent> renderer, ITextComponent footer) {
+        final int pageSize = SimplePermissionConfig.PAGE_SIZE.get();
+        final int pages = Math.max(1, (entries.size() + pageSize - 1) / pageSize);
+        final int current = Math.min(Math.max(page, 1), pages);
+
+        final IFormattableTextComponent message = new TranslationTextComponent("command.simple_perms.info.page", current, pages);
+        for (T entry : entries.subList((current - 1) * pageSize, Math.min(current * pageSize, entries.size()))) {
+            message.append("\n").append(renderer.apply(entry));
+        }
+        message.append("\n").append(footer);
+        if (pages > 1) {
+            message.append("\n")
+                    .append(navigation("command.simple_perms.info.page.previous", current > 1, pageCommand, current - 1))
+                    .append(" ")
+                    .append(navigation("command.simple_perms.info.page.next", current < pages, pageCommand, current + 1));
+        }
+        return message;
+    }
+
+    private static ITextComponent navigation(String key, boolean enabled, String pageCommand, int page) {
+        final IFormattableTextComponent text = new TranslationTextComponent(key);
+        if (!enabled) {
+            return text.withStyle(TextFormatting.DARK_GRAY);
+        }
+        final ClickEvent click = new ClickEvent(ClickEvent.Action.RUN_COMMAND, pageCommand + " " + page);
+        return text.withStyle(style -> style.withColor(TextFormatting.AQUA).withClickEvent(click));
+    }
+
+    /**
+     * Write all lines to a new file under {@code simpleperms/exports} on a
+     * background thread, then tell the command source where it went. Never
+     * overwrites an earlier export, even one made in the same second.
+     */
+    static void export(CommandSource source, String name, List<String> lines) {
+        final String baseName = name.replaceAll("[^A-Za-z0-9_.+-]", "_") + "-" + LocalDateTime.now().format(EXPORT_TIMESTAMP);
+        final Path directory = REPO.getRoot().resolve("exports");
+        Util.backgroundExecutor().execute(() -> {
+            Path target = directory.resolve(baseName + ".txt");
+            try {
+                Files.createDirectories(directory);
+                for (int suffix = 1; ; ++suffix) {
+                    try {
+                        Files.write(target, lines, StandardCharsets.UTF_8, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                        break;
+                    } catch (FileAlreadyExistsException e) {
+                        target = directory.resolve(baseName + "-" + suffix + ".txt");
+                    }
+                }
+                final Path written = target;
+                source.getServer().execute(() -> source.sendSuccess(
+                        new TranslationTextComponent("command.simple_perms.info.export", lines.size(), written.toString()), false));
+            } catch (IOException e) {
+                LOGGER.error("Failed to export to {}", target, e);
+                final Path failed = target;
+                source.getServer().execute(() -> source.sendFailure(
+                        new TranslationTextComponent("command.simple_perms.error.export", failed.toString())));
+            }
+        });
+    }
+}
@@ -0,0 +1,247 @@
+package org.teacon.permission.command;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.command.CommandSource;
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.util.text.TranslationTextComponent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.teacon.permission.SimplePermissionHandler;
+import org.teacon.permission.repo.CompiledGroup;
+import org.teacon.permission.repo.RepoSnapshot;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.teacon.permission.SimplePermission.REPO;
+
+/**
+ * Synthetic permission checks against the live repo, run on a thread of
+ * its own so that the server keeps ticking. The workload is drawn from
+ * the current snapshot when the benchmark starts: online players, offline
+ * players assigned to the groups with the longest inheritance chains, and
+ * random unassigned players, checking a few hot nodes, any configured
+ * node, or nodes no group configures. Op levels are fetched on the server
+ * thread up front, and checks go through
+ * {@link SimplePermissionHandler#checkQuietly}, which resolves against the
+ * snapshot and only reads the caches of the handler: the benchmark leaves
+ * neither entries nor hits behind in them, and traces or reports nothing.
+ */
+final class PermissionBenchmark {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    static final int MAX_OPERATIONS = 1_000_000;
+
+    private static final String UNSET_NODE = "simple_perms.bench.unset";
+
+    private static final int HOT_NODES = 16;
+    private static final int DEEP_PLAYERS = 256;
+    private static final int RANDOM_PLAYERS = 256;
+
+    /**
+     * Only one benchmark runs at a time, so that they do not skew each other.
+     */
+    private static final AtomicBoolean RUNNING = new AtomicBoolean();
+
+    private final CommandSource source;
+
+    private final SimplePermissionHandler handler;
+
+    private final GameProfile[] players;
+
+    private final String[] nodes;
+
+    private final int[] opLevels;
+
+    /**
+     * Size of each part of the workload, for the start message.
+     */
+    private final Object[] workload;
+
+    private PermissionBenchmark(CommandSource source, SimplePermissionHandler handler, int operations) {
+        this.source = source;
+        this.handler = handler;
+        final Random random = new Random();
+        final RepoSnapshot snapshot = REPO.snapshot();
+
+        final List<GameProfile> online = new ArrayList<>();
+        final Set<UUID> onlineIds = new HashSet<>();
+        for (ServerPlayerEntity player : source.getServer().getPlayerList().getPlayers()) {
+            online.add(player.getGameProfile());
+            onlineIds.add(player.getUUID());
+        }
+        // Offline players of the deepest groups, who take the longest chains into account
+        final List<Map.Entry<UUID, String>> assigned = new ArrayList<>(snapshot.getUsers().entrySet());
+        assigned.removeIf(e -> onlineIds.contains(e.getKey()));
+        assigned.sort(Comparator.comparingInt((Map.Entry<UUID, String> e) -> snapshot.getGroup(e.getValue()).getChain().size()).reversed());
+        final List<GameProfile> deep = new ArrayList<>();
+        int depth = 0;
+        for (Map.Entry<UUID, String> entry : assigned.subList(0, Math.min(DEEP_PLAYERS, assigned.size()))) {
+            deep.add(new GameProfile(entry.getKey(), null));
+            depth = Math.max(depth, snapshot.getGroup(entry.getValue()).getChain().size());
+        }
+        final List<GameProfile> unassigned = new ArrayList<>();
+        for (int i = 0; i < RANDOM_PLAYERS; ++i) {
+            unassigned.add(new GameProfile(new UUID(random.nextLong(), random.nextLong()), null));
+        }
+
+        final Set<String> configuredSet = new HashSet<>();
+        for (CompiledGroup group : snapshot.getGroups().values()) {
+            configuredSet.addAll(group.getPermissions().keySet());
+        }
+        final List<String> configured = new ArrayList<>(configuredSet);
+        Collections.shuffle(configured, random);
+        final List<String> hot = configured.subList(0, Math.min(HOT_NODES, configured.size()));
+        final List<String> unconfigured = new ArrayList<>(handler.getRegisteredNodes());
+        unconfigured.removeAll(configuredSet);
+        // Also makes sure there is a node to check at all
+        unconfigured.add(UNSET_NODE);
+
+        // Only the server thread may look up op levels
+        final Map<UUID, Integer> levels = new HashMap<>();
+        for (List<GameProfile> profiles : Arrays.asList(online, deep, unassigned)) {
+            for (GameProfile profile : profiles) {
+                levels.put(profile.getId(), source.getServer().getProfilePermissions(profile));
+            }
+        }
+
+        this.players = new GameProfile[operations];
+        this.nodes = new String[operations];
+        this.opLevels = new int[operations];
+        for (int i = 0; i < operations; ++i) {
+            // 40% online, 30% deep, 30% unassigned; 50% hot, 35% any configured, 15% unconfigured
+            final int who = random.nextInt(10);
+            this.players[i] = pick(random, who < 4 ? online : who < 7 ? deep : unassigned, unassigned);
+            final int what = random.nextInt(20);
+            this.nodes[i] = pick(random, what < 10 ? hot : what < 17 ? configured : unconfigured, unconfigured);
+            this.opLevels[i] = levels.get(this.players[i].getId());
+        }
+        this.workload = new Object[]{operations, online.size(), deep.size(), depth, unassigned.size(),
+                hot.size(), configured.size(), unconfigured.size()};
+    }
+
+    private static <T> T pick(Random random, List<T> list, List<T> otherwise) {
+        final List<T> from = list.isEmpty() ? otherwise : list;
+        return from.get(random.nextInt(from.size()));
+    }
+
+    /**
+     * Must be called on the server thread.
+     *
+     * @return false if a benchmark is running already.
+     */
+    static boolean start(CommandSource source, SimplePermissionHandler handler, int operations) {
+        if (!RUNNING.compareAndSet(false, true)) {
+            return false;
+        }
+        final PermissionBenchmark benchmark;
+        try {
+            benchmark = new PermissionBenchmark(source, handler, operations);
+        } catch (RuntimeException e) {
+            RUNNING.set(false);
+            throw e;
+        }
+        source.sendSuccess(new TranslationTextComponent("command.simple_perms.info.bench.started", benchmark.workload), false);
+        final Thread thread = new Thread(benchmark::run, "SimplePerms-Bench");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private void run() {
+        try {
+            this.measure();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to run permission benchmark", e);
+            this.source.getServer().execute(() -> this.source.sendFailure(new TranslationTextComponent("command.simple_perms.error.bench")));
+        } finally {
+            RUNNING.set(false);
+        }
+    }
+
+    private void measure() {
+        final int operations = this.nodes.length;
+        // Warm up the JIT on the same workload
+        final SimplePermissionHandler.QuietCounters warmup = new SimplePermissionHandler.QuietCounters();
+        for (int i = 0; i < operations; ++i) {
+            this.handler.checkQuietly(this.players[i], this.nodes[i], this.opLevels[i], warmup);
+        }
+        final long overhead = timerOverhead();
+        final long[] latencies = new long[operations];
+        final SimplePermissionHandler.QuietCounters counters = new SimplePermissionHandler.QuietCounters();
+        int delegated = 0;
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final boolean countAllocation = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled();
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = countAllocation ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId) : 0L;
+        final long start = System.nanoTime();
+        for (int i = 0; i < operations; ++i) {
+            final long before = System.nanoTime();
+            final Boolean result = this.handler.checkQuietly(this.players[i], this.nodes[i], this.opLevels[i], counters);
+            latencies[i] = System.nanoTime() - before;
+            if (result == null) {
+                ++delegated;
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = countAllocation ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId) - allocatedBefore : -1L;
+
+        Arrays.sort(latencies);
+        final String mean = String.format("%.1f", (double) elapsed / operations);
+        final String allocation = allocated < 0L ? "?" : String.format("%.2f", (double) allocated / operations);
+        final String cacheRate = rate(counters.cacheHits, counters.cacheMisses);
+        final String memoRate = rate(counters.memoHits, counters.memoMisses);
+        final String delegatedRate = String.format("%.2f", 100.0 * delegated / operations);
+        this.source.getServer().execute(() -> {
+            this.source.sendSuccess(new TranslationTextComponent("command.simple_perms.info.bench.latency", operations,
+                    elapsed / 1_000_000L, mean, percentile(latencies, overhead, 0.5), percentile(latencies, overhead, 0.9),
+                    percentile(latencies, overhead, 0.99), percentile(latencies, overhead, 0.999),
+                    Math.max(0L, latencies[operations - 1] - overhead)), false);
+            this.source.sendSuccess(new TranslationTextComponent("command.simple_perms.info.bench.allocation", allocation), false);
+            this.source.sendSuccess(new TranslationTextComponent("command.simple_perms.info.bench.caches",
+                    cacheRate, memoRate, delegatedRate), false);
+        });
+    }
+
+    /**
+     * @return the median cost of reading the clock, to take off each
+     * measured latency.
+     */
+    private static long timerOverhead() {
+        final long[] samples = new long[10_000];
+        for (int i = 0; i < samples.length; ++i) {
+            final long before = System.nanoTime();
+            samples[i] = System.nanoTime() - before;
+        }
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    private static long percentile(long[] sorted, long overhead, double quantile) {
+        final int index = Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1);
+        return Math.max(0L, sorted[Math.max(0, index)] - overhead);
+    }
+
+    /**
+     * @return hit rate in percent, or {@code -} if nothing was looked up.
+     */
+    private static String rate(long hits, long misses) {
+        return hits + misses == 0L ? "-" : String.format("%.2f", 100.0 * hits / (hits + misses));
+    }
+}
@@ -1,18 +1,24 @@
 package org.teacon.permission.command;
 
+import com.google.common.collect.MapDifference;
+import com.google.common.collect.Maps;
 import com.mojang.authlib.GameProfile;
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.BoolArgumentType;
+import com.mojang.brigadier.arguments.DoubleArgumentType;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.LongArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.exceptions.DynamicCommandExceptionType;
+import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
 import com.mojang.brigadier.tree.LiteralCommandNode;
 import it.unimi.dsi.fastutil.objects.ObjectArrays;
 import net.minecraft.command.CommandSource;
 import net.minecraft.command.Commands;
+import net.minecraft.command.ISuggestionProvider;
 import net.minecraft.command.arguments.ComponentArgument;
 import net.minecraft.command.arguments.GameProfileArgument;
 import net.minecraft.entity.player.ServerPlayerEntity;
@@ -21,6 +27,7 @@ import net.minecraft.util.Util;
 import net.minecraft.util.text.IFormattableTextComponent;
 import net.minecraft.util.text.ITextComponent;
 import net.minecraft.util.text.StringTextComponent;
+import net.minecraft.util.text.TextFormatting;
 import net.minecraft.util.text.TranslationTextComponent;
 import net.minecraft.world.GameType;
 import net.minecraftforge.server.permission.PermissionAPI;
@@ -28,17 +35,36 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.teacon.permission.PermissionNodes;
 import org.teacon.permission.SimplePermission;
+import org.teacon.permission.SimplePermissionConfig;
 import org.teacon.permission.SimplePermissionHandler;
+import org.teacon.permission.audit.AuditEntry;
+import org.teacon.permission.audit.AuditLog;
 import org.teacon.permission.command.arguments.GameTypeArgument;
 import org.teacon.permission.command.arguments.ParentArgumentType;
 import org.teacon.permission.command.arguments.PermissionNodeArgument;
 import org.teacon.permission.command.arguments.UserGroupArgument;
+import org.teacon.permission.repo.CompiledGroup;
+import org.teacon.permission.repo.MetaValue;
+import org.teacon.permission.repo.RepoSnapshot;
+
+import javax.annotation.Nullable;
 
 import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import static org.teacon.permission.SimplePermission.REPO;
 
@@ -49,9 +75,16 @@ public final class SimplePermissionCommand {
 
     private static final int NON_PLAYER_MINIMUM_LEVEL = 4;
 
+    private static final int DEFAULT_BENCH_OPERATIONS = 100_000;
+
+    private static final DateTimeFormatter HISTORY_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
     private static final DynamicCommandExceptionType PARENT_NOT_EXIST
             = new DynamicCommandExceptionType(o -> new TranslationTextComponent("command.simple_perms.error.invalid_parent", o));
 
+    private static final SimpleCommandExceptionType FOLLOWER_READ_ONLY
+            = new SimpleCommandExceptionType(new TranslationTextComponent("command.simple_perms.error.follower_read_only"));
+
     public static void register(CommandDispatcher<CommandSource> dispatcher) {
         LiteralCommandNode<CommandSource> theCommand = dispatcher.register(Commands.literal("simplepermission")
                 .then(Commands.literal("group")
@@ -61,13 +94,27 @@ public final class SimplePermissionCommand {
                                         .executes(SimplePermissionCommand::addPlayerToGroup)))
                                 .then(Commands.literal("unassign").then(Commands.argument("player", GameProfileArgument.gameProfile())
                                         .executes(SimplePermissionCommand::removePlayerFromGroup)))
-                                .then(Commands.literal("members").executes(SimplePermissionCommand::listMembers))
+                                .then(Commands.literal("add").then(Commands.argument("player", GameProfileArgument.gameProfile())
+                                        .then(Commands.argument("priority", IntegerArgumentType.integer())
+                                                .executes(ctx -> addPlayerAlsoToGroup(ctx, IntegerArgumentType.getInteger(ctx, "priority"))))
+                                        .executes(ctx -> addPlayerAlsoToGroup(ctx, 0))))
+                                .then(Commands.literal("remove").then(Commands.argument("player", GameProfileArgument.gameProfile())
+                                        .executes(SimplePermissionCommand::removePlayerAlsoFromGroup)))
+                                .then(Commands.literal("members")
+                                        .then(Commands.literal("export").executes(SimplePermissionCommand::exportMembers))
+                                        .then(Commands.argument("page", IntegerArgumentType.integer(1))
+                                                .executes(SimplePermissionCommand::listMembers))
+                                        .executes(SimplePermissionCommand::listMembers))
                                 .then(Commands.literal("grant").then(Commands.argument("permission", PermissionNodeArgument.node())
                                         .then(Commands.argument("bool", BoolArgumentType.bool())
                                                 .executes(SimplePermissionCommand::grant))))
                                 .then(Commands.literal("revoke").then(Commands.argument("permission", PermissionNodeArgument.ofGroup("group"))
                                         .executes(SimplePermissionCommand::revoke)))
-                                .then(Commands.literal("permissions").executes(SimplePermissionCommand::listPermissions))
+                                .then(Commands.literal("permissions")
+                                        .then(Commands.literal("export").executes(SimplePermissionCommand::exportPermissions))
+                                        .then(Commands.argument("page", IntegerArgumentType.integer(1))
+                                                .executes(SimplePermissionCommand::listPermissions))
+                                        .executes(SimplePermissionCommand::listPermissions))
                                 .then(Commands.literal("parents")
                                         .then(Commands.literal("add")
                                                 .then(Commands.argument("parent", UserGroupArgument.userGroup())
@@ -83,7 +130,40 @@ public final class SimplePermissionCommand {
                                 .then(Commands.literal("gamemode")
                                         .then(Commands.argument("gametype", GameTypeArgument.gameType())
                                                 .executes(SimplePermissionCommand::setGameType))
-                                        .executes(SimplePermissionCommand::printGameType))))
+                                        .executes(SimplePermissionCommand::printGameType))
+                                .then(Commands.literal("meta")
+                                        .then(Commands.literal("set").then(Commands.argument("key", StringArgumentType.word())
+                                                .then(Commands.literal("int").then(Commands.argument("value", IntegerArgumentType.integer())
+                                                        .executes(ctx -> setMeta(ctx, MetaValue.ofInt(IntegerArgumentType.getInteger(ctx, "value"))))))
+                                                .then(Commands.literal("long").then(Commands.argument("value", LongArgumentType.longArg())
+                                                        .executes(ctx -> setMeta(ctx, MetaValue.ofLong(LongArgumentType.getLong(ctx, "value"))))))
+                                                .then(Commands.literal("double").then(Commands.argument("value", DoubleArgumentType.doubleArg())
+                                                        .executes(ctx -> setMeta(ctx, MetaValue.ofDouble(DoubleArgumentType.getDouble(ctx, "value"))))))
+                                                .then(Commands.literal("string").then(Commands.argument("value", StringArgumentType.greedyString())
+                                                        .executes(ctx -> setMeta(ctx, MetaValue.ofString(StringArgumentType.getString(ctx, "value"))))))))
+                                        .then(Commands.literal("unset").then(Commands.argument("key", StringArgumentType.word())
+                                                .suggests((ctx, builder) -> ISuggestionProvider.suggest(
+                                                        REPO.getOwnMeta(UserGroupArgument.getUserGroup(ctx, "group")).keySet(), builder))
+                                                .executes(SimplePermissionCommand::unsetMeta)))
+                                        .executes(SimplePermissionCommand::listMeta))))
+                .then(Commands.literal("player")
+                        .requires(SimplePermissionCommand::check)
+                        .then(Commands.argument("player", GameProfileArgument.gameProfile())
+                                .executes(SimplePermissionCommand::listPlayerGroups)))
+                .then(Commands.literal("node")
+                        .requires(SimplePermissionCommand::check)
+                        .then(Commands.argument("node", PermissionNodeArgument.node())
+                                .then(Commands.literal("who")
+                                        .then(Commands.argument("page", IntegerArgumentType.integer(1))
+                                                .executes(SimplePermissionCommand::listNodeGroups))
+                                        .executes(SimplePermissionCommand::listNodeGroups))))
+                .then(Commands.literal("diff")
+                        .requires(SimplePermissionCommand::check)
+                        .then(Commands.argument("group", UserGroupArgument.userGroup())
+                                .then(Commands.argument("other", UserGroupArgument.userGroup())
+                                        .then(Commands.argument("page", IntegerArgumentType.integer(1))
+                                                .executes(SimplePermissionCommand::diffGroups))
+                                        .executes(SimplePermissionCommand::diffGroups))))
                 .then(Commands.literal("reload")
                         .requires(SimplePermissionCommand::check)
                         .executes(SimplePermissionCommand::reload))
@@ -105,7 +185,31 @@ public final class SimplePermissionCommand {
                 .then(Commands.literal("verbose")
                         .requires(SimplePermissionCommand::check)
                         .executes(SimplePermissionCommand::verbose))
-                .then(Commands.literal("groups").executes(SimplePermissionCommand::listGroups))
+                .then(Commands.literal("stats")
+                        .requires(SimplePermissionCommand::check)
+                        .executes(SimplePermissionCommand::stats))
+                .then(Commands.literal("bench")
+                        .requires(SimplePermissionCommand::check)
+                        .then(Commands.argument("operations", IntegerArgumentType.integer(1000, PermissionBenchmark.MAX_OPERATIONS))
+                                .executes(ctx -> bench(ctx, IntegerArgumentType.getInteger(ctx, "operations"))))
+                        .executes(ctx -> bench(ctx, DEFAULT_BENCH_OPERATIONS)))
+                .then(Commands.literal("groups")
+                        .then(Commands.literal("export")
+                                .requires(SimplePermissionCommand::check)
+                                .executes(SimplePermissionCommand::exportGroups))
+                        .then(Commands.argument("page", IntegerArgumentType.integer(1))
+                                .executes(SimplePermissionCommand::listGroups))
+                        .executes(SimplePermissionCommand::listGroups))
+                .then(Commands.literal("history")
+                        .requires(SimplePermissionCommand::check)
+                        .then(Commands.literal("group").then(Commands.argument("group", UserGroupArgument.userGroup())
+                                .then(Commands.argument("page", IntegerArgumentType.integer(1))
+                                        .executes(SimplePermissionCommand::groupHistory))
+                                .executes(SimplePermissionCommand::groupHistory)))
+                        .then(Commands.literal("player").then(Commands.argument("player", GameProfileArgument.gameProfile())
+                                .then(Commands.argument("page", IntegerArgumentType.integer(1))
+                                        .executes(SimplePermissionCommand::playerHistory))
+                                .executes(SimplePermissionCommand::playerHistory))))
                 .then(Commands.literal("about").executes(SimplePermissionCommand::info)));
 
         dispatcher.register(Commands.literal("sp").redirect(theCommand));
@@ -119,87 +223,290 @@ public final class SimplePermissionCommand {
         return source.hasPermission(NON_PLAYER_MINIMUM_LEVEL);
     }
 
+    /**
+     * Record a change made by the command source, once it has been applied.
+     * {@code after} is read back from the repo, so that a command that left
+     * the value as it was is not recorded.
+     */
+    private static void audit(CommandSource source, String action, @Nullable String key,
+                              @Nullable Object before, @Nullable Object after, String... targets) {
+        final AuditLog log = SimplePermission.getAuditLog();
+        if (log != null && !Objects.equals(before, after)) {
+            // Players without an assigned group are not in any group's history
+            final List<String> concerned = Arrays.stream(targets).filter(t -> !t.equals(AuditEntry.group(""))).collect(Collectors.toList());
+            log.append(new AuditEntry(System.currentTimeMillis(), source.getTextName(), action, concerned, key,
+                    before == null ? null : before.toString(), after == null ? null : after.toString()));
+        }
+    }
+
+    /**
+     * Record a reload in the history of the groups it added, removed or
+     * changed; which of these each was, is not kept.
+     */
+    private static void auditReload(CommandSource source, Set<String> changedGroups) {
+        final AuditLog log = SimplePermission.getAuditLog();
+        if (log != null && !changedGroups.isEmpty()) {
+            final List<String> targets = changedGroups.stream().sorted().map(AuditEntry::group).collect(Collectors.toList());
+            log.append(new AuditEntry(System.currentTimeMillis(), source.getTextName(), "reload", targets, null, null, null));
+        }
+    }
+
+    /**
+     * Refuse to change the repo of a replication follower, as the authority
+     * would silently overwrite the change.
+     */
+    private static void checkWritable() throws CommandSyntaxException {
+        if (SimplePermission.isReplicationFollower()) {
+            throw FOLLOWER_READ_ONLY.create();
+        }
+    }
+
     private static int info(CommandContext<CommandSource> context) {
         context.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.about", ObjectArrays.EMPTY_ARRAY), false);
         return Command.SINGLE_SUCCESS;
     }
 
-    private static int reload(CommandContext<CommandSource> context) {
+    private static int reload(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         context.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.reload", ObjectArrays.EMPTY_ARRAY), true);
         Util.backgroundExecutor().execute(() -> {
             try {
+                final RepoSnapshot before = REPO.snapshot();
                 SimplePermission.REPO.load();
+                auditReload(context.getSource(), before.changedGroups(REPO.snapshot()));
             } catch (IOException e) {
                 LOGGER.error("Failed to reload data repo", e);
-                context.getSource().sendFailure(new TranslationTextComponent("command.simple_perms.error.reload"));
+                context.getSource().getServer().execute(() -> context.getSource().sendFailure(
+                        new TranslationTextComponent("command.simple_perms.error.reload")));
             }
         });
         return Command.SINGLE_SUCCESS;
     }
 
+    private static int getPage(CommandContext<CommandSource> context) {
+        try {
+            return IntegerArgumentType.getInteger(context, "page");
+        } catch (IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    private static List<String> sortedGroups() {
+        final List<String> groups = new ArrayList<>(REPO.groups());
+        Collections.sort(groups);
+        return groups;
+    }
+
     private static int listGroups(CommandContext<CommandSource> context) {
-        REPO.groups()
-                .stream()
-                .map(group -> new TranslationTextComponent("command.simple_perms.info.list_item", group))
-                .forEach(t -> context.getSource().sendSuccess(t, true));
+        final int page = getPage(context);
+        return CommandQueries.run(context.getSource(), () -> {
+            final List<String> groups = new ArrayList<>(REPO.snapshot().getGroups().keySet());
+            Collections.sort(groups);
+            return PagedOutput.page(groups, page, "/simplepermission groups",
+                    group -> new TranslationTextComponent("command.simple_perms.info.list_item", group),
+                    new TranslationTextComponent("command.simple_perms.info.total_groups", groups.size()));
+        });
+    }
+
+    private static int exportGroups(CommandContext<CommandSource> context) {
+        PagedOutput.export(context.getSource(), "groups", sortedGroups());
         return Command.SINGLE_SUCCESS;
     }
 
     private static int addPlayerToGroup(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         final String group = UserGroupArgument.getUserGroup(context, "group");
-        GameProfileArgument.getGameProfiles(context, "player").stream()
-                .map(GameProfile::getId)
-                .forEach(uuid -> REPO.assignUserToGroup(uuid, group));
+        for (GameProfile profile : GameProfileArgument.getGameProfiles(context, "player")) {
+            final String previous = REPO.getAssignedGroup(profile.getId());
+            REPO.assignUserToGroup(profile.getId(), group);
+            audit(context.getSource(), "assign", null, previous, REPO.getAssignedGroup(profile.getId()),
+                    AuditEntry.player(profile.getId()), AuditEntry.group(previous), AuditEntry.group(group));
+        }
         return Command.SINGLE_SUCCESS;
     }
 
     private static int removePlayerFromGroup(CommandContext<CommandSource> context) throws CommandSyntaxException {
-        GameProfileArgument.getGameProfiles(context, "player").stream()
-                .map(GameProfile::getId)
-                .forEach(uuid -> REPO.assignUserToGroup(uuid, ""));
+        checkWritable();
+        for (GameProfile profile : GameProfileArgument.getGameProfiles(context, "player")) {
+            final String previous = REPO.getAssignedGroup(profile.getId());
+            REPO.assignUserToGroup(profile.getId(), "");
+            audit(context.getSource(), "unassign", null, previous, REPO.getAssignedGroup(profile.getId()),
+                    AuditEntry.player(profile.getId()), AuditEntry.group(previous));
+        }
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int addPlayerAlsoToGroup(CommandContext<CommandSource> context, int priority) throws CommandSyntaxException {
+        checkWritable();
+        final String group = UserGroupArgument.getUserGroup(context, "group");
+        for (GameProfile profile : GameProfileArgument.getGameProfiles(context, "player")) {
+            final Integer previous = REPO.getAdditionalGroups(profile.getId()).get(group);
+            REPO.addToGroup(profile.getId(), group, priority);
+            audit(context.getSource(), "add", group, previous, REPO.getAdditionalGroups(profile.getId()).get(group),
+                    AuditEntry.player(profile.getId()), AuditEntry.group(group));
+        }
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int removePlayerAlsoFromGroup(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
+        final String group = UserGroupArgument.getUserGroup(context, "group");
+        for (GameProfile profile : GameProfileArgument.getGameProfiles(context, "player")) {
+            final Integer previous = REPO.getAdditionalGroups(profile.getId()).get(group);
+            if (previous != null) {
+                REPO.removeFromGroup(profile.getId(), group);
+                audit(context.getSource(), "remove", group, previous, REPO.getAdditionalGroups(profile.getId()).get(group),
+                        AuditEntry.player(profile.getId()), AuditEntry.group(group));
+            }
+        }
         return Command.SINGLE_SUCCESS;
     }
 
+    private static int listPlayerGroups(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        for (GameProfile profile : GameProfileArgument.getGameProfiles(context, "player")) {
+            final String assigned = REPO.getAssignedGroup(profile.getId());
+            context.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.player_group",
+                    profile.getName(), assigned.isEmpty() ? REPO.lookup(profile.getId()) : assigned), false);
+            final List<Map.Entry<String, Integer>> additional = new ArrayList<>(REPO.getAdditionalGroups(profile.getId()).entrySet());
+            // Same order as they take effect in, from the highest priority
+            additional.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+            for (Map.Entry<String, Integer> entry : additional) {
+                context.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.list_item",
+                        new TranslationTextComponent("command.simple_perms.info.additional_group", entry.getKey(), entry.getValue())), false);
+            }
+        }
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int listNodeGroups(CommandContext<CommandSource> context) {
+        final String node = PermissionNodeArgument.getNode(context, "node");
+        final int page = getPage(context);
+        return CommandQueries.run(context.getSource(), () -> {
+            final RepoSnapshot snapshot = REPO.snapshot();
+            final Map<String, Boolean> setters = REPO.getNodeSetters(node);
+            final List<String> groups = new ArrayList<>(REPO.getGroupsReaching(node));
+            Collections.sort(groups);
+            return PagedOutput.page(groups, page, "/simplepermission node " + node + " who",
+                    group -> {
+                        // The first group in the chain setting the node is the one that takes effect
+                        final CompiledGroup compiled = snapshot.getGroup(group);
+                        final String origin = compiled.getChain().stream().filter(setters::containsKey).findFirst().orElse(group);
+                        return new TranslationTextComponent("command.simple_perms.info.list_item", new StringTextComponent(group + ": ")
+                                .append(new TranslationTextComponent("command.simple_perms.info.permission_item", compiled.hasPermission(node), origin)));
+                    },
+                    new TranslationTextComponent("command.simple_perms.info.total_node_groups", setters.size(), groups.size()));
+        });
+    }
+
+    private static int diffGroups(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        final String group = UserGroupArgument.getUserGroup(context, "group");
+        final String other = UserGroupArgument.getUserGroup(context, "other");
+        final int page = getPage(context);
+        return CommandQueries.run(context.getSource(), () -> {
+            final RepoSnapshot snapshot = REPO.snapshot();
+            final MapDifference<String, Boolean> difference = Maps.difference(
+                    snapshot.getGroup(group).getPermissions(), snapshot.getGroup(other).getPermissions());
+            final Map<String, ITextComponent> lines = new TreeMap<>();
+            difference.entriesOnlyOnLeft().forEach((node, value) -> lines.put(node,
+                    new TranslationTextComponent("command.simple_perms.info.diff.only", node, value, group)));
+            difference.entriesOnlyOnRight().forEach((node, value) -> lines.put(node,
+                    new TranslationTextComponent("command.simple_perms.info.diff.only", node, value, other)));
+            difference.entriesDiffering().forEach((node, values) -> lines.put(node,
+                    new TranslationTextComponent("command.simple_perms.info.diff.both", node, values.leftValue(), group, values.rightValue(), other)));
+            return PagedOutput.page(new ArrayList<>(lines.values()), page, "/simplepermission diff " + group + " " + other,
+                    line -> new TranslationTextComponent("command.simple_perms.info.list_item", line),
+                    new TranslationTextComponent("command.simple_perms.info.total_diff", lines.size(), difference.entriesInCommon().size()));
+        });
+    }
+
+    private static List<UUID> sortedMembers(String group) {
+        return REPO.reverseLookup(group).sorted().collect(Collectors.toList());
+    }
+
     private static int listMembers(CommandContext<CommandSource> context) throws CommandSyntaxException {
         final String group = UserGroupArgument.getUserGroup(context, "group");
         final PlayerProfileCache profileCache = context.getSource().getServer().getProfileCache();
-        final CommandSource source = context.getSource();
-        long count = REPO.reverseLookup(group)
-                .map(profileCache::get)
-                .filter(Objects::nonNull)
-                .map(profile -> new TranslationTextComponent("command.simple_perms.info.list_item", profile.getName())
-                        .append(" [" + profile.getId() + "]"))
-                .peek(msg -> source.sendSuccess(msg, false))
-                .count();
-        source.sendSuccess(new TranslationTextComponent("command.simple_perms.info.total_members", count), true);
+        final int page = getPage(context);
+        // Members are sorted in the background, but the profile cache may only be read on the server thread
+        return CommandQueries.run(context.getSource(), () -> sortedMembers(group),
+                members -> PagedOutput.page(members, page, "/simplepermission group " + group + " members",
+                        uuid -> {
+                            // Only the profiles shown on the requested page are looked up
+                            final GameProfile profile = profileCache.get(uuid);
+                            return new TranslationTextComponent("command.simple_perms.info.list_item", profile == null ? "?" : profile.getName())
+                                    .append(" [" + uuid + "]");
+                        },
+                        new TranslationTextComponent("command.simple_perms.info.total_members", members.size())));
+    }
+
+    private static int exportMembers(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        final String group = UserGroupArgument.getUserGroup(context, "group");
+        final PlayerProfileCache profileCache = context.getSource().getServer().getProfileCache();
+        final List<String> lines = new ArrayList<>();
+        for (UUID uuid : sortedMembers(group)) {
+            final GameProfile profile = profileCache.get(uuid);
+            lines.add(uuid + " " + (profile == null ? "?" : profile.getName()));
+        }
+        PagedOutput.export(context.getSource(), "members-" + group, lines);
         return Command.SINGLE_SUCCESS;
     }
 
     private static int grant(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         final String group = UserGroupArgument.getUserGroup(context, "group");
         final String permission = PermissionNodeArgument.getNode(context, "permission");
         final boolean bool = BoolArgumentType.getBool(context, "bool");
+        final Boolean previous = REPO.getOwnPermission(group, permission);
         REPO.grant(group, permission, bool);
+        audit(context.getSource(), "grant", permission, previous, REPO.getOwnPermission(group, permission), AuditEntry.group(group));
         return Command.SINGLE_SUCCESS;
     }
 
     private static int revoke(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         final String group = UserGroupArgument.getUserGroup(context, "group");
         final String permission = PermissionNodeArgument.getNode(context, "permission");
+        final Boolean previous = REPO.getOwnPermission(group, permission);
         REPO.revoke(group, permission);
+        audit(context.getSource(), "revoke", permission, previous, REPO.getOwnPermission(group, permission), AuditEntry.group(group));
         return Command.SINGLE_SUCCESS;
     }
 
     private static int listPermissions(CommandContext<CommandSource> context) throws CommandSyntaxException {
         final String group = UserGroupArgument.getUserGroup(context, "group");
-        final CommandSource src = context.getSource();
-        final Map<String, Collection<IFormattableTextComponent>> details = REPO.getPermissionDetails(group).asMap();
-        for (Map.Entry<String, Collection<IFormattableTextComponent>> entry : details.entrySet()) {
-            src.sendSuccess(new StringTextComponent(entry.getKey()), false);
-            entry.getValue().forEach(text -> src.sendSuccess(
-                    new TranslationTextComponent("command.simple_perms.info.list_item", text), false));
+        final int page = getPage(context);
+        return CommandQueries.run(context.getSource(), () -> {
+            final Map<String, Collection<Map.Entry<String, Boolean>>> origins = REPO.getPermissionOrigins(group).asMap();
+            // Only the nodes shown on the requested page are turned into text
+            return PagedOutput.page(new ArrayList<>(origins.entrySet()), page, "/simplepermission group " + group + " permissions",
+                    entry -> {
+                        final IFormattableTextComponent text = new StringTextComponent(entry.getKey());
+                        boolean effective = true;
+                        for (Map.Entry<String, Boolean> origin : entry.getValue()) {
+                            final IFormattableTextComponent item = new TranslationTextComponent(
+                                    "command.simple_perms.info.permission_item", origin.getValue(), origin.getKey());
+                            text.append("\n").append(new TranslationTextComponent("command.simple_perms.info.list_item",
+                                    effective ? item : item.withStyle(TextFormatting.STRIKETHROUGH)));
+                            effective = false;
+                        }
+                        return text;
+                    },
+                    new TranslationTextComponent("command.simple_perms.info.total_permissions", origins.size()));
+        });
+    }
+
+    private static int exportPermissions(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        final String group = UserGroupArgument.getUserGroup(context, "group");
+        final List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Collection<Map.Entry<String, Boolean>>> entry : REPO.getPermissionOrigins(group).asMap().entrySet()) {
+            lines.add(entry.getKey());
+            boolean effective = true;
+            for (Map.Entry<String, Boolean> origin : entry.getValue()) {
+                lines.add("    " + origin.getValue() + " (from " + origin.getKey() + ")" + (effective ? "" : " (overridden)"));
+                effective = false;
+            }
         }
-        src.sendSuccess(new TranslationTextComponent("command.simple_perms.info.total_permissions", details.size()), true);
+        PagedOutput.export(context.getSource(), "permissions-" + group, lines);
         return Command.SINGLE_SUCCESS;
     }
 
@@ -212,20 +519,30 @@ public final class SimplePermissionCommand {
     }
 
     private static int removeParent(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         final String group = UserGroupArgument.getUserGroup(context, "group");
         final String parent = ParentArgumentType.getParent(context, "parent");
         if (REPO.parentsOf(group).noneMatch(parent::equals)) throw PARENT_NOT_EXIST.create(parent);
         REPO.removeParent(group, parent);
+        audit(context.getSource(), "remove_parent", parent, parent, parentIfPresent(group, parent), AuditEntry.group(group));
         return Command.SINGLE_SUCCESS;
     }
 
     private static int addParent(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         final String group = UserGroupArgument.getUserGroup(context, "group");
         final String parent = UserGroupArgument.getUserGroup(context, "parent");
+        final String previous = parentIfPresent(group, parent);
         REPO.addParent(group, parent);
+        audit(context.getSource(), "add_parent", parent, previous, parentIfPresent(group, parent), AuditEntry.group(group));
         return Command.SINGLE_SUCCESS;
     }
 
+    @Nullable
+    private static String parentIfPresent(String group, String parent) {
+        return REPO.parentsOf(group).anyMatch(parent::equals) ? parent : null;
+    }
+
     private static int printPrefix(CommandContext<CommandSource> context) throws CommandSyntaxException {
         final String group = UserGroupArgument.getUserGroup(context, "group");
         context.getSource().sendSuccess(new StringTextComponent(ITextComponent.Serializer.toJson(REPO.getPrefix(group))), false);
@@ -233,15 +550,63 @@ public final class SimplePermissionCommand {
     }
 
     private static int setPrefix(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         final String group = UserGroupArgument.getUserGroup(context, "group");
         final ITextComponent prefix = ComponentArgument.getComponent(context, "prefix");
+        final String previous = ITextComponent.Serializer.toJson(REPO.getPrefix(group));
         REPO.setPrefix(group, prefix);
+        audit(context.getSource(), "prefix", null, previous, ITextComponent.Serializer.toJson(REPO.getPrefix(group)), AuditEntry.group(group));
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int listMeta(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        final String group = UserGroupArgument.getUserGroup(context, "group");
+        final CompiledGroup compiled = REPO.snapshot().getGroup(group);
+        final Map<String, MetaValue> effective = new TreeMap<>(compiled.getMeta());
+        for (Map.Entry<String, MetaValue> entry : effective.entrySet()) {
+            String origin = group;
+            for (String candidate : compiled.getChain()) {
+                if (entry.getValue().equals(REPO.getOwnMeta(candidate).get(entry.getKey()))) {
+                    origin = candidate;
+                    break;
+                }
+            }
+            context.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.list_item",
+                    new TranslationTextComponent("command.simple_perms.info.meta_item",
+                            entry.getKey(), entry.getValue().stringValue(), entry.getValue().getType().getName(), origin)), false);
+        }
+        context.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.total_meta", effective.size()), false);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int setMeta(CommandContext<CommandSource> context, MetaValue value) throws CommandSyntaxException {
+        checkWritable();
+        final String group = UserGroupArgument.getUserGroup(context, "group");
+        final String key = StringArgumentType.getString(context, "key");
+        final MetaValue previous = REPO.getOwnMeta(group).get(key);
+        REPO.setMeta(group, key, value);
+        audit(context.getSource(), "set_meta", key, previous, REPO.getOwnMeta(group).get(key), AuditEntry.group(group));
         return Command.SINGLE_SUCCESS;
     }
 
-    private static int createGroup(CommandContext<CommandSource> context) {
+    private static int unsetMeta(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
+        final String group = UserGroupArgument.getUserGroup(context, "group");
+        final String key = StringArgumentType.getString(context, "key");
+        final MetaValue previous = REPO.getOwnMeta(group).get(key);
+        REPO.removeMeta(group, key);
+        audit(context.getSource(), "unset_meta", key, previous, REPO.getOwnMeta(group).get(key), AuditEntry.group(group));
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int createGroup(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         String name = StringArgumentType.getString(context, "groupName");
+        final boolean existed = REPO.hasGroup(name);
         REPO.createGroup(name);
+        if (!existed && REPO.hasGroup(name)) {
+            audit(context.getSource(), "create", null, null, name, AuditEntry.group(name));
+        }
         return Command.SINGLE_SUCCESS;
     }
 
@@ -252,9 +617,13 @@ public final class SimplePermissionCommand {
     }
 
     private static int setDefaultGroup(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        checkWritable();
         final int opLevel = IntegerArgumentType.getInteger(context, "oplevel");
         final String group = UserGroupArgument.getUserGroup(context, "group");
+        final String previous = REPO.getFallbackGroup(opLevel);
         REPO.setFallbackGroup(opLevel, group);
+        audit(context.getSource(), "default_group", "oplevel " + opLevel, previous, REPO.getFallbackGroup(opLevel),
+                AuditEntry.group(previous), AuditEntry.group(group));
         return Command.SINGLE_SUCCESS;
     }
 
@@ -282,10 +651,39 @@ public final class SimplePermissionCommand {
         return Command.SINGLE_SUCCESS;
     }
 
+    private static int stats(CommandContext<CommandSource> ctx) {
+        final SimplePermissionHandler handler = SimplePermission.getPermissionHandler();
+        final long checks = handler.getCheckCount();
+        final long shortCircuits = handler.getShortCircuitCount();
+        final String rate = String.format("%.2f", checks == 0 ? 0.0 : 100.0 * shortCircuits / checks);
+        ctx.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.stats.short_circuit", checks, shortCircuits, rate), false);
+        final long memoHits = handler.getMemoHitCount();
+        final long memoLookups = memoHits + handler.getMemoMissCount();
+        final String memoRate = String.format("%.2f", memoLookups == 0 ? 0.0 : 100.0 * memoHits / memoLookups);
+        ctx.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.stats.parent_memo", memoLookups, memoHits, memoRate), false);
+        final long cacheHits = handler.getCommandCacheHitCount();
+        final long cacheLookups = cacheHits + handler.getCommandCacheMissCount();
+        final String cacheRate = String.format("%.2f", cacheLookups == 0 ? 0.0 : 100.0 * cacheHits / cacheLookups);
+        ctx.getSource().sendSuccess(new TranslationTextComponent("command.simple_perms.info.stats.command_cache",
+                cacheLookups, cacheHits, cacheRate, handler.getCommandCacheNodeCount()), false);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int bench(CommandContext<CommandSource> ctx, int operations) {
+        if (!PermissionBenchmark.start(ctx.getSource(), SimplePermission.getPermissionHandler(), operations)) {
+            ctx.getSource().sendFailure(new TranslationTextComponent("command.simple_perms.error.bench_running"));
+            return 0;
+        }
+        return Command.SINGLE_SUCCESS;
+    }
+
     private static int setGameType(CommandContext<CommandSource> ctx) throws CommandSyntaxException {
+        checkWritable();
         final String group = UserGroupArgument.getUserGroup(ctx, "group");
         final GameType gameType = GameTypeArgument.getGameType(ctx, "gametype");
+        final String previous = REPO.getGameType(group).orElse(null);
         REPO.setGameType(group, gameType);
+        audit(ctx.getSource(), "gamemode", null, previous, REPO.getGameType(group).orElse(null), AuditEntry.group(group));
         return Command.SINGLE_SUCCESS;
     }
 
@@ -297,4 +695,39 @@ public final class SimplePermissionCommand {
         );
         return Command.SINGLE_SUCCESS;
     }
-}
\ No newline at end of file
+
+    private static int groupHistory(CommandContext<CommandSource> ctx) throws CommandSyntaxException {
+        final String group = UserGroupArgument.getUserGroup(ctx, "group");
+        return history(ctx.getSource(), AuditEntry.group(group), getPage(ctx), "/simplepermission history group " + group);
+    }
+
+    private static int playerHistory(CommandContext<CommandSource> ctx) throws CommandSyntaxException {
+        final GameProfile profile = GameProfileArgument.getGameProfiles(ctx, "player").iterator().next();
+        return history(ctx.getSource(), AuditEntry.player(profile.getId()), getPage(ctx),
+                "/simplepermission history player " + profile.getName());
+    }
+
+    private static int history(CommandSource source, String target, int page, String pageCommand) {
+        final AuditLog log = SimplePermission.getAuditLog();
+        if (log == null) {
+            source.sendFailure(new TranslationTextComponent("command.simple_perms.error.audit_disabled"));
+            return 0;
+        }
+        final int limit = SimplePermissionConfig.AUDIT_HISTORY_LIMIT.get();
+        Util.backgroundExecutor().execute(() -> {
+            try {
+                final List<AuditEntry> entries = log.history(target, limit);
+                source.getServer().execute(() -> PagedOutput.sendPage(source, entries, page, pageCommand,
+                        entry -> new TranslationTextComponent("command.simple_perms.info.history_item",
+                                LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.getTime()), ZoneId.systemDefault()).format(HISTORY_TIMESTAMP),
+                                entry.getActor(), entry.getAction(), entry.getKey() == null ? "" : entry.getKey(),
+                                entry.getBefore() == null ? "-" : entry.getBefore(), entry.getAfter() == null ? "-" : entry.getAfter()),
+                        new TranslationTextComponent("command.simple_perms.info.total_history", entries.size())));
+            } catch (IOException e) {
+                LOGGER.error("Failed to read audit history of {}", target, e);
+                source.getServer().execute(() -> source.sendFailure(new TranslationTextComponent("command.simple_perms.error.history")));
+            }
+        });
+        return Command.SINGLE_SUCCESS;
+    }
+}
@@ -60,7 +60,7 @@ public class ParentArgumentType implements ArgumentType<ParentInput> {
                     return Suggestions.empty();
                 }
             }
-            return ISuggestionProvider.suggest(REPO.parentsOf(group), builder);
+            return PermissionNodeArgument.suggest(REPO.snapshot().getGroup(group).getParentCatalogue(), builder);
         } else if (context.getSource() instanceof ISuggestionProvider) {
             return ((ISuggestionProvider) context.getSource()).customSuggestion((CommandContext<ISuggestionProvider>) context, builder);
         }
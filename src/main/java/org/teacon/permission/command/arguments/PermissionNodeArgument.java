@@ -13,6 +13,9 @@ import net.minecraft.command.ISuggestionProvider;
 import net.minecraft.command.arguments.IArgumentSerializer;
 import net.minecraft.network.PacketBuffer;
 import net.minecraftforge.server.permission.PermissionAPI;
+import org.teacon.permission.SimplePermission;
+import org.teacon.permission.SimplePermissionHandler;
+import org.teacon.permission.repo.NodeCatalogue;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.util.concurrent.CompletableFuture;
@@ -21,6 +24,11 @@ import static org.teacon.permission.SimplePermission.REPO;
 
 public class PermissionNodeArgument implements ArgumentType<String> {
 
+    /**
+     * Maximum number of suggestions offered at once.
+     */
+    static final int SUGGESTION_LIMIT = 100;
+
     private String ofGroup = null;
 
     public PermissionNodeArgument() {
@@ -52,7 +60,10 @@ public class PermissionNodeArgument implements ArgumentType<String> {
     public <S> CompletableFuture<Suggestions> listSuggestions(CommandContext<S> context, SuggestionsBuilder builder) {
         if (context.getSource() instanceof CommandSource) {
             if (ofGroup == null) {
-                return ISuggestionProvider.suggest(PermissionAPI.getPermissionHandler().getRegisteredNodes(), builder);
+                final SimplePermissionHandler handler = SimplePermission.getPermissionHandler();
+                return suggest(handler == null
+                        ? NodeCatalogue.of(PermissionAPI.getPermissionHandler().getRegisteredNodes())
+                        : handler.getNodeCatalogue(), builder);
             } else {
                 String group;
                 try {
@@ -65,7 +76,7 @@ public class PermissionNodeArgument implements ArgumentType<String> {
                         return Suggestions.empty();
                     }
                 }
-                return ISuggestionProvider.suggest(REPO.getPermissionNodes(group), builder);
+                return suggest(REPO.snapshot().getGroup(group).getOwnNodeCatalogue(), builder);
             }
         } else if (context.getSource() instanceof ISuggestionProvider) {
             return ((ISuggestionProvider) context.getSource()).customSuggestion((CommandContext<ISuggestionProvider>) context, builder);
@@ -74,6 +85,13 @@ public class PermissionNodeArgument implements ArgumentType<String> {
         }
     }
 
+    static CompletableFuture<Suggestions> suggest(NodeCatalogue catalogue, SuggestionsBuilder builder) {
+        for (String suggestion : catalogue.suggest(builder.getRemaining(), SUGGESTION_LIMIT)) {
+            builder.suggest(suggestion);
+        }
+        return builder.buildFuture();
+    }
+
     @ParametersAreNonnullByDefault
     @MethodsReturnNonnullByDefault
     public static class Serializer implements IArgumentSerializer<PermissionNodeArgument> {
@@ -40,7 +40,7 @@ public class UserGroupArgument implements ArgumentType<UserGroupInput> {
     @SuppressWarnings("unchecked")
     public <S> CompletableFuture<Suggestions> listSuggestions(CommandContext<S> context, SuggestionsBuilder builder) {
         if (context.getSource() instanceof CommandSource) {
-            return ISuggestionProvider.suggest(REPO.groups(), builder);
+            return PermissionNodeArgument.suggest(REPO.snapshot().getGroupCatalogue(), builder);
         } else if (context.getSource() instanceof ISuggestionProvider) {
             return ((ISuggestionProvider) context.getSource()).customSuggestion((CommandContext<ISuggestionProvider>) context, builder);
         }
@@ -0,0 +1,255 @@
+package org.teacon.permission.event;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import net.minecraftforge.eventbus.api.Event;
+
+/**
+ * Fired on {@link net.minecraftforge.common.MinecraftForge#EVENT_BUS}, on the
+ * server thread, after a change to SimplePermission data took effect. Mods
+ * caching permission results only need to drop entries of
+ * {@link #getAffectedPlayers()}. Listen to this class to be told of every
+ * kind of change, or to one of its subclasses.
+ */
+public class PermissionChangedEvent extends Event {
+
+    private final Set<UUID> affectedPlayers;
+
+    protected PermissionChangedEvent(Set<UUID> affectedPlayers) {
+        this.affectedPlayers = affectedPlayers;
+    }
+
+    /**
+     * @return players whose permissions may have changed. Offline players
+     * without an explicitly assigned group are never included.
+     */
+    public Set<UUID> getAffectedPlayers() {
+        return this.affectedPlayers;
+    }
+
+    /**
+     * A player was assigned to another group.
+     */
+    public static class Membership extends PermissionChangedEvent {
+
+        private final UUID player;
+
+        private final String previousGroup;
+
+        private final String group;
+
+        public Membership(UUID player, String previousGroup, String group) {
+            super(Collections.singleton(player));
+            this.player = player;
+            this.previousGroup = previousGroup;
+            this.group = group;
+        }
+
+        public UUID getPlayer() {
+            return this.player;
+        }
+
+        /**
+         * @return the previously assigned group, empty if there was none.
+         */
+        public String getPreviousGroup() {
+            return this.previousGroup;
+        }
+
+        /**
+         * @return the assigned group, empty if the assignment was removed.
+         */
+        public String getGroup() {
+            return this.group;
+        }
+    }
+
+    /**
+     * A player was put in or removed from a group besides their primary one,
+     * or the priority changed.
+     */
+    public static class AdditionalGroup extends PermissionChangedEvent {
+
+        private final UUID player;
+
+        private final String group;
+
+        @Nullable
+        private final Integer previousPriority;
+
+        @Nullable
+        private final Integer priority;
+
+        public AdditionalGroup(UUID player, String group, @Nullable Integer previousPriority, @Nullable Integer priority) {
+            super(Collections.singleton(player));
+            this.player = player;
+            this.group = group;
+            this.previousPriority = previousPriority;
+            this.priority = priority;
+        }
+
+        public UUID getPlayer() {
+            return this.player;
+        }
+
+        public String getGroup() {
+            return this.group;
+        }
+
+        /**
+         * @return the priority before the change, {@code null} if the player
+         * was not in the group.
+         */
+        @Nullable
+        public Integer getPreviousPriority() {
+            return this.previousPriority;
+        }
+
+        /**
+         * @return the priority after the change, {@code null} if the player
+         * was removed from the group.
+         */
+        @Nullable
+        public Integer getPriority() {
+            return this.priority;
+        }
+    }
+
+    /**
+     * A node was granted, denied or revoked on a group.
+     */
+    public static class Node extends PermissionChangedEvent {
+
+        private final String group;
+
+        private final String node;
+
+        @Nullable
+        private final Boolean previousValue;
+
+        @Nullable
+        private final Boolean value;
+
+        public Node(String group, String node, @Nullable Boolean previousValue, @Nullable Boolean value, Set<UUID> affectedPlayers) {
+            super(affectedPlayers);
+            this.group = group;
+            this.node = node;
+            this.previousValue = previousValue;
+            this.value = value;
+        }
+
+        public String getGroup() {
+            return this.group;
+        }
+
+        public String getNode() {
+            return this.node;
+        }
+
+        /**
+         * @return the value before the change, {@code null} if it was unset.
+         */
+        @Nullable
+        public Boolean getPreviousValue() {
+            return this.previousValue;
+        }
+
+        /**
+         * @return the value after the change, {@code null} if it was revoked.
+         */
+        @Nullable
+        public Boolean getValue() {
+            return this.value;
+        }
+    }
+
+    /**
+     * A parent was added to or removed from a group.
+     */
+    public static class Parents extends PermissionChangedEvent {
+
+        private final String group;
+
+        private final String parent;
+
+        private final boolean added;
+
+        public Parents(String group, String parent, boolean added, Set<UUID> affectedPlayers) {
+            super(affectedPlayers);
+            this.group = group;
+            this.parent = parent;
+            this.added = added;
+        }
+
+        public String getGroup() {
+            return this.group;
+        }
+
+        public String getParent() {
+            return this.parent;
+        }
+
+        public boolean isAdded() {
+            return this.added;
+        }
+    }
+
+    /**
+     * Anything else about a group changed: it was created, imported or
+     * replaced by a replicated copy, or its meta, prefix or game type was
+     * set.
+     */
+    public static class Group extends PermissionChangedEvent {
+
+        private final String group;
+
+        public Group(String group, Set<UUID> affectedPlayers) {
+            super(affectedPlayers);
+            this.group = group;
+        }
+
+        public String getGroup() {
+            return this.group;
+        }
+    }
+
+    /**
+     * Players of an op level without an assigned group fall back to another
+     * group now.
+     */
+    public static class Fallback extends PermissionChangedEvent {
+
+        private final int opLevel;
+
+        private final String group;
+
+        public Fallback(int opLevel, String group, Set<UUID> affectedPlayers) {
+            super(affectedPlayers);
+            this.opLevel = opLevel;
+            this.group = group;
+        }
+
+        public int getOpLevel() {
+            return this.opLevel;
+        }
+
+        public String getGroup() {
+            return this.group;
+        }
+    }
+
+    /**
+     * Everything was reloaded from disk. Only players whose group or its
+     * nodes differ afterwards are affected.
+     */
+    public static class Reload extends PermissionChangedEvent {
+
+        public Reload(Set<UUID> affectedPlayers) {
+            super(affectedPlayers);
+        }
+    }
+}
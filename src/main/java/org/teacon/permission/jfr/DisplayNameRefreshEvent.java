@@ -0,0 +1,20 @@
+package org.teacon.permission.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.teacon.permission.DisplayNameRefresh")
+@Label("Display Name Refresh")
+@Category("SimplePermission")
+@Description("Display names of several players refreshed at once")
+final class DisplayNameRefreshEvent extends Event {
+
+    @Label("Cause")
+    String cause;
+
+    @Label("Players")
+    int players;
+}
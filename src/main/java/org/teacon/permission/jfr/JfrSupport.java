@@ -0,0 +1,133 @@
+package org.teacon.permission.jfr;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import java.util.UUID;
+
+/**
+ * The part of {@link PermissionEvents} that needs {@code jdk.jfr}, only
+ * ever touched once it is known to be present.
+ */
+final class JfrSupport {
+
+    private JfrSupport() {
+    }
+
+    static void register() {
+        FlightRecorder.register(PermissionCheckEvent.class);
+        FlightRecorder.register(RepoLoadEvent.class);
+        FlightRecorder.register(RepoSaveEvent.class);
+        FlightRecorder.register(DisplayNameRefreshEvent.class);
+        FlightRecorder.register(VerboseBroadcastEvent.class);
+        // Called right away if the recorder is already up, e.g. with -XX:StartFlightRecording
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording recording : recorder.getRecordings()) {
+            running |= recording.getState() == RecordingState.RUNNING;
+        }
+        PermissionEvents.recording = running;
+    }
+
+    static Object beginCheck() {
+        final PermissionCheckEvent event = new PermissionCheckEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endCheck(Object handle, String node, UUID player, boolean granted, boolean fromRepo) {
+        final PermissionCheckEvent event = (PermissionCheckEvent) handle;
+        event.end();
+        // Most checks fall below the threshold, so fields are filled in only when needed
+        if (event.shouldCommit()) {
+            event.node = node;
+            event.player = player.toString();
+            event.granted = granted;
+            event.source = fromRepo ? "repo" : "parent";
+            event.commit();
+        }
+    }
+
+    static Object beginLoad() {
+        final RepoLoadEvent event = new RepoLoadEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endLoad(Object handle, boolean reload, int files, long bytes, int groups, int users) {
+        final RepoLoadEvent event = (RepoLoadEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.reload = reload;
+            event.files = files;
+            event.bytes = bytes;
+            event.groups = groups;
+            event.users = users;
+            event.commit();
+        }
+    }
+
+    static Object beginSave() {
+        final RepoSaveEvent event = new RepoSaveEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endSave(Object handle, int files, long bytes) {
+        final RepoSaveEvent event = (RepoSaveEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.files = files;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static Object beginDisplayNameRefresh() {
+        final DisplayNameRefreshEvent event = new DisplayNameRefreshEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endDisplayNameRefresh(Object handle, String cause, int players) {
+        final DisplayNameRefreshEvent event = (DisplayNameRefreshEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.cause = cause;
+            event.players = players;
+            event.commit();
+        }
+    }
+
+    static Object beginVerboseBroadcast() {
+        final VerboseBroadcastEvent event = new VerboseBroadcastEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endVerboseBroadcast(Object handle, String node, boolean granted, int listeners) {
+        final VerboseBroadcastEvent event = (VerboseBroadcastEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.node = node;
+            event.granted = granted;
+            event.listeners = listeners;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.teacon.permission.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A single permission check that took longer than the threshold, which can
+ * be lowered in the recording settings to see more of them.
+ */
+@Name("org.teacon.permission.PermissionCheck")
+@Label("Permission Check")
+@Category("SimplePermission")
+@Description("Permission check answered by the repo or the parent handler")
+@Threshold("20 us")
+final class PermissionCheckEvent extends Event {
+
+    @Label("Node")
+    String node;
+
+    @Label("Player")
+    String player;
+
+    @Label("Granted")
+    boolean granted;
+
+    @Label("Source")
+    @Description("repo if a group sets the node, parent otherwise")
+    String source;
+}
@@ -0,0 +1,105 @@
+package org.teacon.permission.jfr;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Entry point for the Java Flight Recorder events of SimplePermission.
+ * Nothing here refers to {@code jdk.jfr}, so that it is safe to call on
+ * runtimes without it. Every {@code begin*} method returns {@code null}
+ * unless a recording is running, and every {@code end*} method ignores
+ * {@code null}, so that the cost without a recording is a volatile read.
+ */
+public final class PermissionEvents {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    /**
+     * Whether any flight recording is running, kept up to date by a
+     * recorder listener.
+     */
+    static volatile boolean recording;
+
+    private static final boolean AVAILABLE = register();
+
+    private PermissionEvents() {
+    }
+
+    private static boolean register() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder", false, PermissionEvents.class.getClassLoader());
+            JfrSupport.register();
+            return true;
+        } catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+            LOGGER.debug("Java Flight Recorder is unavailable, simple permission events are disabled");
+            return false;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    @Nullable
+    public static Object beginCheck() {
+        return recording ? JfrSupport.beginCheck() : null;
+    }
+
+    public static void endCheck(@Nullable Object event, String node, UUID player, boolean granted, boolean fromRepo) {
+        if (event != null) {
+            JfrSupport.endCheck(event, node, player, granted, fromRepo);
+        }
+    }
+
+    @Nullable
+    public static Object beginLoad() {
+        return recording ? JfrSupport.beginLoad() : null;
+    }
+
+    public static void endLoad(@Nullable Object event, boolean reload, int files, long bytes, int groups, int users) {
+        if (event != null) {
+            JfrSupport.endLoad(event, reload, files, bytes, groups, users);
+        }
+    }
+
+    @Nullable
+    public static Object beginSave() {
+        return recording ? JfrSupport.beginSave() : null;
+    }
+
+    public static void endSave(@Nullable Object event, int files, long bytes) {
+        if (event != null) {
+            JfrSupport.endSave(event, files, bytes);
+        }
+    }
+
+    @Nullable
+    public static Object beginDisplayNameRefresh() {
+        return recording ? JfrSupport.beginDisplayNameRefresh() : null;
+    }
+
+    public static void endDisplayNameRefresh(@Nullable Object event, String cause, int players) {
+        if (event != null) {
+            JfrSupport.endDisplayNameRefresh(event, cause, players);
+        }
+    }
+
+    @Nullable
+    public static Object beginVerboseBroadcast() {
+        return recording ? JfrSupport.beginVerboseBroadcast() : null;
+    }
+
+    public static void endVerboseBroadcast(@Nullable Object event, String node, boolean granted, int listeners) {
+        if (event != null) {
+            JfrSupport.endVerboseBroadcast(event, node, granted, listeners);
+        }
+    }
+}
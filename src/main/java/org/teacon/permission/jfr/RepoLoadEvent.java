@@ -0,0 +1,32 @@
+package org.teacon.permission.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.teacon.permission.RepoLoad")
+@Label("Repo Load")
+@Category("SimplePermission")
+@Description("Data repo read from disk")
+final class RepoLoadEvent extends Event {
+
+    @Label("Reload")
+    @Description("Whether data had been loaded before")
+    boolean reload;
+
+    @Label("Files")
+    int files;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Groups")
+    int groups;
+
+    @Label("Users")
+    int users;
+}
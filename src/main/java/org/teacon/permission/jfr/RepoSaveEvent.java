@@ -0,0 +1,22 @@
+package org.teacon.permission.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.teacon.permission.RepoSave")
+@Label("Repo Save")
+@Category("SimplePermission")
+@Description("Changed files of the data repo written to disk")
+final class RepoSaveEvent extends Event {
+
+    @Label("Files Written")
+    int files;
+
+    @Label("Size Written")
+    @DataAmount
+    long bytes;
+}
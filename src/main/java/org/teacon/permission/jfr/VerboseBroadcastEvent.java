@@ -0,0 +1,23 @@
+package org.teacon.permission.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.teacon.permission.VerboseBroadcast")
+@Label("Verbose Broadcast")
+@Category("SimplePermission")
+@Description("Result of a permission check sent to players in verbose mode")
+final class VerboseBroadcastEvent extends Event {
+
+    @Label("Node")
+    String node;
+
+    @Label("Granted")
+    boolean granted;
+
+    @Label("Listeners")
+    int listeners;
+}
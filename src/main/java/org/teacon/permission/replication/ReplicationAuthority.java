@@ -0,0 +1,269 @@
+package org.teacon.permission.replication;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.teacon.permission.repo.RepoListener;
+import org.teacon.permission.repo.UserDataRepo;
+
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Streams changes to the repo to {@link ReplicationFollower}s on the same
+ * machine. Only followers that know the shared secret are served, as any
+ * local process can connect to the port. The latest changes are kept in a bounded backlog, so that a
+ * follower reconnecting shortly after a disconnect only receives what it
+ * missed; followers too far behind, and every follower after a reload,
+ * receive the whole repo instead.
+ */
+public final class ReplicationAuthority implements RepoListener {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    private final UserDataRepo repo;
+
+    private final ServerSocket serverSocket;
+
+    private final String secret;
+
+    private final ExecutorService executor;
+
+    /**
+     * Tells this run of the authority apart from earlier ones, whose
+     * sequence numbers mean nothing to it.
+     */
+    private final long epoch;
+
+    private final int backlogSize;
+
+    /**
+     * Latest deltas, the first one numbered {@link #firstSeq}, the last one
+     * {@link #lastSeq}. Guards both numbers, and is notified on changes.
+     */
+    private final ArrayDeque<RepoDelta> backlog = new ArrayDeque<>();
+
+    private long firstSeq = 1L;
+
+    private long lastSeq = 0L;
+
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = true;
+
+    public ReplicationAuthority(UserDataRepo repo, int port, int backlogSize, String secret) throws IOException {
+        this.repo = repo;
+        this.secret = secret;
+        this.backlogSize = backlogSize;
+        long epoch;
+        do {
+            epoch = ThreadLocalRandom.current().nextLong();
+        } while (epoch == ReplicationProtocol.NO_EPOCH);
+        this.epoch = epoch;
+        this.serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        this.executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("SimplePerms-Replication-%d").setDaemon(true).build());
+    }
+
+    public void start() {
+        this.repo.addListener(this);
+        this.executor.execute(this::accept);
+        LOGGER.info("Replicating simple permission data repo on {}", this.serverSocket.getLocalSocketAddress());
+    }
+
+    public void stop() {
+        this.running = false;
+        this.repo.removeListener(this);
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            LOGGER.debug("Failed to close replication socket", e);
+        }
+        for (Socket follower : this.followers) {
+            try {
+                follower.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close connection to follower", e);
+            }
+        }
+        synchronized (this.backlog) {
+            this.backlog.notifyAll();
+        }
+        this.executor.shutdown();
+    }
+
+    public int getFollowerCount() {
+        return this.followers.size();
+    }
+
+    public long getSequence() {
+        synchronized (this.backlog) {
+            return this.lastSeq;
+        }
+    }
+
+    private void accept() {
+        while (this.running) {
+            try {
+                final Socket socket = this.serverSocket.accept();
+                this.executor.execute(() -> this.serve(socket));
+            } catch (IOException e) {
+                if (this.running) {
+                    LOGGER.warn("Failed to accept replication follower", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        this.followers.add(socket);
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(ReplicationProtocol.READ_TIMEOUT_MILLIS);
+            if (in.readInt() != ReplicationProtocol.MAGIC || in.readInt() != ReplicationProtocol.VERSION) {
+                LOGGER.warn("Rejected replication follower {} speaking another protocol", s.getRemoteSocketAddress());
+                return;
+            }
+            final byte[] followerNonce = new byte[ReplicationProtocol.NONCE_BYTES];
+            in.readFully(followerNonce);
+            final byte[] nonce = ReplicationProtocol.nonce();
+            out.write(nonce);
+            out.write(ReplicationProtocol.proof(this.secret, ReplicationProtocol.AUTHORITY, nonce, followerNonce));
+            out.flush();
+            if (!ReplicationProtocol.checkProof(in, ReplicationProtocol.proof(this.secret, ReplicationProtocol.FOLLOWER, followerNonce, nonce))) {
+                LOGGER.warn("Rejected replication follower {} not knowing the secret", s.getRemoteSocketAddress());
+                return;
+            }
+            final long followerEpoch = in.readLong();
+            final long followerSeq = in.readLong();
+            // Sequence numbers of another epoch are meaningless, which forces a full sync below
+            long sent = followerEpoch == this.epoch ? followerSeq : -1L;
+            LOGGER.info("Replication follower {} connected at {}", s.getRemoteSocketAddress(), sent);
+            while (this.running) {
+                final long from = sent + 1L;
+                List<RepoDelta> batch = null;
+                boolean full = false;
+                synchronized (this.backlog) {
+                    if (sent == this.lastSeq) {
+                        this.backlog.wait(ReplicationProtocol.HEARTBEAT_MILLIS);
+                    }
+                    if (sent < this.firstSeq - 1L || sent > this.lastSeq) {
+                        full = true;
+                        sent = this.lastSeq;
+                    } else if (sent < this.lastSeq) {
+                        batch = new ArrayList<>((int) (this.lastSeq - sent));
+                        final Iterator<RepoDelta> iterator = this.backlog.iterator();
+                        for (long seq = this.firstSeq; seq <= this.lastSeq; ++seq) {
+                            final RepoDelta delta = iterator.next();
+                            if (seq > sent) {
+                                batch.add(delta);
+                            }
+                        }
+                        sent = this.lastSeq;
+                    }
+                }
+                if (full) {
+                    // Exported after the number was taken, so it may already contain the following deltas
+                    out.writeByte(ReplicationProtocol.FULL);
+                    out.writeLong(this.epoch);
+                    out.writeLong(sent);
+                    RepoDelta.writeLongString(out, this.repo.exportState());
+                } else if (batch != null) {
+                    for (int i = 0; i < batch.size(); ++i) {
+                        out.writeByte(ReplicationProtocol.DELTA);
+                        out.writeLong(from + i);
+                        batch.get(i).write(out);
+                    }
+                } else {
+                    out.writeByte(ReplicationProtocol.HEARTBEAT);
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            LOGGER.info("Replication follower {} disconnected", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            LOGGER.warn("Lost replication follower {}", socket.getRemoteSocketAddress(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.followers.remove(socket);
+        }
+    }
+
+    private void append(@Nullable RepoDelta delta) {
+        synchronized (this.backlog) {
+            ++this.lastSeq;
+            if (delta == null) {
+                // Everyone behind has to start over
+                this.backlog.clear();
+                this.firstSeq = this.lastSeq + 1L;
+            } else {
+                this.backlog.addLast(delta);
+                if (this.backlog.size() > this.backlogSize) {
+                    this.backlog.removeFirst();
+                    ++this.firstSeq;
+                }
+            }
+            this.backlog.notifyAll();
+        }
+    }
+
+    @Override
+    public void onMembershipChanged(UUID id, String previous, String current) {
+        this.append(RepoDelta.membership(id, current));
+    }
+
+    @Override
+    public void onAdditionalGroupChanged(UUID id, String group, @Nullable Integer previous, @Nullable Integer current) {
+        this.append(RepoDelta.additionalGroup(id, group, current));
+    }
+
+    @Override
+    public void onPermissionChanged(String group, String node, @Nullable Boolean previous, @Nullable Boolean current, Set<UUID> affected) {
+        this.append(RepoDelta.node(group, node, current));
+    }
+
+    @Override
+    public void onParentsChanged(String group, String parent, boolean added, Set<UUID> affected) {
+        this.append(RepoDelta.parent(group, parent, added));
+    }
+
+    @Override
+    public void onGroupChanged(String group, Set<UUID> affected) {
+        final String data = this.repo.exportGroup(group);
+        if (data != null) {
+            this.append(RepoDelta.group(group, data));
+        }
+    }
+
+    @Override
+    public void onFallbackGroupChanged(int opLevel, String group, Set<UUID> affected) {
+        this.append(RepoDelta.fallback(opLevel, group));
+    }
+
+    @Override
+    public void onReloaded(Set<UUID> affected) {
+        this.append(null);
+    }
+}
@@ -0,0 +1,154 @@
+package org.teacon.permission.replication;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.teacon.permission.repo.UserDataRepo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a repo in line with a {@link ReplicationAuthority} on the same
+ * machine. Nothing is accepted from a listener on the port that cannot
+ * prove it knows the shared secret. Changes are applied on the given executor, in order, through the
+ * same methods commands use, so that only what changed is invalidated and
+ * repo listeners see them like local changes. After a disconnect, the
+ * follower reconnects and resumes from the last change it received.
+ */
+public final class ReplicationFollower {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    private static final long MIN_RETRY_MILLIS = 1000L;
+    private static final long MAX_RETRY_MILLIS = 30000L;
+
+    private final UserDataRepo repo;
+
+    private final Executor executor;
+
+    private final int port;
+
+    private final String secret;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private volatile Socket socket;
+
+    /**
+     * Epoch and sequence number of the last message received, to resume
+     * from after a reconnect. Only written by {@link #thread}.
+     */
+    private volatile long epoch = ReplicationProtocol.NO_EPOCH;
+
+    private volatile long seq = -1L;
+
+    public ReplicationFollower(UserDataRepo repo, Executor executor, int port, String secret) {
+        this.repo = repo;
+        this.executor = executor;
+        this.port = port;
+        this.secret = secret;
+        this.thread = new Thread(this::run, "SimplePerms-Replication-Follower");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    public void stop() {
+        this.running = false;
+        final Socket socket = this.socket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close connection to replication authority", e);
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        final Socket socket = this.socket;
+        return socket != null && socket.isConnected() && !socket.isClosed();
+    }
+
+    public long getSequence() {
+        return this.seq;
+    }
+
+    private void run() {
+        long retryMillis = MIN_RETRY_MILLIS;
+        while (this.running) {
+            try (Socket s = new Socket()) {
+                this.socket = s;
+                s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), ReplicationProtocol.READ_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(ReplicationProtocol.READ_TIMEOUT_MILLIS);
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                out.writeInt(ReplicationProtocol.MAGIC);
+                out.writeInt(ReplicationProtocol.VERSION);
+                final byte[] nonce = ReplicationProtocol.nonce();
+                out.write(nonce);
+                out.flush();
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                final byte[] authorityNonce = new byte[ReplicationProtocol.NONCE_BYTES];
+                in.readFully(authorityNonce);
+                if (!ReplicationProtocol.checkProof(in, ReplicationProtocol.proof(this.secret, ReplicationProtocol.AUTHORITY, authorityNonce, nonce))) {
+                    throw new IOException("Replication authority does not know the secret");
+                }
+                out.write(ReplicationProtocol.proof(this.secret, ReplicationProtocol.FOLLOWER, nonce, authorityNonce));
+                out.writeLong(this.epoch);
+                out.writeLong(this.seq);
+                out.flush();
+                LOGGER.info("Connected to replication authority on port {}, resuming from {}", this.port, this.seq);
+                retryMillis = MIN_RETRY_MILLIS;
+                this.receive(in);
+            } catch (IOException e) {
+                if (!this.running) {
+                    break;
+                }
+                LOGGER.warn("Lost replication authority on port {}, retrying in {} ms: {}", this.port, retryMillis, e.toString());
+            } finally {
+                this.socket = null;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            retryMillis = Math.min(retryMillis * 2L, MAX_RETRY_MILLIS);
+        }
+    }
+
+    private void receive(DataInputStream in) throws IOException {
+        while (this.running) {
+            final byte type = in.readByte();
+            if (type == ReplicationProtocol.FULL) {
+                final long epoch = in.readLong();
+                final long seq = in.readLong();
+                final String state = RepoDelta.readLongString(in);
+                LOGGER.info("Received full replication sync at {}", seq);
+                this.executor.execute(() -> this.repo.importState(state));
+                this.epoch = epoch;
+                this.seq = seq;
+            } else if (type == ReplicationProtocol.DELTA) {
+                final long seq = in.readLong();
+                final RepoDelta delta = RepoDelta.read(in);
+                this.executor.execute(() -> delta.apply(this.repo));
+                this.seq = seq;
+            } else if (type != ReplicationProtocol.HEARTBEAT) {
+                throw new IOException("Unknown replication message " + type);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.teacon.permission.replication;
+
+import org.teacon.permission.repo.UserDataRepo;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Wire format between {@link ReplicationAuthority} and
+ * {@link ReplicationFollower}. Both sides prove they know the configured
+ * secret before anything else is sent, without sending the secret itself:
+ * <ol>
+ * <li>the follower sends {@link #MAGIC}, {@link #VERSION} and a nonce;</li>
+ * <li>the authority answers with a nonce of its own and its
+ * {@link #proof} over both;</li>
+ * <li>the follower checks it, then sends its own proof, the epoch and the
+ * sequence number of the last message it applied.</li>
+ * </ol>
+ * Either side hangs up on a wrong proof. The authority then sends, in
+ * order:
+ * <ul>
+ * <li>{@link #FULL}: epoch, sequence number, {@link UserDataRepo#exportState}</li>
+ * <li>{@link #DELTA}: sequence number, {@link RepoDelta}</li>
+ * <li>{@link #HEARTBEAT}: nothing, sent when idle so that a stuck
+ * connection can be told apart from a quiet one</li>
+ * </ul>
+ */
+final class ReplicationProtocol {
+
+    static final int MAGIC = 0x53505250; // SPRP
+    static final int VERSION = 3; // 2: additional groups, 3: shared secret
+
+    static final int NONCE_BYTES = 16;
+
+    /**
+     * Roles mixed into a {@link #proof}, so that one side cannot pass off
+     * a proof of the other as its own.
+     */
+    static final byte AUTHORITY = 'A';
+    static final byte FOLLOWER = 'F';
+
+    static final byte FULL = 'F';
+    static final byte DELTA = 'D';
+    static final byte HEARTBEAT = 'H';
+
+    /**
+     * Epoch of a follower that has not synced yet, never used by an
+     * authority.
+     */
+    static final long NO_EPOCH = 0L;
+
+    static final int HEARTBEAT_MILLIS = 5000;
+
+    /**
+     * A follower gives up on a connection after this long without any
+     * message.
+     */
+    static final int READ_TIMEOUT_MILLIS = HEARTBEAT_MILLIS * 3;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ReplicationProtocol() {
+    }
+
+    static byte[] nonce() {
+        final byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * @return HMAC-SHA256 of the role and both nonces, the sender's first,
+     * keyed with the secret.
+     */
+    static byte[] proof(String secret, byte role, byte[] own, byte[] other) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(role);
+            mac.update(own);
+            return mac.doFinal(other);
+        } catch (GeneralSecurityException e) {
+            // Every Java platform has to support HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read the proof the other side sent and compare it to the expected one
+     * in constant time.
+     */
+    static boolean checkProof(DataInputStream in, byte[] expected) throws IOException {
+        final byte[] actual = new byte[expected.length];
+        in.readFully(actual);
+        return MessageDigest.isEqual(expected, actual);
+    }
+}
@@ -0,0 +1,258 @@
+package org.teacon.permission.replication;
+
+import org.teacon.permission.repo.UserDataRepo;
+
+import javax.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * A single change to a {@link UserDataRepo}, as sent from the authority to
+ * its followers. Applying a delta twice has the same effect as applying it
+ * once, so that replaying deltas already contained in a full sync is safe.
+ */
+public final class RepoDelta {
+
+    public enum Kind {
+        /**
+         * A player was assigned to {@link #group}, empty for none.
+         */
+        MEMBERSHIP,
+        /**
+         * {@link #group} set {@link #key} to {@link #value}, {@code null}
+         * when revoked.
+         */
+        NODE,
+        /**
+         * {@link #key} was added to or removed from the parents of
+         * {@link #group}, depending on {@link #value}.
+         */
+        PARENT,
+        /**
+         * {@link #group} was created or changed otherwise, {@link #data}
+         * is all of it.
+         */
+        GROUP,
+        /**
+         * Players of op level {@link #level} fall back to {@link #group}.
+         */
+        FALLBACK,
+        /**
+         * A player is in {@link #group} besides their primary group, with
+         * priority {@link #level}, unless {@link #value} is {@code null}.
+         */
+        ADDITIONAL_GROUP
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private final Kind kind;
+
+    @Nullable
+    private final UUID player;
+
+    private final String group;
+
+    private final String key;
+
+    @Nullable
+    private final Boolean value;
+
+    private final int level;
+
+    private final String data;
+
+    private RepoDelta(Kind kind, @Nullable UUID player, String group, String key, @Nullable Boolean value, int level, String data) {
+        this.kind = kind;
+        this.player = player;
+        this.group = group;
+        this.key = key;
+        this.value = value;
+        this.level = level;
+        this.data = data;
+    }
+
+    public static RepoDelta membership(UUID player, String group) {
+        return new RepoDelta(Kind.MEMBERSHIP, player, group, "", null, 0, "");
+    }
+
+    public static RepoDelta node(String group, String node, @Nullable Boolean value) {
+        return new RepoDelta(Kind.NODE, null, group, node, value, 0, "");
+    }
+
+    public static RepoDelta parent(String group, String parent, boolean added) {
+        return new RepoDelta(Kind.PARENT, null, group, parent, added, 0, "");
+    }
+
+    public static RepoDelta group(String group, String data) {
+        return new RepoDelta(Kind.GROUP, null, group, "", null, 0, data);
+    }
+
+    public static RepoDelta fallback(int level, String group) {
+        return new RepoDelta(Kind.FALLBACK, null, group, "", null, level, "");
+    }
+
+    public static RepoDelta additionalGroup(UUID player, String group, @Nullable Integer priority) {
+        return new RepoDelta(Kind.ADDITIONAL_GROUP, player, group, "", priority == null ? null : Boolean.TRUE,
+                priority == null ? 0 : priority, "");
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public String getGroup() {
+        return this.group;
+    }
+
+    public void apply(UserDataRepo repo) {
+        switch (this.kind) {
+            case MEMBERSHIP:
+                repo.assignUserToGroup(this.player, this.group);
+                break;
+            case NODE:
+                if (!repo.groups().contains(this.group)) {
+                    break;
+                }
+                if (this.value == null) {
+                    repo.revoke(this.group, this.key);
+                } else {
+                    repo.grant(this.group, this.key, this.value);
+                }
+                break;
+            case PARENT:
+                if (!repo.groups().contains(this.group)) {
+                    break;
+                }
+                if (Boolean.TRUE.equals(this.value)) {
+                    repo.addParent(this.group, this.key);
+                } else {
+                    repo.removeParent(this.group, this.key);
+                }
+                break;
+            case GROUP:
+                repo.importGroup(this.group, this.data);
+                break;
+            case FALLBACK:
+                repo.setFallbackGroup(this.level, this.group);
+                break;
+            case ADDITIONAL_GROUP:
+                if (this.value == null) {
+                    repo.removeFromGroup(this.player, this.group);
+                } else {
+                    repo.addToGroup(this.player, this.group, this.level);
+                }
+                break;
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(this.kind.ordinal());
+        switch (this.kind) {
+            case MEMBERSHIP:
+                out.writeLong(this.player.getMostSignificantBits());
+                out.writeLong(this.player.getLeastSignificantBits());
+                out.writeUTF(this.group);
+                break;
+            case NODE:
+                out.writeUTF(this.group);
+                out.writeUTF(this.key);
+                out.writeByte(this.value == null ? -1 : this.value ? 1 : 0);
+                break;
+            case PARENT:
+                out.writeUTF(this.group);
+                out.writeUTF(this.key);
+                out.writeBoolean(this.value);
+                break;
+            case GROUP:
+                out.writeUTF(this.group);
+                writeLongString(out, this.data);
+                break;
+            case FALLBACK:
+                out.writeInt(this.level);
+                out.writeUTF(this.group);
+                break;
+            case ADDITIONAL_GROUP:
+                out.writeLong(this.player.getMostSignificantBits());
+                out.writeLong(this.player.getLeastSignificantBits());
+                out.writeUTF(this.group);
+                out.writeBoolean(this.value != null);
+                out.writeInt(this.level);
+                break;
+        }
+    }
+
+    static RepoDelta read(DataInput in) throws IOException {
+        final int ordinal = in.readUnsignedByte();
+        if (ordinal >= KINDS.length) {
+            throw new IOException("Unknown delta kind " + ordinal);
+        }
+        switch (KINDS[ordinal]) {
+            case MEMBERSHIP:
+                return membership(new UUID(in.readLong(), in.readLong()), in.readUTF());
+            case NODE: {
+                final String group = in.readUTF();
+                final String node = in.readUTF();
+                final byte value = in.readByte();
+                return node(group, node, value < 0 ? null : value > 0);
+            }
+            case PARENT:
+                return parent(in.readUTF(), in.readUTF(), in.readBoolean());
+            case GROUP:
+                return group(in.readUTF(), readLongString(in));
+            case FALLBACK:
+                return fallback(in.readInt(), in.readUTF());
+            case ADDITIONAL_GROUP: {
+                final UUID player = new UUID(in.readLong(), in.readLong());
+                final String group = in.readUTF();
+                final boolean present = in.readBoolean();
+                final int priority = in.readInt();
+                return additionalGroup(player, group, present ? priority : null);
+            }
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Like {@link DataOutput#writeUTF} but without its limit of 64 KiB.
+     */
+    static void writeLongString(DataOutput out, String text) throws IOException {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readLongString(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        switch (this.kind) {
+            case MEMBERSHIP:
+                return "membership " + this.player + " -> " + this.group;
+            case NODE:
+                return "node " + this.group + " " + this.key + " = " + this.value;
+            case PARENT:
+                return "parent " + this.group + (Boolean.TRUE.equals(this.value) ? " + " : " - ") + this.key;
+            case GROUP:
+                return "group " + this.group;
+            case ADDITIONAL_GROUP:
+                return "additional group " + this.player + (this.value == null ? " - " : " + ") + this.group
+                        + (this.value == null ? "" : " (" + this.level + ")");
+            default:
+                return "fallback " + this.level + " -> " + this.group;
+        }
+    }
+}
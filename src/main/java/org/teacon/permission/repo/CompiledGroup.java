@@ -0,0 +1,196 @@
+package org.teacon.permission.repo;
+
+import java.util.*;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Immutable, fully resolved view of a group: the order in which the group
+ * and its ancestors are consulted, and the effective value of every node
+ * and meta entry any of them sets.
+ */
+@Immutable
+public final class CompiledGroup {
+
+    private static final String[] NO_NAMES = new String[0];
+
+    public static final CompiledGroup EMPTY = new CompiledGroup("", Collections.singletonList(""), Collections.emptyMap(), Collections.emptyMap(),
+            NO_NAMES, NO_NAMES);
+
+    private final String name;
+
+    private final List<String> chain;
+
+    private final Map<String, Boolean> permissions;
+
+    private final Map<String, MetaValue> meta;
+
+    /**
+     * Nodes the group itself sets and its direct parents, at the time it
+     * was compiled, for command suggestions.
+     */
+    private final String[] ownNodes;
+    private final String[] parents;
+
+    /**
+     * Built from the above on first use. Any change to the group compiles
+     * it anew, so these never go stale; a race merely builds one twice.
+     */
+    @Nullable
+    private volatile NodeCatalogue ownNodeCatalogue;
+    @Nullable
+    private volatile NodeCatalogue parentCatalogue;
+
+    private CompiledGroup(String name, List<String> chain, Map<String, Boolean> permissions, Map<String, MetaValue> meta,
+                          String[] ownNodes, String[] parents) {
+        this.name = name;
+        this.chain = chain;
+        this.permissions = permissions;
+        this.meta = meta;
+        this.ownNodes = ownNodes;
+        this.parents = parents;
+    }
+
+    /**
+     * @return a group that sets nothing and has no parents, e.g. for names
+     * that do not refer to an existing group.
+     */
+    public static CompiledGroup empty(String name) {
+        return name.isEmpty() ? EMPTY : new CompiledGroup(name, Collections.singletonList(name), Collections.emptyMap(), Collections.emptyMap(),
+                NO_NAMES, NO_NAMES);
+    }
+
+    /**
+     * Resolve a group breadth-first through its parents. Earlier groups in
+     * the resolution order take precedence over later ones.
+     */
+    public static CompiledGroup compile(String name, GroupDefinitions definitions) {
+        final Set<String> chain = new LinkedHashSet<>();
+        final Queue<String> queue = new ArrayDeque<>();
+        chain.add(name);
+        for (String current = name; current != null; current = queue.poll()) {
+            for (String parent : definitions.parentsOf(current)) {
+                if (chain.add(parent)) {
+                    queue.offer(parent);
+                }
+            }
+        }
+        final Map<String, Boolean> effective = new HashMap<>();
+        final Map<String, MetaValue> effectiveMeta = new HashMap<>();
+        for (String group : chain) {
+            for (Map.Entry<String, Boolean> entry : definitions.permissionsOf(group).entrySet()) {
+                effective.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, MetaValue> entry : definitions.metaOf(group).entrySet()) {
+                effectiveMeta.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+        return new CompiledGroup(name,
+                Collections.unmodifiableList(new ArrayList<>(chain)),
+                Collections.unmodifiableMap(effective),
+                effectiveMeta.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(effectiveMeta),
+                definitions.permissionsOf(name).keySet().toArray(NO_NAMES), definitions.parentsOf(name).toArray(NO_NAMES));
+    }
+
+    /**
+     * Merge the groups of a player in the given order, earlier groups taking
+     * precedence over later ones along with all of their ancestors.
+     *
+     * @param name name of the result, the group the player is assigned to
+     */
+    public static CompiledGroup combine(String name, List<CompiledGroup> groups) {
+        final Set<String> chain = new LinkedHashSet<>();
+        final Map<String, Boolean> effective = new HashMap<>();
+        final Map<String, MetaValue> effectiveMeta = new HashMap<>();
+        for (CompiledGroup group : groups) {
+            chain.addAll(group.chain);
+            group.permissions.forEach(effective::putIfAbsent);
+            group.meta.forEach(effectiveMeta::putIfAbsent);
+        }
+        return new CompiledGroup(name,
+                Collections.unmodifiableList(new ArrayList<>(chain)),
+                Collections.unmodifiableMap(effective),
+                effectiveMeta.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(effectiveMeta),
+                NO_NAMES, NO_NAMES);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return this group followed by all of its ancestors, in resolution
+     * order; for a combination, every group of it and their ancestors.
+     */
+    public List<String> getChain() {
+        return this.chain;
+    }
+
+    /**
+     * @return effective value of every node set by this group or its ancestors.
+     */
+    public Map<String, Boolean> getPermissions() {
+        return this.permissions;
+    }
+
+    /**
+     * @return the nodes this group itself sets, ignoring its ancestors;
+     * empty for a combination.
+     */
+    public NodeCatalogue getOwnNodeCatalogue() {
+        NodeCatalogue catalogue = this.ownNodeCatalogue;
+        if (catalogue == null) {
+            this.ownNodeCatalogue = catalogue = NodeCatalogue.of(Arrays.asList(this.ownNodes));
+        }
+        return catalogue;
+    }
+
+    /**
+     * @return the direct parents of this group; empty for a combination.
+     */
+    public NodeCatalogue getParentCatalogue() {
+        NodeCatalogue catalogue = this.parentCatalogue;
+        if (catalogue == null) {
+            this.parentCatalogue = catalogue = NodeCatalogue.of(Arrays.asList(this.parents));
+        }
+        return catalogue;
+    }
+
+    @Nullable
+    public Boolean hasPermission(String node) {
+        return this.permissions.get(node);
+    }
+
+    /**
+     * @return effective value of every meta entry set by this group or its ancestors.
+     */
+    public Map<String, MetaValue> getMeta() {
+        return this.meta;
+    }
+
+    @Nullable
+    public MetaValue getMeta(String key) {
+        return this.meta.get(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        final MetaValue value = this.meta.get(key);
+        return value == null ? defaultValue : value.intValue(defaultValue);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        final MetaValue value = this.meta.get(key);
+        return value == null ? defaultValue : value.longValue(defaultValue);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        final MetaValue value = this.meta.get(key);
+        return value == null ? defaultValue : value.doubleValue(defaultValue);
+    }
+
+    public String getString(String key, String defaultValue) {
+        final MetaValue value = this.meta.get(key);
+        return value == null ? defaultValue : value.stringValue();
+    }
+}
@@ -0,0 +1,174 @@
+package org.teacon.permission.repo;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Reverse edges of a {@link UserDataRepo}: the groups inheriting from each
+ * group, the players in each group, primary or additional, and the primary
+ * group each online player resolves to. Lets a change find exactly the
+ * groups and players it affects without looking at the others.
+ * <p>
+ * Updates are serialized; each one takes the current value from the repo
+ * while holding the lock, so that racing updates of the same player end up
+ * agreeing with the repo. A rebuild fills new maps and publishes them at
+ * once, so that readers see either the old edges or the new ones, never a
+ * graph emptied halfway.
+ */
+@ThreadSafe
+final class DependencyGraph {
+
+    private volatile Map<String, Set<String>> children = new ConcurrentHashMap<>();
+
+    private volatile Map<String, Set<UUID>> members = new ConcurrentHashMap<>();
+
+    private final Map<UUID, String> online = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<UUID>> onlineByGroup = new ConcurrentHashMap<>();
+
+    synchronized void rebuildParents(Map<String, UserGroup> groups) {
+        final Map<String, Set<String>> children = new ConcurrentHashMap<>();
+        groups.forEach((name, group) -> {
+            for (String parent : group.parents) {
+                children.computeIfAbsent(parent, k -> ConcurrentHashMap.newKeySet()).add(name);
+            }
+        });
+        this.children = children;
+    }
+
+    /**
+     * @param parents the parents a group has now, called while holding the
+     *                lock
+     */
+    synchronized void updateParent(String group, String parent, Function<String, Collection<String>> parents) {
+        if (parents.apply(group).contains(parent)) {
+            this.children.computeIfAbsent(parent, k -> ConcurrentHashMap.newKeySet()).add(group);
+        } else {
+            remove(this.children, parent, group);
+        }
+    }
+
+    synchronized void rebuildMembers(Map<UUID, String> users, Map<UUID, Map<String, Integer>> additionalGroups) {
+        final Map<String, Set<UUID>> members = new ConcurrentHashMap<>();
+        users.forEach((id, group) -> members.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet()).add(id));
+        additionalGroups.forEach((id, groups) -> groups.keySet()
+                .forEach(group -> members.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet()).add(id)));
+        this.members = members;
+    }
+
+    /**
+     * @param previous groups the player was in before the change that is
+     *                 being recorded
+     * @param current  the groups a player is in now, called while holding
+     *                 the lock
+     */
+    synchronized void updateMember(UUID id, Collection<String> previous, Function<UUID, Collection<String>> current) {
+        for (String group : previous) {
+            remove(this.members, group, id);
+        }
+        for (String group : current.apply(id)) {
+            this.members.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    /**
+     * @param resolver the group a player resolves to now, called while
+     *                 holding the lock
+     * @return the group the player resolved to before, {@code null} if the
+     * player was offline
+     */
+    @Nullable
+    synchronized String setOnline(UUID id, Function<UUID, String> resolver) {
+        final String group = resolver.apply(id);
+        final String previous = this.online.put(id, group);
+        if (previous != null) {
+            remove(this.onlineByGroup, previous, id);
+        }
+        this.onlineByGroup.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet()).add(id);
+        return previous;
+    }
+
+    /**
+     * Like {@link #setOnline}, but leaves offline players alone.
+     *
+     * @return the group the player resolved to before, {@code null} if the
+     * player is offline
+     */
+    @Nullable
+    synchronized String updateOnline(UUID id, Function<UUID, String> resolver) {
+        return this.online.containsKey(id) ? this.setOnline(id, resolver) : null;
+    }
+
+    synchronized void setOffline(UUID id) {
+        final String previous = this.online.remove(id);
+        if (previous != null) {
+            remove(this.onlineByGroup, previous, id);
+        }
+    }
+
+    private static <K, V> void remove(Map<K, Set<V>> map, K key, V value) {
+        map.computeIfPresent(key, (k, set) -> {
+            set.remove(value);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    Collection<UUID> online() {
+        return Collections.unmodifiableSet(this.online.keySet());
+    }
+
+    @Nullable
+    String onlineGroupOf(UUID id) {
+        return this.online.get(id);
+    }
+
+    Set<UUID> membersOf(String group) {
+        final Set<UUID> set = this.members.get(group);
+        return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+    }
+
+    Set<UUID> onlineIn(String group) {
+        final Set<UUID> set = this.onlineByGroup.get(group);
+        return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @return the group and every group inheriting from it, directly or not.
+     */
+    Set<String> descendantsOf(String group) {
+        final Map<String, Set<String>> children = this.children;
+        final Set<String> ret = new HashSet<>();
+        final Queue<String> queue = new ArrayDeque<>();
+        for (String next = group; next != null; next = queue.poll()) {
+            // Cycles are not prevented elsewhere, so each group is visited once
+            if (ret.add(next)) {
+                queue.addAll(children.getOrDefault(next, Collections.emptySet()));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return players in any of the groups, and online players
+     * resolving to any of them.
+     */
+    Set<UUID> playersIn(Collection<String> groups) {
+        final Set<UUID> ret = new HashSet<>();
+        for (String group : groups) {
+            ret.addAll(this.membersOf(group));
+            ret.addAll(this.onlineIn(group));
+        }
+        return ret;
+    }
+}
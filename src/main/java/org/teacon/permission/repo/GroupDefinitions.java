@@ -0,0 +1,17 @@
+package org.teacon.permission.repo;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Raw, uncompiled content of groups, as set by admins. Every method returns
+ * an empty collection for unknown groups.
+ */
+public interface GroupDefinitions {
+
+    Collection<String> parentsOf(String group);
+
+    Map<String, Boolean> permissionsOf(String group);
+
+    Map<String, MetaValue> metaOf(String group);
+}
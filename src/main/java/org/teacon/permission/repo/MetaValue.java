@@ -0,0 +1,115 @@
+package org.teacon.permission.repo;
+
+import java.util.Locale;
+import java.util.Objects;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Typed value of a group meta entry, e.g. a quota or a cooldown. Numeric
+ * values convert between each other; strings never convert to numbers.
+ */
+@Immutable
+public final class MetaValue {
+
+    public enum Type {
+        INT, LONG, DOUBLE, STRING;
+
+        public String getName() {
+            return this.name().toLowerCase(Locale.ROOT);
+        }
+
+        public static Type byName(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Type type;
+
+    private final long longValue;
+
+    private final double doubleValue;
+
+    private final String stringValue;
+
+    private MetaValue(Type type, long longValue, double doubleValue, String stringValue) {
+        this.type = type;
+        this.longValue = longValue;
+        this.doubleValue = doubleValue;
+        this.stringValue = stringValue;
+    }
+
+    public static MetaValue ofInt(int value) {
+        return new MetaValue(Type.INT, value, value, Integer.toString(value));
+    }
+
+    public static MetaValue ofLong(long value) {
+        return new MetaValue(Type.LONG, value, value, Long.toString(value));
+    }
+
+    public static MetaValue ofDouble(double value) {
+        return new MetaValue(Type.DOUBLE, (long) value, value, Double.toString(value));
+    }
+
+    public static MetaValue ofString(String value) {
+        return new MetaValue(Type.STRING, 0L, 0.0, value);
+    }
+
+    /**
+     * @throws NumberFormatException if the text is not a valid value of the type
+     */
+    public static MetaValue parse(Type type, String text) {
+        switch (type) {
+            case INT:
+                return ofInt(Integer.parseInt(text));
+            case LONG:
+                return ofLong(Long.parseLong(text));
+            case DOUBLE:
+                return ofDouble(Double.parseDouble(text));
+            default:
+                return ofString(text);
+        }
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public boolean isNumeric() {
+        return this.type != Type.STRING;
+    }
+
+    public int intValue(int defaultValue) {
+        return this.isNumeric() ? (int) this.longValue : defaultValue;
+    }
+
+    public long longValue(long defaultValue) {
+        return this.isNumeric() ? this.longValue : defaultValue;
+    }
+
+    public double doubleValue(double defaultValue) {
+        return this.isNumeric() ? this.doubleValue : defaultValue;
+    }
+
+    public String stringValue() {
+        return this.stringValue;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MetaValue)) return false;
+        final MetaValue that = (MetaValue) o;
+        return this.type == that.type && this.stringValue.equals(that.stringValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.type, this.stringValue);
+    }
+
+    @Override
+    public String toString() {
+        return this.stringValue + " (" + this.type.getName() + ")";
+    }
+}
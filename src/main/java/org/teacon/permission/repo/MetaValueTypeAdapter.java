@@ -0,0 +1,61 @@
+package org.teacon.permission.repo;
+
+import com.google.gson.*;
+
+import java.lang.reflect.Type;
+
+/**
+ * Stores a {@link MetaValue} as {@code {"type": "int", "value": 5}}. Bare
+ * numbers and strings are accepted too, so that hand-written files stay
+ * short; numbers then become the narrowest type that holds them.
+ */
+public class MetaValueTypeAdapter implements JsonSerializer<MetaValue>, JsonDeserializer<MetaValue> {
+
+    @Override
+    public MetaValue deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+        try {
+            if (json.isJsonObject()) {
+                final JsonObject object = json.getAsJsonObject();
+                if (!object.has("type") || !object.has("value")) {
+                    throw new JsonParseException("Meta value needs both 'type' and 'value': " + json);
+                }
+                return MetaValue.parse(MetaValue.Type.byName(object.get("type").getAsString()), object.get("value").getAsString());
+            }
+            if (json.isJsonPrimitive()) {
+                final JsonPrimitive primitive = json.getAsJsonPrimitive();
+                if (!primitive.isNumber()) {
+                    return MetaValue.ofString(primitive.getAsString());
+                }
+                final String text = primitive.getAsString();
+                try {
+                    final long value = Long.parseLong(text);
+                    return value == (int) value ? MetaValue.ofInt((int) value) : MetaValue.ofLong(value);
+                } catch (NumberFormatException e) {
+                    return MetaValue.ofDouble(Double.parseDouble(text));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new JsonParseException("Invalid meta value: " + json, e);
+        }
+        throw new JsonParseException("Invalid meta value: " + json);
+    }
+
+    @Override
+    public JsonElement serialize(MetaValue src, Type typeOfSrc, JsonSerializationContext context) {
+        final JsonObject object = new JsonObject();
+        object.addProperty("type", src.getType().getName());
+        switch (src.getType()) {
+            case INT:
+            case LONG:
+                object.addProperty("value", src.longValue(0L));
+                break;
+            case DOUBLE:
+                object.addProperty("value", src.doubleValue(0.0));
+                break;
+            default:
+                object.addProperty("value", src.stringValue());
+                break;
+        }
+        return object;
+    }
+}
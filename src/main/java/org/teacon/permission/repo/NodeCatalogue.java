@@ -0,0 +1,68 @@
+package org.teacon.permission.repo;
+
+import java.util.*;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Sorted, immutable catalogue of dot-separated names (permission nodes,
+ * group names) that answers prefix queries by binary search.
+ */
+@Immutable
+public final class NodeCatalogue {
+
+    public static final NodeCatalogue EMPTY = new NodeCatalogue(new String[0]);
+
+    private final String[] sorted;
+
+    private NodeCatalogue(String[] sorted) {
+        this.sorted = sorted;
+    }
+
+    public static NodeCatalogue of(Collection<String> names) {
+        final String[] sorted = new TreeSet<>(names).toArray(new String[0]);
+        return sorted.length == 0 ? EMPTY : new NodeCatalogue(sorted);
+    }
+
+    public int size() {
+        return this.sorted.length;
+    }
+
+    /**
+     * Complete the given prefix, at most one segment further. For example
+     * {@code command.} yields {@code command.simple_perms} rather than every
+     * node below it; names without further segments are returned as-is.
+     *
+     * @param limit maximum number of results
+     */
+    public List<String> suggest(String prefix, int limit) {
+        final List<String> result = new ArrayList<>();
+        int i = this.lowerBound(prefix);
+        while (i < this.sorted.length && result.size() < limit && this.sorted[i].startsWith(prefix)) {
+            final String name = this.sorted[i];
+            int from = prefix.length();
+            // The prefix ends right before a separator, complete the segment after it
+            if (from > 0 && from < name.length() && name.charAt(from) == '.') {
+                ++from;
+            }
+            final int dot = name.indexOf('.', from);
+            if (dot < 0) {
+                result.add(name);
+                ++i;
+            } else {
+                final String segment = name.substring(0, dot);
+                if (result.isEmpty() || !result.get(result.size() - 1).equals(segment)) {
+                    result.add(segment);
+                }
+                // '/' sorts right after '.', so this skips everything below the segment
+                i = this.lowerBound(segment + '/');
+            }
+        }
+        return result;
+    }
+
+    private int lowerBound(String key) {
+        final int index = Arrays.binarySearch(this.sorted, key);
+        return index >= 0 ? index : -index - 1;
+    }
+}
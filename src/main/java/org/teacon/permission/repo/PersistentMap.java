@@ -0,0 +1,352 @@
+package org.teacon.permission.repo;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Immutable hash map whose updates return a new map sharing everything but
+ * the path to the changed entry, a hash array mapped trie. Lets a
+ * {@link RepoSnapshot} be derived from the previous one in time
+ * proportional to the players that changed, rather than to all of them.
+ * Lookups neither allocate nor lock. Keys and values must not be null.
+ */
+@Immutable
+final class PersistentMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(new Node(0, new Object[0]), 0);
+
+    /**
+     * Root of the trie, never a leaf.
+     */
+    private final Node root;
+
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    static <K, V> PersistentMap<K, V> copyOf(Map<K, V> map) {
+        if (map instanceof PersistentMap) {
+            return (PersistentMap<K, V>) map;
+        }
+        PersistentMap<K, V> ret = empty();
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            ret = ret.with(entry.getKey(), entry.getValue());
+        }
+        return ret;
+    }
+
+    /**
+     * Inner node: a bitmap of the occupied slots among the 32 a level of the
+     * hash addresses, and for each a {@link Leaf} or another node. Nodes
+     * below the deepest level hold leaves of equal hashes, with every bit
+     * of the bitmap set.
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private static final class Leaf<K, V> extends SimpleImmutableEntry<K, V> {
+        final int hash;
+
+        Leaf(int hash, K key, V value) {
+            super(key, value);
+            this.hash = hash;
+        }
+    }
+
+    private static int hash(Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean isCollision(int shift) {
+        return shift >= Integer.SIZE;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.get(key) != null;
+    }
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        final int hash = hash(key);
+        Node node = this.root;
+        for (int shift = 0; ; shift += BITS) {
+            if (isCollision(shift)) {
+                for (Object slot : node.slots) {
+                    if (((Leaf<K, V>) slot).getKey().equals(key)) {
+                        return ((Leaf<K, V>) slot).getValue();
+                    }
+                }
+                return null;
+            }
+            final int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            final Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Leaf) {
+                final Leaf<K, V> leaf = (Leaf<K, V>) slot;
+                return leaf.hash == hash && leaf.getKey().equals(key) ? leaf.getValue() : null;
+            }
+            node = (Node) slot;
+        }
+    }
+
+    /**
+     * @return a map with the given entry added or replaced, this one if
+     * the key maps to the same value already.
+     */
+    PersistentMap<K, V> with(K key, V value) {
+        final int hash = hash(key);
+        final boolean[] added = new boolean[1];
+        final Node root = with(this.root, 0, new Leaf<>(hash, key, value), added);
+        return root == this.root ? this : new PersistentMap<>(root, added[0] ? this.size + 1 : this.size);
+    }
+
+    /**
+     * @return a map without the given key, this one if it is absent.
+     */
+    PersistentMap<K, V> without(K key) {
+        final Object root = without(this.root, 0, hash(key), key);
+        if (root == this.root) {
+            return this;
+        }
+        if (root == null) {
+            return empty();
+        }
+        // A single leaf left in the root stays in a node of its own
+        return new PersistentMap<>(root instanceof Node ? (Node) root : single(((Leaf<?, ?>) root).hash, 0, root), this.size - 1);
+    }
+
+    private static Node single(int hash, int shift, Object slot) {
+        return new Node(1 << ((hash >>> shift) & MASK), new Object[]{slot});
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Node with(Node node, int shift, Leaf<?, ?> leaf, boolean[] added) {
+        if (isCollision(shift)) {
+            for (int i = 0; i < node.slots.length; ++i) {
+                final Leaf<?, ?> existing = (Leaf<?, ?>) node.slots[i];
+                if (existing.getKey().equals(leaf.getKey())) {
+                    return existing.getValue().equals(leaf.getValue()) ? node : new Node(node.bitmap, replace(node.slots, i, leaf));
+                }
+            }
+            added[0] = true;
+            return new Node(node.bitmap, insert(node.slots, node.slots.length, leaf));
+        }
+        final int bit = 1 << ((leaf.hash >>> shift) & MASK);
+        final int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            return new Node(node.bitmap | bit, insert(node.slots, index, leaf));
+        }
+        final Object slot = node.slots[index];
+        final Object replacement;
+        if (slot instanceof Leaf) {
+            final Leaf<?, ?> existing = (Leaf<?, ?>) slot;
+            if (existing.hash == leaf.hash && existing.getKey().equals(leaf.getKey())) {
+                if (existing.getValue().equals(leaf.getValue())) {
+                    return node;
+                }
+                replacement = leaf;
+            } else {
+                added[0] = true;
+                replacement = merge(existing, leaf, shift + BITS);
+            }
+        } else {
+            replacement = with((Node) slot, shift + BITS, leaf, added);
+            if (replacement == slot) {
+                return node;
+            }
+        }
+        return new Node(node.bitmap, replace(node.slots, index, replacement));
+    }
+
+    /**
+     * @return a node holding two leaves of different keys, as deep as
+     * their hashes have the same bits.
+     */
+    private static Node merge(Leaf<?, ?> a, Leaf<?, ?> b, int shift) {
+        if (isCollision(shift)) {
+            return new Node(-1, new Object[]{a, b});
+        }
+        final int indexA = (a.hash >>> shift) & MASK;
+        final int indexB = (b.hash >>> shift) & MASK;
+        if (indexA == indexB) {
+            return new Node(1 << indexA, new Object[]{merge(a, b, shift + BITS)});
+        }
+        return new Node((1 << indexA) | (1 << indexB), indexA < indexB ? new Object[]{a, b} : new Object[]{b, a});
+    }
+
+    /**
+     * @return the node without the key: the same node if it is absent,
+     * {@code null} if nothing is left, or the only leaf left, for the
+     * parent to hold instead.
+     */
+    @Nullable
+    private static Object without(Node node, int shift, int hash, Object key) {
+        if (isCollision(shift)) {
+            for (int i = 0; i < node.slots.length; ++i) {
+                if (((Leaf<?, ?>) node.slots[i]).getKey().equals(key)) {
+                    return node.slots.length == 2 ? node.slots[1 - i] : new Node(node.bitmap, remove(node.slots, i));
+                }
+            }
+            return node;
+        }
+        final int bit = 1 << ((hash >>> shift) & MASK);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        final int index = Integer.bitCount(node.bitmap & (bit - 1));
+        final Object slot = node.slots[index];
+        final Object replacement;
+        if (slot instanceof Leaf) {
+            final Leaf<?, ?> leaf = (Leaf<?, ?>) slot;
+            if (leaf.hash != hash || !leaf.getKey().equals(key)) {
+                return node;
+            }
+            replacement = null;
+        } else {
+            replacement = without((Node) slot, shift + BITS, hash, key);
+            if (replacement == slot) {
+                return node;
+            }
+        }
+        if (replacement != null) {
+            if (replacement instanceof Leaf && node.slots.length == 1) {
+                return replacement;
+            }
+            return new Node(node.bitmap, replace(node.slots, index, replacement));
+        }
+        if (node.slots.length == 1) {
+            return null;
+        }
+        if (node.slots.length == 2 && node.slots[1 - index] instanceof Leaf) {
+            return node.slots[1 - index];
+        }
+        return new Node(node.bitmap & ~bit, remove(node.slots, index));
+    }
+
+    private static Object[] replace(Object[] slots, int index, Object slot) {
+        final Object[] ret = slots.clone();
+        ret[index] = slot;
+        return ret;
+    }
+
+    private static Object[] insert(Object[] slots, int index, Object slot) {
+        final Object[] ret = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, ret, 0, index);
+        ret[index] = slot;
+        System.arraycopy(slots, index, ret, index + 1, slots.length - index);
+        return ret;
+    }
+
+    private static Object[] remove(Object[] slots, int index) {
+        final Object[] ret = new Object[slots.length - 1];
+        System.arraycopy(slots, 0, ret, 0, index);
+        System.arraycopy(slots, index + 1, ret, index, ret.length - index);
+        return ret;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator<>(PersistentMap.this.root);
+            }
+
+            @Override
+            public int size() {
+                return PersistentMap.this.size;
+            }
+        };
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+
+        /**
+         * Slots of the nodes on the path to the next leaf, and the position
+         * in each; deep enough for every level and the collision nodes.
+         */
+        private final Object[][] path = new Object[Integer.SIZE / BITS + 2][];
+        private final int[] positions = new int[Integer.SIZE / BITS + 2];
+        private int depth;
+
+        @Nullable
+        private Leaf<K, V> next;
+
+        EntryIterator(Node root) {
+            this.path[0] = root.slots;
+            this.advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            this.next = null;
+            while (this.depth >= 0) {
+                final Object[] slots = this.path[this.depth];
+                if (this.positions[this.depth] == slots.length) {
+                    --this.depth;
+                    continue;
+                }
+                final Object slot = slots[this.positions[this.depth]++];
+                if (slot instanceof Leaf) {
+                    this.next = (Leaf<K, V>) slot;
+                    return;
+                }
+                ++this.depth;
+                this.path[this.depth] = ((Node) slot).slots;
+                this.positions[this.depth] = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            final Leaf<K, V> ret = this.next;
+            if (ret == null) {
+                throw new NoSuchElementException();
+            }
+            this.advance();
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.teacon.permission.repo;
+
+import com.mojang.authlib.GameProfile;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Everything {@link UserDataRepo} needs from the server it runs on.
+ * Decoupling it this way allows exercising the repo without a game.
+ */
+public interface RepoHost {
+
+    /**
+     * @return ids of the players currently online.
+     */
+    Collection<UUID> getOnlinePlayers();
+
+    /**
+     * Re-evaluate the display name of a player after their prefix may have
+     * changed. Does nothing if the player is offline.
+     */
+    void refreshDisplayName(UUID id);
+
+    /**
+     * @return op level of the given player, 0 if they are unknown. Only
+     * safe to call on the thread of {@link #getMainExecutor()}.
+     */
+    int getOpLevel(UUID id);
+
+    /**
+     * @return op level of the given player. Only safe to call on the thread
+     * of {@link #getMainExecutor()}.
+     */
+    int getOpLevel(GameProfile profile);
+
+    /**
+     * @return executor of the thread that owns the server state.
+     */
+    Executor getMainExecutor();
+}
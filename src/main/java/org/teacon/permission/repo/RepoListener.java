@@ -0,0 +1,69 @@
+package org.teacon.permission.repo;
+
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Notified after a change to a {@link UserDataRepo} is applied, on the
+ * thread that made it. Affected players are those in the changed group or
+ * one of its descendants, primary or additional, plus online players
+ * falling back to such a group; offline players without an assignment
+ * cannot be known.
+ */
+public interface RepoListener {
+
+    /**
+     * @param previous group the player was assigned to, empty if none
+     * @param current  group the player is assigned to now, empty if none
+     */
+    default void onMembershipChanged(UUID id, String previous, String current) {
+    }
+
+    /**
+     * A player was put in or removed from a group besides their primary one,
+     * or the priority changed.
+     *
+     * @param previous priority before the change, {@code null} if not in the group
+     * @param current  priority after the change, {@code null} if removed
+     */
+    default void onAdditionalGroupChanged(UUID id, String group, @Nullable Integer previous, @Nullable Integer current) {
+    }
+
+    /**
+     * @param previous value before the change, {@code null} if unset
+     * @param current  value after the change, {@code null} if revoked
+     */
+    default void onPermissionChanged(String group, String node, @Nullable Boolean previous, @Nullable Boolean current, Set<UUID> affected) {
+    }
+
+    /**
+     * @param added true if the parent was added, false if removed
+     */
+    default void onParentsChanged(String group, String parent, boolean added, Set<UUID> affected) {
+    }
+
+    /**
+     * Anything else about a group changed: it was created, or its meta,
+     * prefix or game type was set. Prefix and game type are not inherited,
+     * so for these only players in the group itself are affected.
+     */
+    default void onGroupChanged(String group, Set<UUID> affected) {
+    }
+
+    /**
+     * @param group    group players of the op level fall back to now
+     * @param affected online players who fall back to another group now
+     */
+    default void onFallbackGroupChanged(int opLevel, String group, Set<UUID> affected) {
+    }
+
+    /**
+     * @param affected players whose assignment or compiled group differs
+     *                 after the reload, and online players who resolve to
+     *                 another group now
+     */
+    default void onReloaded(Set<UUID> affected) {
+    }
+}
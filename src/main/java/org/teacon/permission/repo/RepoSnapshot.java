@@ -0,0 +1,383 @@
+package org.teacon.permission.repo;
+
+import java.util.*;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Immutable copy of a {@link UserDataRepo} with every group compiled. Safe
+ * to query from any thread; it never touches server state, so op levels
+ * have to be supplied by the caller.
+ */
+@Immutable
+public final class RepoSnapshot {
+
+    private final long version;
+
+    private final PersistentMap<UUID, String> users;
+
+    private final Map<String, CompiledGroup> groups;
+
+    private final NavigableMap<Integer, String> fallbackGroups;
+
+    private final NodeCatalogue groupCatalogue;
+
+    private final PersistentMap<UUID, Map<String, Integer>> additionalGroups;
+
+    /**
+     * Empty groups standing in for missing groups that players or op levels
+     * still refer to, created up front so that lookups never allocate.
+     */
+    private final Map<String, CompiledGroup> missingGroups;
+
+    /**
+     * Players in additional groups, by the map of their additional groups.
+     * The repo interns these maps, so that players in the same groups share
+     * one entry. Maps are told apart by identity, so that finding the entry
+     * of a player neither hashes a map nor allocates.
+     */
+    private final Map<Map<String, Integer>, Membership> memberships;
+
+    /**
+     * Every distinct combination by its primary group followed by the
+     * order of its groups, with the
+     * groups it was made of, so that the next snapshot can keep those whose
+     * groups did not change.
+     */
+    private final Map<List<String>, Combination> combinations;
+
+    private static final class Combination {
+        final List<CompiledGroup> parts;
+        final CompiledGroup table;
+
+        Combination(List<CompiledGroup> parts, CompiledGroup table) {
+            this.parts = parts;
+            this.table = table;
+        }
+    }
+
+    private static final class Membership {
+        /**
+         * Number of players by primary group, under {@code null} for players
+         * without an assigned one.
+         */
+        final Map<String, Integer> primaries;
+        /**
+         * Compiled tables by primary group. Players without an assigned
+         * group have one for every fallback group.
+         */
+        final Map<String, CompiledGroup> tables;
+
+        Membership(Map<String, Integer> primaries, Map<String, CompiledGroup> tables) {
+            this.primaries = primaries;
+            this.tables = tables;
+        }
+    }
+
+    public RepoSnapshot(long version, Map<UUID, String> users, Map<String, CompiledGroup> groups, Map<Integer, String> fallbackGroups) {
+        this(version, users, Collections.emptyMap(), groups, fallbackGroups, null);
+    }
+
+    /**
+     * @param additionalGroups groups players are in besides their primary
+     *                         one, with priorities; the primary group has
+     *                         priority 0 and wins ties
+     * @param previous         snapshot to take unchanged combinations from
+     */
+    public RepoSnapshot(long version, Map<UUID, String> users, Map<UUID, Map<String, Integer>> additionalGroups,
+                        Map<String, CompiledGroup> groups, Map<Integer, String> fallbackGroups, @Nullable RepoSnapshot previous) {
+        this(version, PersistentMap.copyOf(users), PersistentMap.copyOf(additionalGroups), new HashMap<>(groups),
+                fallbackGroups, previous, null);
+    }
+
+    /**
+     * @param groups  owned by the snapshot from now on, or the groups of
+     *                {@code previous}
+     * @param changed players whose entries differ from {@code previous},
+     *                {@code null} if any may differ
+     */
+    private RepoSnapshot(long version, PersistentMap<UUID, String> users, PersistentMap<UUID, Map<String, Integer>> additionalGroups,
+                         Map<String, CompiledGroup> groups, Map<Integer, String> fallbackGroups,
+                         @Nullable RepoSnapshot previous, @Nullable Collection<UUID> changed) {
+        this.version = version;
+        this.users = users;
+        this.additionalGroups = additionalGroups;
+        final boolean sameGroups = previous != null && (groups == previous.groups || sameGroups(previous.groups, groups));
+        this.groups = sameGroups ? previous.groups : Collections.unmodifiableMap(groups);
+        final boolean sameFallbackGroups = previous != null && previous.fallbackGroups.equals(fallbackGroups);
+        this.fallbackGroups = sameFallbackGroups ? previous.fallbackGroups : Collections.unmodifiableNavigableMap(new TreeMap<>(fallbackGroups));
+        this.groupCatalogue = previous != null && previous.groups.keySet().equals(this.groups.keySet())
+                ? previous.groupCatalogue : NodeCatalogue.of(this.groups.keySet());
+        final boolean incremental = previous != null && changed != null;
+
+        final Map<String, CompiledGroup> missing = new HashMap<>();
+        if (incremental) {
+            missing.putAll(previous.missingGroups);
+            if (!sameGroups) {
+                // Groups gone since the previous snapshot may still be referred to
+                for (String name : previous.groups.keySet()) {
+                    this.addIfMissing(missing, name);
+                }
+                missing.keySet().removeAll(this.groups.keySet());
+            }
+            for (UUID id : changed) {
+                final String name = this.users.get(id);
+                if (name != null) {
+                    this.addIfMissing(missing, name);
+                }
+            }
+        } else {
+            for (String name : this.users.values()) {
+                this.addIfMissing(missing, name);
+            }
+        }
+        if (!sameFallbackGroups) {
+            for (String name : this.fallbackGroups.values()) {
+                this.addIfMissing(missing, name);
+            }
+        }
+        this.missingGroups = incremental && missing.equals(previous.missingGroups) ? previous.missingGroups : missing;
+
+        // Count players by their additional groups and primary group
+        final Map<Map<String, Integer>, Map<String, Integer>> counts = new IdentityHashMap<>();
+        if (incremental) {
+            previous.memberships.forEach((additional, membership) -> counts.put(additional, new HashMap<>(membership.primaries)));
+            for (UUID id : changed) {
+                count(counts, previous.additionalGroups.get(id), previous.users.get(id), -1);
+                count(counts, this.additionalGroups.get(id), this.users.get(id), 1);
+            }
+        } else {
+            this.additionalGroups.forEach((id, additional) -> count(counts, additional, this.users.get(id), 1));
+        }
+
+        // Tables only have to be combined again once groups they are made of changed
+        final boolean recombine = !incremental || !sameFallbackGroups || !sameGroups;
+        this.combinations = recombine ? new HashMap<>() : new HashMap<>(previous.combinations);
+        this.memberships = new IdentityHashMap<>();
+        final Set<String> fallbacks = new HashSet<>(this.fallbackGroups.values());
+        counts.forEach((additional, primaries) -> {
+            final Membership existing = previous == null ? null : previous.memberships.get(additional);
+            if (!recombine && existing != null && existing.primaries.keySet().equals(primaries.keySet())) {
+                this.memberships.put(additional, new Membership(primaries, existing.tables));
+                return;
+            }
+            final Map<String, CompiledGroup> tables = new HashMap<>();
+            for (String assigned : primaries.keySet()) {
+                for (String primary : assigned != null ? Collections.singleton(assigned) : fallbacks) {
+                    if (!tables.containsKey(primary)) {
+                        tables.put(primary, this.combine(primary, additional, previous));
+                    }
+                }
+            }
+            this.memberships.put(additional, new Membership(primaries, tables));
+        });
+    }
+
+    /**
+     * @return a snapshot of the given state, taking everything that did not
+     * change from this one.
+     * @param users            current assignments, only read for the changed players
+     * @param additionalGroups current additional groups, only read for the changed players
+     * @param changed          players whose entries may differ from this
+     *                         snapshot, {@code null} if any may
+     */
+    RepoSnapshot next(long version, Map<UUID, String> users, Map<UUID, Map<String, Integer>> additionalGroups,
+                      @Nullable Collection<UUID> changed, Map<String, CompiledGroup> groups, Map<Integer, String> fallbackGroups) {
+        if (changed == null) {
+            return new RepoSnapshot(version, PersistentMap.copyOf(users), PersistentMap.copyOf(additionalGroups),
+                    groups, fallbackGroups, this, null);
+        }
+        PersistentMap<UUID, String> nextUsers = this.users;
+        PersistentMap<UUID, Map<String, Integer>> nextAdditionalGroups = this.additionalGroups;
+        for (UUID id : changed) {
+            final String group = users.get(id);
+            nextUsers = group == null ? nextUsers.without(id) : nextUsers.with(id, group);
+            final Map<String, Integer> additional = additionalGroups.get(id);
+            nextAdditionalGroups = additional == null ? nextAdditionalGroups.without(id) : nextAdditionalGroups.with(id, additional);
+        }
+        return new RepoSnapshot(version, nextUsers, nextAdditionalGroups, groups, fallbackGroups, this, changed);
+    }
+
+    private void addIfMissing(Map<String, CompiledGroup> missing, String name) {
+        if (!this.groups.containsKey(name) && !missing.containsKey(name)) {
+            missing.put(name, CompiledGroup.empty(name));
+        }
+    }
+
+    private static void count(Map<Map<String, Integer>, Map<String, Integer>> counts,
+                              @Nullable Map<String, Integer> additional, @Nullable String primary, int delta) {
+        if (additional == null) {
+            return;
+        }
+        final Map<String, Integer> primaries = counts.computeIfAbsent(additional, k -> new HashMap<>());
+        primaries.merge(primary, delta, (a, b) -> a + b == 0 ? null : a + b);
+        if (primaries.isEmpty()) {
+            counts.remove(additional);
+        }
+    }
+
+    private static boolean sameGroups(Map<String, CompiledGroup> a, Map<String, CompiledGroup> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (Map.Entry<String, CompiledGroup> entry : a.entrySet()) {
+            // Compiled groups are shared between snapshots until they change
+            if (b.get(entry.getKey()) != entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private CompiledGroup combine(String primary, Map<String, Integer> additional, @Nullable RepoSnapshot previous) {
+        final List<String> order = new ArrayList<>(additional.keySet());
+        order.remove(primary);
+        order.add(primary);
+        // Higher priorities first, the primary group before others of the same priority, then by name
+        order.sort(Comparator.comparingInt((String name) -> name.equals(primary) ? 0 : additional.get(name)).reversed()
+                .thenComparing(name -> !name.equals(primary))
+                .thenComparing(Comparator.naturalOrder()));
+        // The primary group names the table, so it is part of the key too
+        final List<String> key = new ArrayList<>(order.size() + 1);
+        key.add(primary);
+        key.addAll(order);
+        final Combination existing = this.combinations.get(key);
+        if (existing != null) {
+            return existing.table;
+        }
+        final List<CompiledGroup> parts = new ArrayList<>(order.size());
+        for (String name : order) {
+            final CompiledGroup group = this.groups.get(name);
+            parts.add(group != null ? group : CompiledGroup.empty(name));
+        }
+        Combination combination = previous == null ? null : previous.combinations.get(key);
+        if (combination == null || !sameParts(combination.parts, parts)) {
+            combination = new Combination(parts, CompiledGroup.combine(primary, parts));
+        }
+        this.combinations.put(key, combination);
+        return combination.table;
+    }
+
+    private static boolean sameParts(List<CompiledGroup> a, List<CompiledGroup> b) {
+        for (int i = 0; i < a.size(); ++i) {
+            // Compiled groups are shared between snapshots until they change
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return modification count of the repo this snapshot was taken from.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    public Map<UUID, String> getUsers() {
+        return this.users;
+    }
+
+    /**
+     * @return groups players are in besides their primary one, with their
+     * priorities, for players in any.
+     */
+    public Map<UUID, Map<String, Integer>> getAdditionalGroups() {
+        return this.additionalGroups;
+    }
+
+    /**
+     * @return the number of distinct group combinations players resolve to.
+     */
+    public int getCombinationCount() {
+        final Set<CompiledGroup> tables = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Membership membership : this.memberships.values()) {
+            tables.addAll(membership.tables.values());
+        }
+        return tables.size();
+    }
+
+    public Map<String, CompiledGroup> getGroups() {
+        return this.groups;
+    }
+
+    public NodeCatalogue getGroupCatalogue() {
+        return this.groupCatalogue;
+    }
+
+    /**
+     * @return groups that exist in only one of the snapshots, or that
+     * resolve differently in each.
+     */
+    public Set<String> changedGroups(RepoSnapshot other) {
+        final Set<String> changed = new HashSet<>();
+        final Set<String> names = new HashSet<>(this.groups.keySet());
+        names.addAll(other.groups.keySet());
+        for (String name : names) {
+            final CompiledGroup previous = this.groups.get(name);
+            final CompiledGroup current = other.groups.get(name);
+            if (previous == null || current == null || !previous.getChain().equals(current.getChain())
+                    || !previous.getPermissions().equals(current.getPermissions()) || !previous.getMeta().equals(current.getMeta())) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if the group of the given player depends on their op level.
+     */
+    public boolean needsOpLevel(UUID id) {
+        return !this.users.containsKey(id) && this.fallbackGroups.size() > 1;
+    }
+
+    public String getFallbackGroup(int opLevel) {
+        for (int level = opLevel; level > 0; --level) {
+            final String group = this.fallbackGroups.get(level);
+            if (group != null) {
+                return group;
+            }
+        }
+        return this.fallbackGroups.getOrDefault(0, "");
+    }
+
+    /**
+     * @return the primary group of the player.
+     */
+    public String lookup(UUID id, int opLevel) {
+        final String group = this.users.get(id);
+        return group == null ? this.getFallbackGroup(opLevel) : group;
+    }
+
+    public CompiledGroup getGroup(String name) {
+        CompiledGroup group = this.groups.get(name);
+        if (group == null) {
+            group = this.missingGroups.get(name);
+        }
+        return group == null ? CompiledGroup.empty(name) : group;
+    }
+
+    /**
+     * @return the compiled primary group of the player, combined with their
+     * additional groups if any.
+     */
+    public CompiledGroup resolve(UUID id, int opLevel) {
+        final String primary = this.lookup(id, opLevel);
+        final Map<String, Integer> additional = this.additionalGroups.get(id);
+        final Membership membership = additional == null ? null : this.memberships.get(additional);
+        if (membership != null) {
+            final CompiledGroup table = membership.tables.get(primary);
+            if (table != null) {
+                return table;
+            }
+        }
+        return this.getGroup(primary);
+    }
+
+    @Nullable
+    public Boolean hasPermission(UUID id, String node, int opLevel) {
+        return this.resolve(id, opLevel).hasPermission(node);
+    }
+}
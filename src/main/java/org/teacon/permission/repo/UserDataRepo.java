@@ -1,29 +1,45 @@
 package org.teacon.permission.repo;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 import com.mojang.authlib.GameProfile;
-import net.minecraft.entity.player.ServerPlayerEntity;
-import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.text.IFormattableTextComponent;
 import net.minecraft.util.text.ITextComponent;
 import net.minecraft.util.text.TextFormatting;
 import net.minecraft.util.text.TranslationTextComponent;
 import net.minecraft.world.GameType;
+import org.teacon.permission.jfr.PermissionEvents;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.Type;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -33,99 +49,608 @@ public final class UserDataRepo {
     private static final Gson GSON = new GsonBuilder().registerTypeAdapter(UserGroup.class, new UserGroupTypeAdapter()).setLenient().create();
     private static final Type USER_LIST_TYPE = new TypeToken<Map<UUID, String>>() {
     }.getType();
+    private static final Type ADDITIONAL_GROUPS_TYPE = new TypeToken<Map<UUID, Map<String, Integer>>>() {
+    }.getType();
     private static final Type GROUP_LIST_TYPE = new TypeToken<Map<String, UserGroup>>() {
     }.getType();
     private static final Type DEFAULT_GROUPS_TYPES = new TypeToken<Map<Integer, String>>() {
     }.getType();
+    private static final Type GROUP_INDEX_TYPE = new TypeToken<List<String>>() {
+    }.getType();
+
+    /**
+     * Equal maps of additional groups are shared, so that snapshots can
+     * tell the combinations of groups apart by identity.
+     */
+    private static final Interner<Map<String, Integer>> ADDITIONAL_GROUP_SETS = Interners.newWeakInterner();
+
+    /**
+     * Executor of the async query API. Tasks running on it only ever read
+     * {@link RepoSnapshot}s.
+     */
+    private static final Executor QUERY_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+            new ThreadFactoryBuilder().setNameFormat("SimplePerms-Query-%d").setDaemon(true).build());
+
+    /**
+     * Number of players resolved by a single task of a batched query.
+     */
+    private static final int QUERY_BATCH_SIZE = 1024;
 
     private final Map<String, UserGroup> groups = new ConcurrentHashMap<>();
     private final Map<UUID, String> users = new ConcurrentHashMap<>();
-    private final Map<Integer, String> fallbackGroups = new TreeMap<>(Collections.singletonMap(0, ""));
+    /**
+     * Groups players are in besides their primary one, by priority. Values
+     * are immutable, interned, and replaced on change.
+     */
+    private final Map<UUID, Map<String, Integer>> additionalGroups = new ConcurrentHashMap<>();
+    private final NavigableMap<Integer, String> fallbackGroups = new ConcurrentSkipListMap<>(Collections.singletonMap(0, ""));
+
+    /**
+     * Groups that explicitly set each permission node, with their values.
+     * A node absent from this map is not configured anywhere, so checks
+     * against it can go straight to the wrapped permission handler.
+     */
+    private final Map<String, Map<String, Boolean>> nodeIndex = new ConcurrentHashMap<>();
+
+    private final Path root;
 
     private final Path playerDataPath;
-    private final Path groupDataPath;
+    private final Path playerGroupsPath;
+    private final Path groupsPath;
+    private final Path groupIndexPath;
     private final Path fallbackGroupDataPaths;
 
+    private final Path legacyGroupDataPath;
     private final Path legacyFallbackGroupDataPath;
 
-    private final MinecraftServer server;
+    private final RepoHost host;
 
     private final AtomicBoolean loading = new AtomicBoolean(false);
     private final AtomicBoolean saving = new AtomicBoolean(false);
 
-    private volatile boolean dirty = false;
+    /**
+     * Held while loading or saving, so that a save cannot write a group a
+     * load is replacing, over the file the load read it from.
+     */
+    private final ReentrantLock fileLock = new ReentrantLock();
+
+    private volatile boolean usersDirty = false;
+    private volatile boolean fallbackGroupsDirty = false;
+    private volatile boolean groupIndexDirty = false;
+
+    /**
+     * Groups whose file is out of date.
+     */
+    private final Set<String> dirtyGroups = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Incremented on every change, so that a stale {@link #snapshot} can be
+     * told apart from the current one.
+     */
+    private final AtomicLong modCount = new AtomicLong();
+
+    private volatile RepoSnapshot snapshot = new RepoSnapshot(-1L, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+    private final List<RepoListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Reverse edges, to find what a change affects.
+     */
+    private final DependencyGraph graph = new DependencyGraph();
+
+    /**
+     * Groups whose compiled form in {@link #snapshot} is out of date: the
+     * changed group and its descendants. Marked before {@link #modCount} is
+     * incremented, so that a snapshot of the new version never misses one.
+     */
+    private final Set<String> staleGroups = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Set after everything was replaced, so that the next snapshot compiles
+     * every group.
+     */
+    private volatile boolean allStale = true;
+
+    /**
+     * Players whose assignment or additional groups changed since the last
+     * {@link #snapshot}, possibly more than once. Marked before
+     * {@link #modCount} is incremented, like {@link #staleGroups}. A queue
+     * rather than a set, since draining a concurrent set costs as much as
+     * the most players it ever held.
+     */
+    private final Queue<UUID> changedUsers = new ConcurrentLinkedQueue<>();
+
+    private final GroupDefinitions definitions = new GroupDefinitions() {
+        @Override
+        public Collection<String> parentsOf(String group) {
+            return getGroup(group).parents;
+        }
+
+        @Override
+        public Map<String, Boolean> permissionsOf(String group) {
+            return getGroup(group).permissions;
+        }
+
+        @Override
+        public Map<String, MetaValue> metaOf(String group) {
+            return getGroup(group).meta;
+        }
+    };
 
-    public UserDataRepo(MinecraftServer server, Path configRoot) throws IOException {
+    public UserDataRepo(RepoHost host, Path configRoot) throws IOException {
+        root = configRoot;
         playerDataPath = configRoot.resolve("player_data.dat");
-        groupDataPath = configRoot.resolve("group_data.dat");
-        legacyFallbackGroupDataPath = configRoot.resolve("default_group.dat");
+        playerGroupsPath = configRoot.resolve("player_groups.dat");
+        groupsPath = configRoot.resolve("groups");
+        groupIndexPath = groupsPath.resolve("index.dat");
         fallbackGroupDataPaths = configRoot.resolve("default_groups.dat");
-        this.server = server;
+        legacyGroupDataPath = configRoot.resolve("group_data.dat");
+        legacyFallbackGroupDataPath = configRoot.resolve("default_group.dat");
+        this.host = host;
         load();
     }
 
     /**
      * Load data from the root directory. Will overwrite previously loaded
      * data.
+     * <p>
+     * Changes made while loading may be lost, as if made just before, e.g.
+     * a node granted to a group that is being replaced by the one on disk.
+     * The node index and the dependency graph agree with whatever the groups
+     * and assignments end up being either way.
+     * <p>
+     * May be called on any thread. Online players are resolved again, and
+     * listeners told, on the {@link RepoHost#getMainExecutor() main thread},
+     * since players without an assigned group resolve by op level.
      */
     public void load() throws IOException {
         if (!loading.compareAndSet(false, true)) return;
 
-        if (Files.exists(playerDataPath)) {
-            dirty = true;
-            this.users.clear();
-            this.users.putAll(GSON.fromJson(Files.newBufferedReader(playerDataPath, StandardCharsets.UTF_8), USER_LIST_TYPE));
+        final Object event = PermissionEvents.beginLoad();
+        final boolean reload = this.modCount.get() > 0L;
+        this.fileLock.lock();
+        try {
+            final RepoSnapshot before = this.snapshot();
+            final Map<UUID, ITextComponent> prefixes = this.onlinePrefixes();
+            // Flags are cleared before reading, so that changes made meanwhile stay dirty
+            if (Files.exists(playerDataPath)) {
+                this.usersDirty = false;
+                replaceContents(this.users, readJson(playerDataPath, USER_LIST_TYPE));
+                // Absent until a player is put in an additional group
+                replaceContents(this.additionalGroups, Files.exists(playerGroupsPath)
+                        ? readAdditionalGroups(readJson(playerGroupsPath, ADDITIONAL_GROUPS_TYPE)) : Collections.emptyMap());
+            }
+
+            if (Files.exists(groupIndexPath)) {
+                this.dirtyGroups.clear();
+                this.groupIndexDirty = false;
+                final Map<String, UserGroup> loaded = new HashMap<>();
+                for (String name : UserDataRepo.<List<String>>readJson(groupIndexPath, GROUP_INDEX_TYPE)) {
+                    final Path groupPath = this.groupPath(name);
+                    if (Files.exists(groupPath)) {
+                        loaded.put(name, readJson(groupPath, UserGroup.class));
+                    }
+                }
+                replaceContents(this.groups, loaded);
+                this.rebuildNodeIndex();
+            } else if (Files.exists(legacyGroupDataPath)) {
+                // Migrate from the single file holding every group
+                replaceContents(this.groups, readJson(legacyGroupDataPath, GROUP_LIST_TYPE));
+                this.dirtyGroups.addAll(this.groups.keySet());
+                this.groupIndexDirty = true;
+                this.rebuildNodeIndex();
+            }
+
+            if (Files.exists(legacyFallbackGroupDataPath)) {
+                String fallbackGroupName = new String(Files.readAllBytes(legacyFallbackGroupDataPath), StandardCharsets.UTF_8);
+                this.fallbackGroups.put(0, fallbackGroupName);
+                this.fallbackGroupsDirty = true;
+                Files.delete(legacyFallbackGroupDataPath);
+            }
+
+            if (Files.exists(fallbackGroupDataPaths)) {
+                this.fallbackGroupsDirty = false;
+                final Map<Integer, String> loaded = new HashMap<>(Collections.singletonMap(0, ""));
+                loaded.putAll(readJson(fallbackGroupDataPaths, DEFAULT_GROUPS_TYPES));
+                replaceContents(this.fallbackGroups, loaded);
+            }
+
+            this.graph.rebuildParents(this.groups);
+            this.graph.rebuildMembers(this.users, this.additionalGroups);
+            this.allStale = true;
+            this.modCount.incrementAndGet();
+
+            // Initialize
+            if (!Files.exists(playerDataPath) || !Files.exists(groupIndexPath) || !Files.exists(fallbackGroupDataPaths)) {
+                this.usersDirty = this.groupIndexDirty = this.fallbackGroupsDirty = true;
+                save();
+            }
+            if (Files.exists(groupIndexPath) && Files.exists(legacyGroupDataPath)) {
+                Files.move(legacyGroupDataPath, legacyGroupDataPath.resolveSibling("group_data.dat.bak"), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            this.host.getMainExecutor().execute(() -> this.replaced(before, prefixes, "load"));
+
+            if (event != null) {
+                final List<Path> paths = new ArrayList<>(Arrays.asList(playerDataPath, playerGroupsPath, groupIndexPath, fallbackGroupDataPaths));
+                for (String name : this.groups.keySet()) {
+                    paths.add(this.groupPath(name));
+                }
+                int files = 0;
+                long bytes = 0L;
+                for (Path path : paths) {
+                    if (Files.exists(path)) {
+                        ++files;
+                        bytes += Files.size(path);
+                    }
+                }
+                PermissionEvents.endLoad(event, reload, files, bytes, this.groups.size(), this.users.size());
+            }
+        } finally {
+            this.fileLock.unlock();
+            loading.set(false);
         }
+    }
 
-        if (Files.exists(groupDataPath)) {
-            dirty = true;
-            this.groups.clear();
-            this.groups.putAll(GSON.fromJson(Files.newBufferedReader(groupDataPath, StandardCharsets.UTF_8), GROUP_LIST_TYPE));
+    private Map<UUID, ITextComponent> onlinePrefixes() {
+        final Map<UUID, ITextComponent> prefixes = new HashMap<>();
+        for (UUID id : this.graph.online()) {
+            final String group = this.graph.onlineGroupOf(id);
+            if (group != null) {
+                prefixes.put(id, getGroup(group).prefix);
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Refresh display names of online players whose prefix changed when
+     * everything was replaced, and tell listeners which players' compiled
+     * group changed. Must be called on the main thread.
+     */
+    private void replaced(RepoSnapshot before, Map<UUID, ITextComponent> prefixes, String cause) {
+        final Set<UUID> moved = this.resyncOnline();
+        final List<UUID> renamed = new ArrayList<>();
+        for (UUID id : this.graph.online()) {
+            final String group = this.graph.onlineGroupOf(id);
+            if (group != null && (moved.contains(id) || !getGroup(group).prefix.equals(prefixes.get(id)))) {
+                renamed.add(id);
+            }
+        }
+        this.refreshDisplayNames(renamed, cause);
+        if (this.listeners.isEmpty()) {
+            return;
+        }
+        final RepoSnapshot after = this.snapshot();
+        final Set<String> changedGroups = before.changedGroups(after);
+        final Set<UUID> affected = new HashSet<>(moved);
+        final Set<UUID> ids = new HashSet<>(before.getUsers().keySet());
+        ids.addAll(after.getUsers().keySet());
+        ids.addAll(before.getAdditionalGroups().keySet());
+        ids.addAll(after.getAdditionalGroups().keySet());
+        for (UUID id : ids) {
+            final String previous = before.getUsers().get(id);
+            final String current = after.getUsers().get(id);
+            final Map<String, Integer> previousAdditional = before.getAdditionalGroups().getOrDefault(id, Collections.emptyMap());
+            final Map<String, Integer> currentAdditional = after.getAdditionalGroups().getOrDefault(id, Collections.emptyMap());
+            if (!Objects.equals(previous, current) || changedGroups.contains(previous) || changedGroups.contains(current)
+                    || !previousAdditional.equals(currentAdditional) || !Collections.disjoint(changedGroups, previousAdditional.keySet())
+                    || !Collections.disjoint(changedGroups, currentAdditional.keySet())) {
+                affected.add(id);
+            }
         }
+        for (UUID id : this.graph.online()) {
+            if (changedGroups.contains(this.graph.onlineGroupOf(id))) {
+                affected.add(id);
+            }
+        }
+        final Set<UUID> view = Collections.unmodifiableSet(affected);
+        this.listeners.forEach(l -> l.onReloaded(view));
+    }
 
-        if (Files.exists(legacyFallbackGroupDataPath)) {
-            dirty = true;
-            String fallbackGroupName = new String(Files.readAllBytes(legacyFallbackGroupDataPath), StandardCharsets.UTF_8);
-            this.fallbackGroups.put(0, fallbackGroupName);
-            Files.delete(legacyFallbackGroupDataPath);
+    /**
+     * Bring the groups online players resolve to up to date with the host.
+     *
+     * @return online players who resolve to another group than before.
+     */
+    private Set<UUID> resyncOnline() {
+        final Set<UUID> online = new HashSet<>(this.host.getOnlinePlayers());
+        for (UUID id : this.graph.online()) {
+            if (!online.contains(id)) {
+                this.graph.setOffline(id);
+            }
+        }
+        final Set<UUID> moved = new HashSet<>();
+        for (UUID id : online) {
+            final String previous = this.graph.setOnline(id, this::lookup);
+            if (previous != null && !previous.equals(this.graph.onlineGroupOf(id))) {
+                moved.add(id);
+            }
         }
+        return moved;
+    }
+
+    /**
+     * @return users, groups and fallback groups as one JSON document, in the
+     * same format as the files they are saved to.
+     */
+    public String exportState() {
+        final JsonObject json = new JsonObject();
+        json.add("users", GSON.toJsonTree(this.users, USER_LIST_TYPE));
+        json.add("additional_groups", GSON.toJsonTree(this.additionalGroups, ADDITIONAL_GROUPS_TYPE));
+        json.add("groups", GSON.toJsonTree(this.groups, GROUP_LIST_TYPE));
+        json.add("fallback_groups", GSON.toJsonTree(this.fallbackGroups, DEFAULT_GROUPS_TYPES));
+        return GSON.toJson(json);
+    }
+
+    /**
+     * Replace everything with a document from {@link #exportState()}, as if
+     * it had been loaded from disk. Everything is saved on the next save.
+     */
+    public void importState(String state) {
+        final JsonObject json = GSON.fromJson(state, JsonObject.class);
+        final RepoSnapshot before = this.snapshot();
+        final Map<UUID, ITextComponent> prefixes = this.onlinePrefixes();
+        replaceContents(this.users, GSON.fromJson(json.get("users"), USER_LIST_TYPE));
+        replaceContents(this.additionalGroups, json.has("additional_groups")
+                ? readAdditionalGroups(GSON.fromJson(json.get("additional_groups"), ADDITIONAL_GROUPS_TYPE)) : Collections.emptyMap());
+        replaceContents(this.groups, GSON.fromJson(json.get("groups"), GROUP_LIST_TYPE));
+        this.rebuildNodeIndex();
+        final Map<Integer, String> fallbackGroups = new HashMap<>(Collections.singletonMap(0, ""));
+        fallbackGroups.putAll(GSON.fromJson(json.get("fallback_groups"), DEFAULT_GROUPS_TYPES));
+        replaceContents(this.fallbackGroups, fallbackGroups);
+        this.usersDirty = this.groupIndexDirty = this.fallbackGroupsDirty = true;
+        this.dirtyGroups.addAll(this.groups.keySet());
+        this.graph.rebuildParents(this.groups);
+        this.graph.rebuildMembers(this.users, this.additionalGroups);
+        this.allStale = true;
+        this.changed();
+        this.replaced(before, prefixes, "import");
+    }
+
+    /**
+     * @return the group in the format of its file, {@code null} if it does
+     * not exist.
+     */
+    @Nullable
+    public String exportGroup(String name) {
+        final UserGroup group = this.groups.get(name);
+        return group == null ? null : GSON.toJson(group, UserGroup.class);
+    }
 
-        if (Files.exists(fallbackGroupDataPaths)) {
-            dirty = true;
-            this.fallbackGroups.clear();
-            this.fallbackGroups.put(0, "");
-            this.fallbackGroups.putAll(GSON.fromJson(Files.newBufferedReader(fallbackGroupDataPaths, StandardCharsets.UTF_8), DEFAULT_GROUPS_TYPES));
+    /**
+     * Create or replace a group with one from {@link #exportGroup}. Only the
+     * index entries and parent edges of this group are brought up to date.
+     */
+    public void importGroup(String name, String data) {
+        final UserGroup group = GSON.fromJson(data, UserGroup.class);
+        group.name = name;
+        final UserGroup previous = this.groups.put(name, group);
+        final Set<String> nodes = new HashSet<>(group.permissions.keySet());
+        final Set<String> parents = new HashSet<>(group.parents);
+        if (previous == null) {
+            this.groupIndexDirty = true;
+        } else {
+            nodes.addAll(previous.permissions.keySet());
+            parents.addAll(previous.parents);
+        }
+        for (String node : nodes) {
+            this.reindex(name, node);
+        }
+        for (String parent : parents) {
+            this.graph.updateParent(name, parent, this::parentsOfGroup);
         }
+        this.markGroupDirty(name);
+        this.refreshDisplayNames(this.graph.onlineIn(name), "import");
+        this.fireGroupChanged(name, true);
+    }
 
-        // Initialize
-        if (!Files.exists(playerDataPath) || !Files.exists(groupDataPath) || !Files.exists(fallbackGroupDataPaths)) {
-            save();
+    /**
+     * Make the target equal to the source without emptying it in between,
+     * so that concurrent readers never miss an entry present in both.
+     */
+    private static <K, V> void replaceContents(Map<K, V> target, Map<K, V> source) {
+        target.putAll(source);
+        target.keySet().retainAll(source.keySet());
+    }
+
+    /**
+     * @return the additional groups as stored in the repo, without players in
+     * none.
+     */
+    private static Map<UUID, Map<String, Integer>> readAdditionalGroups(@Nullable Map<UUID, Map<String, Integer>> read) {
+        final Map<UUID, Map<String, Integer>> ret = new HashMap<>();
+        if (read != null) {
+            read.forEach((id, groups) -> {
+                if (groups != null && !groups.isEmpty()) {
+                    ret.put(id, ADDITIONAL_GROUP_SETS.intern(Collections.unmodifiableMap(new HashMap<>(groups))));
+                }
+            });
         }
+        return ret;
+    }
 
-        // refresh player names
-        this.server.getPlayerList().getPlayers().forEach(ServerPlayerEntity::refreshDisplayName);
+    private static <T> T readJson(Path path, Type type) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return GSON.fromJson(reader, type);
+        }
+    }
 
-        loading.set(false);
+    private Path groupPath(String name) throws IOException {
+        // Group names are mostly plain words, but they are not guaranteed to be valid file names
+        return this.groupsPath.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8.name()) + ".json");
     }
 
     /**
-     * Save data to the root directory.
+     * Save data to the root directory. Only files whose content changed
+     * since the last save or load are written.
      */
     public void save() throws IOException {
         if (!saving.compareAndSet(false, true)) return;
 
-        Files.createDirectories(playerDataPath.getParent());
-        Files.write(playerDataPath, GSON.toJson(this.users).getBytes(StandardCharsets.UTF_8));
-        Files.write(groupDataPath, GSON.toJson(this.groups).getBytes(StandardCharsets.UTF_8));
-        Files.write(fallbackGroupDataPaths, GSON.toJson(this.fallbackGroups).getBytes(StandardCharsets.UTF_8));
+        final Object event = PermissionEvents.beginSave();
+        int files = 0;
+        long bytes = 0L;
+        this.fileLock.lock();
+        try {
+            Files.createDirectories(groupsPath);
+            // Flags are cleared before writing, so that changes made meanwhile stay dirty
+            if (this.usersDirty) {
+                this.usersDirty = false;
+                try {
+                    bytes += writeAtomically(playerDataPath, GSON.toJson(this.users));
+                    ++files;
+                    // Older versions only read the file above, so they keep working with primary groups
+                    if (!this.additionalGroups.isEmpty() || Files.exists(playerGroupsPath)) {
+                        bytes += writeAtomically(playerGroupsPath, GSON.toJson(this.additionalGroups, ADDITIONAL_GROUPS_TYPE));
+                        ++files;
+                    }
+                } catch (IOException e) {
+                    this.usersDirty = true;
+                    throw e;
+                }
+            }
+            for (Iterator<String> iterator = this.dirtyGroups.iterator(); iterator.hasNext(); ) {
+                final String name = iterator.next();
+                iterator.remove();
+                final UserGroup group = this.groups.get(name);
+                if (group != null) {
+                    try {
+                        bytes += writeAtomically(this.groupPath(name), GSON.toJson(group, UserGroup.class));
+                        ++files;
+                    } catch (IOException e) {
+                        this.dirtyGroups.add(name);
+                        throw e;
+                    }
+                }
+            }
+            if (this.groupIndexDirty) {
+                this.groupIndexDirty = false;
+                final List<String> names = new ArrayList<>(this.groups.keySet());
+                Collections.sort(names);
+                try {
+                    bytes += writeAtomically(groupIndexPath, GSON.toJson(names));
+                    ++files;
+                } catch (IOException e) {
+                    this.groupIndexDirty = true;
+                    throw e;
+                }
+            }
+            if (this.fallbackGroupsDirty) {
+                this.fallbackGroupsDirty = false;
+                try {
+                    bytes += writeAtomically(fallbackGroupDataPaths, GSON.toJson(this.fallbackGroups));
+                    ++files;
+                } catch (IOException e) {
+                    this.fallbackGroupsDirty = true;
+                    throw e;
+                }
+            }
+        } finally {
+            this.fileLock.unlock();
+            saving.set(false);
+            PermissionEvents.endSave(event, files, bytes);
+        }
+    }
 
-        dirty = false;
+    /**
+     * Write through a temporary file, so that readers outside the repo, like
+     * the command line tool, never read a half-written file.
+     *
+     * @return the number of bytes written.
+     */
+    private static int writeAtomically(Path path, String content) throws IOException {
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        Files.write(temp, bytes);
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return bytes.length;
+    }
 
-        saving.set(false);
+    public Path getRoot() {
+        return this.root;
     }
 
     public boolean dirty() {
-        return dirty;
+        return this.usersDirty || this.fallbackGroupsDirty || this.groupIndexDirty || !this.dirtyGroups.isEmpty();
+    }
+
+    private void changed() {
+        this.modCount.incrementAndGet();
+    }
+
+    private void markUsersDirty(UUID id) {
+        this.usersDirty = true;
+        this.changedUsers.add(id);
+        this.changed();
+    }
+
+    private void markGroupDirty(String group) {
+        this.dirtyGroups.add(group);
+        this.staleGroups.addAll(this.graph.descendantsOf(group));
+        this.changed();
+    }
+
+    private void markFallbackGroupsDirty() {
+        this.fallbackGroupsDirty = true;
+        this.changed();
+    }
+
+    /**
+     * @return an immutable copy of the current state, compiled for querying.
+     */
+    public RepoSnapshot snapshot() {
+        RepoSnapshot current = this.snapshot;
+        if (current.getVersion() != this.modCount.get()) {
+            synchronized (this) {
+                current = this.snapshot;
+                final long version = this.modCount.get();
+                if (current.getVersion() != version) {
+                    final Map<String, CompiledGroup> compiled;
+                    final List<UUID> changedUsers;
+                    if (this.allStale) {
+                        this.allStale = false;
+                        this.staleGroups.clear();
+                        this.changedUsers.clear();
+                        changedUsers = null;
+                        compiled = new HashMap<>();
+                        for (String name : this.groups.keySet()) {
+                            compiled.put(name, CompiledGroup.compile(name, this.definitions));
+                        }
+                    } else {
+                        // Only players who changed are looked at again, the others are shared with the last snapshot
+                        // Removed before the player is read, so that a change racing this one is kept for the next snapshot
+                        final Set<UUID> drained = new LinkedHashSet<>();
+                        for (UUID id = this.changedUsers.poll(); id != null; id = this.changedUsers.poll()) {
+                            drained.add(id);
+                        }
+                        changedUsers = new ArrayList<>(drained);
+                        final List<String> staleGroups = new ArrayList<>();
+                        for (Iterator<String> iterator = this.staleGroups.iterator(); iterator.hasNext(); ) {
+                            staleGroups.add(iterator.next());
+                            iterator.remove();
+                        }
+                        // Groups unaffected by the changes since the last snapshot are shared with it
+                        compiled = staleGroups.isEmpty() ? current.getGroups() : new HashMap<>(current.getGroups());
+                        for (String name : staleGroups) {
+                            if (this.groups.containsKey(name)) {
+                                compiled.put(name, CompiledGroup.compile(name, this.definitions));
+                            } else {
+                                compiled.remove(name);
+                            }
+                        }
+                    }
+                    this.snapshot = current = current.next(version, this.users, this.additionalGroups, changedUsers,
+                            compiled, this.fallbackGroups);
+                }
+            }
+        }
+        return current;
     }
 
     public boolean hasGroup(String group) {
@@ -133,23 +658,136 @@ public final class UserDataRepo {
     }
 
     public void assignUserToGroup(UUID id, String group) {
-        dirty = true;
-        if (group.isEmpty()) {
-            this.users.remove(id);
-        } else {
-            this.users.put(id, group);
+        final String previous = group.isEmpty() ? this.users.remove(id) : this.users.put(id, group);
+        this.graph.updateMember(id, previous == null ? Collections.emptySet() : Collections.singleton(previous), this::groupsOf);
+        // Marked after the change, so that a concurrent save or snapshot cannot miss it
+        this.markUsersDirty(id);
+        this.graph.updateOnline(id, this::lookup);
+        this.host.refreshDisplayName(id);
+        if (!group.equals(previous == null ? "" : previous)) {
+            this.listeners.forEach(l -> l.onMembershipChanged(id, previous == null ? "" : previous, group));
+        }
+    }
+
+    /**
+     * Put a player in a group besides their primary one, or change the
+     * priority they are in it with. Groups with higher priorities take
+     * precedence; the primary group has priority 0 and wins ties.
+     */
+    public void addToGroup(UUID id, String group, int priority) {
+        final Integer[] previous = new Integer[1];
+        this.additionalGroups.compute(id, (k, groups) -> {
+            final Map<String, Integer> updated = groups == null ? new HashMap<>() : new HashMap<>(groups);
+            previous[0] = updated.put(group, priority);
+            return ADDITIONAL_GROUP_SETS.intern(Collections.unmodifiableMap(updated));
+        });
+        if (!Integer.valueOf(priority).equals(previous[0])) {
+            this.additionalGroupChanged(id, group, previous[0], priority);
+        }
+    }
+
+    public void removeFromGroup(UUID id, String group) {
+        final Integer[] previous = new Integer[1];
+        this.additionalGroups.computeIfPresent(id, (k, groups) -> {
+            if (!groups.containsKey(group)) {
+                return groups;
+            }
+            final Map<String, Integer> updated = new HashMap<>(groups);
+            previous[0] = updated.remove(group);
+            return updated.isEmpty() ? null : ADDITIONAL_GROUP_SETS.intern(Collections.unmodifiableMap(updated));
+        });
+        if (previous[0] != null) {
+            this.additionalGroupChanged(id, group, previous[0], null);
         }
-        final ServerPlayerEntity player = this.server.getPlayerList().getPlayer(id);
-        if (player != null) {
-            player.refreshDisplayName();
+    }
+
+    private void additionalGroupChanged(UUID id, String group, @Nullable Integer previous, @Nullable Integer current) {
+        this.graph.updateMember(id, previous == null ? Collections.emptySet() : Collections.singleton(group), this::groupsOf);
+        // Marked after the change, so that a concurrent save or snapshot cannot miss it
+        this.markUsersDirty(id);
+        this.listeners.forEach(l -> l.onAdditionalGroupChanged(id, group, previous, current));
+    }
+
+    /**
+     * @return groups the player is in besides their primary one, with their
+     * priorities.
+     */
+    public Map<String, Integer> getAdditionalGroups(UUID id) {
+        return this.additionalGroups.getOrDefault(id, Collections.emptyMap());
+    }
+
+    /**
+     * @return every group the player is explicitly in, primary or additional.
+     */
+    private Collection<String> groupsOf(UUID id) {
+        final String primary = this.users.get(id);
+        final Map<String, Integer> additional = this.additionalGroups.getOrDefault(id, Collections.emptyMap());
+        if (additional.isEmpty()) {
+            return primary == null ? Collections.emptySet() : Collections.singleton(primary);
+        }
+        final Set<String> ret = new HashSet<>(additional.keySet());
+        if (primary != null) {
+            ret.add(primary);
+        }
+        return ret;
+    }
+
+    public void addListener(RepoListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(RepoListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * @return players whose compiled group includes the given one: those in
+     * it or one of its descendants, primary or additional, and online
+     * players falling back to any of these.
+     */
+    public Set<UUID> affectedBy(String group) {
+        return Collections.unmodifiableSet(this.graph.playersIn(this.graph.descendantsOf(group)));
+    }
+
+    /**
+     * Start tracking the group an online player resolves to, so that changes
+     * reach them. Must be called before {@link #initForSpawn}.
+     */
+    public void playerLoggedIn(UUID id) {
+        this.graph.setOnline(id, this::lookup);
+    }
+
+    public void playerLoggedOut(UUID id) {
+        this.graph.setOffline(id);
+    }
+
+    /**
+     * Resolve an online player without an assigned group again, after their
+     * op level changed.
+     */
+    public void opLevelChanged(UUID id) {
+        final String previous = this.graph.updateOnline(id, this::lookup);
+        if (previous != null && !previous.equals(this.graph.onlineGroupOf(id))) {
+            this.host.refreshDisplayName(id);
         }
     }
 
+    public boolean isOnline(UUID id) {
+        return this.graph.onlineGroupOf(id) != null;
+    }
+
+    /**
+     * @return the group explicitly assigned to the player, empty if none.
+     */
+    public String getAssignedGroup(UUID id) {
+        return this.users.getOrDefault(id, "");
+    }
+
+    /**
+     * @return players in the group, primary or additional.
+     */
     public Stream<UUID> reverseLookup(String group) {
-        return this.users.entrySet()
-                .stream()
-                .filter(e -> e.getValue().equals(group))
-                .map(Map.Entry::getKey);
+        return this.graph.membersOf(group).stream();
     }
 
     public Set<String> groups() {
@@ -161,20 +799,141 @@ public final class UserDataRepo {
             String fallback = this.getFallbackGroup(profile);
             String groupName = this.users.getOrDefault(profile.getId(), "");
             if (!getGroupDeep(groupName).containsKey(fallback)) {
-                users.put(profile.getId(), fallback);
+                final String previous = users.put(profile.getId(), fallback);
+                this.graph.updateMember(profile.getId(), previous == null ? Collections.emptySet() : Collections.singleton(previous), this::groupsOf);
                 callback.accept(fallback);
-                dirty = true;
+                this.markUsersDirty(profile.getId());
+                this.graph.updateOnline(profile.getId(), this::lookup);
+                this.listeners.forEach(l -> l.onMembershipChanged(profile.getId(), groupName, fallback));
             }
         }
     }
 
+    /**
+     * @return the primary group of the player.
+     */
     public String lookup(UUID id) {
-        return this.users.getOrDefault(id, this.getFallbackGroup(this.server.getProfileCache().get(id)));
+        final String group = this.users.get(id);
+        // Only look up the op level when it is actually needed
+        return group != null ? group : this.getFallbackGroupForLevel(this.host.getOpLevel(id));
+    }
+
+    /**
+     * @return the compiled group of the player, combined with their
+     * additional groups, from the current snapshot.
+     */
+    public CompiledGroup resolve(UUID id) {
+        final RepoSnapshot snapshot = this.snapshot();
+        return snapshot.resolve(id, snapshot.needsOpLevel(id) ? this.host.getOpLevel(id) : 0);
+    }
+
+    /**
+     * @return true if at least one group explicitly sets the given node.
+     */
+    public boolean isConfigured(String perm) {
+        return this.nodeIndex.containsKey(perm);
+    }
+
+    /**
+     * @return the groups that set the node themselves, with their values.
+     */
+    public Map<String, Boolean> getNodeSetters(String node) {
+        final Map<String, Boolean> setters = this.nodeIndex.get(node);
+        return setters == null ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(setters));
+    }
+
+    /**
+     * @return the groups the node takes effect in: those setting it and
+     * every group inheriting from one of them. Any other group leaves the
+     * node unset.
+     */
+    public Set<String> getGroupsReaching(String node) {
+        final Set<String> ret = new HashSet<>();
+        for (String group : this.getNodeSetters(node).keySet()) {
+            if (!ret.contains(group)) {
+                ret.addAll(this.graph.descendantsOf(group));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Resolve the group of any player, online or not, off the server thread.
+     */
+    public CompletableFuture<String> lookupAsync(UUID id) {
+        return this.resolveAsync(Collections.singletonList(id)).thenApply(m -> m.get(id).getName());
+    }
+
+    /**
+     * Check a permission of any player, online or not, off the server thread.
+     * The result is {@code null} if no group of the player sets the node.
+     */
+    public CompletableFuture<Boolean> hasPermissionAsync(UUID id, String perm) {
+        return this.resolveAsync(Collections.singletonList(id)).thenApply(m -> m.get(id).hasPermission(perm));
+    }
+
+    /**
+     * Check a permission of many players at once. Players for whom no group
+     * sets the node are absent from the result.
+     */
+    public CompletableFuture<Map<UUID, Boolean>> hasPermissionAsync(Collection<UUID> ids, String perm) {
+        return this.resolveAsync(ids).thenApply(resolved -> {
+            final Map<UUID, Boolean> result = new HashMap<>();
+            resolved.forEach((id, group) -> {
+                final Boolean value = group.hasPermission(perm);
+                if (value != null) {
+                    result.put(id, value);
+                }
+            });
+            return Collections.unmodifiableMap(result);
+        });
+    }
+
+    /**
+     * Resolve the compiled group, and thus membership and effective
+     * permissions, of many players at once.
+     */
+    public CompletableFuture<Map<UUID, CompiledGroup>> resolveAsync(Collection<UUID> ids) {
+        final RepoSnapshot snapshot = this.snapshot();
+        final List<UUID> needOpLevels = new ArrayList<>();
+        for (UUID id : ids) {
+            if (snapshot.needsOpLevel(id)) {
+                needOpLevels.add(id);
+            }
+        }
+        // Op levels come from server state, so they are the only thing fetched on the server thread
+        final CompletableFuture<Map<UUID, Integer>> opLevels = needOpLevels.isEmpty()
+                ? CompletableFuture.completedFuture(Collections.emptyMap())
+                : CompletableFuture.supplyAsync(() -> {
+                    final Map<UUID, Integer> levels = new HashMap<>();
+                    needOpLevels.forEach(id -> levels.put(id, this.host.getOpLevel(id)));
+                    return levels;
+                }, this.host.getMainExecutor());
+        return opLevels.thenComposeAsync(levels -> {
+            final List<CompletableFuture<Map<UUID, CompiledGroup>>> batches = new ArrayList<>();
+            for (List<UUID> batch : Lists.partition(new ArrayList<>(ids), QUERY_BATCH_SIZE)) {
+                batches.add(CompletableFuture.supplyAsync(() -> {
+                    final Map<UUID, CompiledGroup> resolved = new HashMap<>();
+                    batch.forEach(id -> resolved.put(id, snapshot.resolve(id, levels.getOrDefault(id, 0))));
+                    return resolved;
+                }, QUERY_EXECUTOR));
+            }
+            return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                final Map<UUID, CompiledGroup> result = new HashMap<>();
+                batches.forEach(batch -> result.putAll(batch.join()));
+                return Collections.unmodifiableMap(result);
+            });
+        }, QUERY_EXECUTOR);
     }
 
+    /**
+     * Check a permission against the current snapshot. Allocates nothing
+     * unless the snapshot has to be rebuilt after a change, or the host
+     * allocates to find the op level of an unassigned player.
+     */
+    @Nullable
     public Boolean hasPermission(UUID id, String perm) {
-        final Collection<UserGroup> groups = getGroupDeep(lookup(id)).values();
-        return groups.stream().map(g -> g.permissions.get(perm)).filter(Objects::nonNull).findFirst().orElse(null);
+        return this.resolve(id).hasPermission(perm);
     }
 
     private UserGroup getGroup(String lookup) {
@@ -197,29 +956,121 @@ public final class UserDataRepo {
     }
 
     public void grant(String group, String permission, boolean bool) {
-        if (!Boolean.valueOf(bool).equals(getGroup(group).permissions.put(permission, bool))) {
-            dirty = true;
+        final Boolean previous = getGroup(group).permissions.put(permission, bool);
+        if (!Boolean.valueOf(bool).equals(previous)) {
+            this.reindex(group, permission);
+            this.markGroupDirty(group);
+            this.firePermissionChanged(group, permission, previous, bool);
         }
     }
 
     public void revoke(String group, String permission) {
-        if (getGroup(group).permissions.remove(permission)) {
-            dirty = true;
+        final Boolean previous = getGroup(group).permissions.remove(permission);
+        if (previous != null) {
+            this.reindex(group, permission);
+            this.markGroupDirty(group);
+            this.firePermissionChanged(group, permission, previous, null);
+        }
+    }
+
+    private void firePermissionChanged(String group, String node, @Nullable Boolean previous, @Nullable Boolean current) {
+        if (!this.listeners.isEmpty()) {
+            final Set<UUID> affected = this.affectedBy(group);
+            this.listeners.forEach(l -> l.onPermissionChanged(group, node, previous, current, affected));
+        }
+    }
+
+    /**
+     * @param inherited whether the change reaches descendants of the group,
+     *                  otherwise only players in the group itself are affected
+     */
+    private void fireGroupChanged(String group, boolean inherited) {
+        if (!this.listeners.isEmpty()) {
+            final Set<UUID> affected = inherited ? this.affectedBy(group)
+                    : Collections.unmodifiableSet(this.graph.playersIn(Collections.singleton(group)));
+            this.listeners.forEach(l -> l.onGroupChanged(group, affected));
+        }
+    }
+
+    private void fireParentsChanged(String group, String parent, boolean added) {
+        if (!this.listeners.isEmpty()) {
+            final Set<UUID> affected = this.affectedBy(group);
+            this.listeners.forEach(l -> l.onParentsChanged(group, parent, added, affected));
+        }
+    }
+
+    /**
+     * Bring the index entry of one group and node in line with the group.
+     * The value is read while holding the entry, so that racing changes to
+     * the same node leave the index agreeing with the groups.
+     */
+    private void reindex(String group, String node) {
+        this.nodeIndex.compute(node, (k, setters) -> {
+            final Boolean value = this.hasGroup(group) ? getGroup(group).permissions.get(node) : null;
+            if (value == null) {
+                if (setters != null) {
+                    setters.remove(group);
+                }
+            } else {
+                if (setters == null) {
+                    setters = new ConcurrentHashMap<>();
+                }
+                setters.put(group, value);
+            }
+            return setters == null || setters.isEmpty() ? null : setters;
+        });
+    }
+
+    /**
+     * Bring the whole index in line with the groups. Groups a racing
+     * {@link #reindex} put in or took out of an entry meanwhile are read
+     * again while holding the entry, so that the rebuilt entry does not
+     * undo them.
+     */
+    private void rebuildNodeIndex() {
+        final Map<String, Map<String, Boolean>> index = new HashMap<>();
+        this.groups.forEach((name, group) -> group.permissions.forEach((node, value) ->
+                index.computeIfAbsent(node, k -> new HashMap<>()).put(name, value)));
+        final Set<String> nodes = new HashSet<>(index.keySet());
+        nodes.addAll(this.nodeIndex.keySet());
+        for (String node : nodes) {
+            this.nodeIndex.compute(node, (k, setters) -> {
+                final Set<String> names = new HashSet<>(index.getOrDefault(node, Collections.emptyMap()).keySet());
+                if (setters != null) {
+                    names.addAll(setters.keySet());
+                }
+                final Map<String, Boolean> rebuilt = new ConcurrentHashMap<>();
+                for (String name : names) {
+                    final Boolean value = this.hasGroup(name) ? getGroup(name).permissions.get(node) : null;
+                    if (value != null) {
+                        rebuilt.put(name, value);
+                    }
+                }
+                return rebuilt.isEmpty() ? null : rebuilt;
+            });
         }
     }
 
     public void addParent(String group, String parent) {
         if (getGroup(group).parents.add(parent)) {
-            dirty = true;
+            this.graph.updateParent(group, parent, this::parentsOfGroup);
+            this.markGroupDirty(group);
+            this.fireParentsChanged(group, parent, true);
         }
     }
 
     public void removeParent(String group, String parent) {
         if (getGroup(group).parents.removeIf(parent::equals)) {
-            dirty = true;
+            this.graph.updateParent(group, parent, this::parentsOfGroup);
+            this.markGroupDirty(group);
+            this.fireParentsChanged(group, parent, false);
         }
     }
 
+    private Collection<String> parentsOfGroup(String group) {
+        return getGroup(group).parents;
+    }
+
     public Stream<String> parentsOf(String group) {
         return getGroup(group).parents.stream();
     }
@@ -230,8 +1081,57 @@ public final class UserDataRepo {
         group.name = name;
         group.parents = ConcurrentHashMap.newKeySet();
         group.permissions = new ConcurrentHashMap<>();
+        group.meta = new ConcurrentHashMap<>();
         groups.put(name, group);
-        dirty = true;
+        this.groupIndexDirty = true;
+        this.markGroupDirty(name);
+        this.fireGroupChanged(name, true);
+    }
+
+    /**
+     * @return meta entries set directly on the group, without inherited ones.
+     */
+    public Map<String, MetaValue> getOwnMeta(String group) {
+        return Collections.unmodifiableMap(getGroup(group).meta);
+    }
+
+    public void setMeta(String group, String key, MetaValue value) {
+        if (hasGroup(group) && !value.equals(getGroup(group).meta.put(key, value))) {
+            this.markGroupDirty(group);
+            this.fireGroupChanged(group, true);
+        }
+    }
+
+    public void removeMeta(String group, String key) {
+        if (getGroup(group).meta.remove(key) != null) {
+            this.markGroupDirty(group);
+            this.fireGroupChanged(group, true);
+        }
+    }
+
+    /**
+     * @return the effective meta value of the player's groups, or {@code null}
+     * if neither the groups nor their ancestors set it.
+     */
+    @Nullable
+    public MetaValue getMeta(UUID id, String key) {
+        return this.resolve(id).getMeta(key);
+    }
+
+    public int getMetaInt(UUID id, String key, int defaultValue) {
+        return this.resolve(id).getInt(key, defaultValue);
+    }
+
+    public long getMetaLong(UUID id, String key, long defaultValue) {
+        return this.resolve(id).getLong(key, defaultValue);
+    }
+
+    public double getMetaDouble(UUID id, String key, double defaultValue) {
+        return this.resolve(id).getDouble(key, defaultValue);
+    }
+
+    public String getMetaString(UUID id, String key, String defaultValue) {
+        return this.resolve(id).getString(key, defaultValue);
     }
 
     public ITextComponent getPrefix(String group) {
@@ -240,19 +1140,28 @@ public final class UserDataRepo {
 
     public void setPrefix(String group, ITextComponent prefix) {
         if (hasGroup(group)) {
-            dirty = true;
             getGroup(group).prefix = prefix;
-            for (ServerPlayerEntity player : this.server.getPlayerList().getPlayers()) {
-                if (lookup(player.getGameProfile().getId()).equals(group)) {
-                    player.refreshDisplayName();
-                }
-            }
+            this.markGroupDirty(group);
+            // Prefixes are not inherited, so only players resolving to the group itself show it
+            this.refreshDisplayNames(this.graph.onlineIn(group), "prefix");
+            this.fireGroupChanged(group, false);
         }
     }
 
+    private void refreshDisplayNames(Collection<UUID> ids, String cause) {
+        final Object event = PermissionEvents.beginDisplayNameRefresh();
+        ids.forEach(this.host::refreshDisplayName);
+        PermissionEvents.endDisplayNameRefresh(event, cause, ids.size());
+    }
+
     public void setFallbackGroup(int opLevel, String groupName) {
-        this.fallbackGroups.put(opLevel, groupName);
-        dirty = true;
+        if (!groupName.equals(this.fallbackGroups.put(opLevel, groupName))) {
+            this.markFallbackGroupsDirty();
+            final Set<UUID> moved = this.resyncOnline();
+            this.refreshDisplayNames(moved, "fallback");
+            final Set<UUID> affected = Collections.unmodifiableSet(moved);
+            this.listeners.forEach(l -> l.onFallbackGroupChanged(opLevel, groupName, affected));
+        }
     }
 
     public String getFallbackGroup(int opLevel) {
@@ -260,20 +1169,25 @@ public final class UserDataRepo {
     }
 
     public String getFallbackGroup(@Nullable GameProfile gameProfile) {
-        if (gameProfile != null) {
-            for (int opLevel = server.getProfilePermissions(gameProfile); opLevel > 0; --opLevel) {
-                if (fallbackGroups.containsKey(opLevel)) {
-                    return fallbackGroups.get(opLevel);
-                }
+        return this.getFallbackGroupForLevel(gameProfile == null ? 0 : this.host.getOpLevel(gameProfile));
+    }
+
+    private String getFallbackGroupForLevel(int opLevel) {
+        // Single lookups only, the map may change in between
+        for (int level = opLevel; level > 0; --level) {
+            final String group = this.fallbackGroups.get(level);
+            if (group != null) {
+                return group;
             }
         }
-        return fallbackGroups.get(0);
+        return this.fallbackGroups.getOrDefault(0, "");
     }
 
     public void setGameType(String group, GameType gameType) {
         if (hasGroup(group)) {
             getGroup(group).mode = gameType.getName();
-            dirty = true;
+            this.markGroupDirty(group);
+            this.fireGroupChanged(group, false);
         }
     }
 
@@ -284,6 +1198,14 @@ public final class UserDataRepo {
         return Optional.empty();
     }
 
+    /**
+     * @return the value the group itself sets for the node, ignoring parents.
+     */
+    @Nullable
+    public Boolean getOwnPermission(String group, String node) {
+        return getGroup(group).permissions.get(node);
+    }
+
     public Set<String> getPermissionNodes(String group) {
         if (hasGroup(group)) {
             return Collections.unmodifiableSet(getGroup(group).permissions.keySet());
@@ -291,17 +1213,30 @@ public final class UserDataRepo {
         return Collections.emptySet();
     }
 
-    public ListMultimap<String, IFormattableTextComponent> getPermissionDetails(String groupId) {
-        ListMultimap<String, IFormattableTextComponent> result = LinkedListMultimap.create();
+    /**
+     * @return for every node set by the group or its ancestors, the groups
+     * setting it and their values, in resolution order. Only the first one
+     * of each node takes effect.
+     */
+    public ListMultimap<String, Map.Entry<String, Boolean>> getPermissionOrigins(String groupId) {
+        ListMultimap<String, Map.Entry<String, Boolean>> result = LinkedListMultimap.create();
         for (Map.Entry<String, UserGroup> entry : getGroupDeep(groupId).entrySet()) {
             String childGroupId = entry.getKey();
             for (Map.Entry<String, Boolean> permEntry : entry.getValue().permissions.entrySet()) {
-                String perm = permEntry.getKey();
-                IFormattableTextComponent item = new TranslationTextComponent(
-                        "command.simple_perms.info.permission_item", permEntry.getValue(), childGroupId);
-                result.put(perm, result.containsKey(perm) ? item.withStyle(TextFormatting.STRIKETHROUGH) : item);
+                result.put(permEntry.getKey(), new AbstractMap.SimpleImmutableEntry<>(childGroupId, permEntry.getValue()));
             }
         }
         return result;
     }
+
+    public ListMultimap<String, IFormattableTextComponent> getPermissionDetails(String groupId) {
+        ListMultimap<String, IFormattableTextComponent> result = LinkedListMultimap.create();
+        for (Map.Entry<String, Map.Entry<String, Boolean>> entry : getPermissionOrigins(groupId).entries()) {
+            String perm = entry.getKey();
+            IFormattableTextComponent item = new TranslationTextComponent(
+                    "command.simple_perms.info.permission_item", entry.getValue().getValue(), entry.getValue().getKey());
+            result.put(perm, result.containsKey(perm) ? item.withStyle(TextFormatting.STRIKETHROUGH) : item);
+        }
+        return result;
+    }
 }
\ No newline at end of file
@@ -20,7 +20,7 @@ public final class UserGroup {
     /**
      * Prefix that will append before player's display name.
      */
-    public ITextComponent prefix = new StringTextComponent("");
+    public volatile ITextComponent prefix = new StringTextComponent("");
 
     /**
      * Name of the gamemode that first-time player of this group will be switched to. 
@@ -32,7 +32,7 @@ public final class UserGroup {
      * <li>{@code survival}</li>
      * </ul>
      */
-    public String mode = "survival";
+    public volatile String mode = "survival";
 
     /**
      * A set of other group names to look up if a particular permission values.
@@ -51,5 +51,12 @@ public final class UserGroup {
      * </ul>
      */
     public Map<String, Boolean> permissions = Collections.emptyMap();
-    
+
+    /**
+     * Typed values, such as quotas or cooldowns, that other mods may read
+     * for players of this group. Like permissions, unset keys default to
+     * parents.
+     */
+    public Map<String, MetaValue> meta = Collections.emptyMap();
+
 }
\ No newline at end of file
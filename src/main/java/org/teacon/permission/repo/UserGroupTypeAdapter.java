@@ -9,6 +9,7 @@ import java.util.concurrent.ConcurrentHashMap;
 public class UserGroupTypeAdapter implements JsonSerializer<UserGroup>, JsonDeserializer<UserGroup> {
     private final Gson gson = new GsonBuilder()
             .registerTypeAdapter(ITextComponent.class, new ITextComponent.Serializer())
+            .registerTypeAdapter(MetaValue.class, new MetaValueTypeAdapter())
             .create();
 
     @Override
@@ -21,6 +22,7 @@ public class UserGroupTypeAdapter implements JsonSerializer<UserGroup>, JsonDese
         ret.permissions = new ConcurrentHashMap<>(group.permissions);
         ret.parents = ConcurrentHashMap.newKeySet();
         ret.parents.addAll(group.parents);
+        ret.meta = group.meta == null ? new ConcurrentHashMap<>() : new ConcurrentHashMap<>(group.meta);
         return ret;
     }
 
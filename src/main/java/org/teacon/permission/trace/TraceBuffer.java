@@ -0,0 +1,90 @@
+package org.teacon.permission.trace;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Bounded, lock-free ring of check records for many producers and a single
+ * consumer. Producers never block: when the ring is full, the record is
+ * dropped and counted.
+ */
+@ThreadSafe
+final class TraceBuffer {
+
+    private final int mask;
+
+    private final int[] nodeIds;
+    private final long[] playerHashes;
+    private final byte[] flags;
+    private final long[] timestamps;
+
+    /**
+     * {@code sequence + 1} of the record a slot holds once it is published.
+     */
+    private final AtomicLongArray published;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile long head;
+
+    private final LongAdder dropped = new LongAdder();
+
+    TraceBuffer(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.nodeIds = new int[size];
+        this.playerHashes = new long[size];
+        this.flags = new byte[size];
+        this.timestamps = new long[size];
+        this.published = new AtomicLongArray(size);
+    }
+
+    boolean offer(int nodeId, long playerHash, int flags, long timestamp) {
+        long sequence;
+        do {
+            sequence = this.tail.get();
+            if (sequence - this.head > this.mask) {
+                this.dropped.increment();
+                return false;
+            }
+        } while (!this.tail.compareAndSet(sequence, sequence + 1));
+        final int index = (int) sequence & this.mask;
+        this.nodeIds[index] = nodeId;
+        this.playerHashes[index] = playerHash;
+        this.flags[index] = (byte) flags;
+        this.timestamps[index] = timestamp;
+        this.published.lazySet(index, sequence + 1);
+        return true;
+    }
+
+    /**
+     * Hand every published record to the consumer, in order. Must only be
+     * called from the single consumer thread.
+     *
+     * @return number of records drained
+     */
+    int drain(Consumer consumer) throws IOException {
+        long sequence = this.head;
+        int count = 0;
+        for (int index = (int) sequence & this.mask; this.published.get(index) == sequence + 1; index = (int) sequence & this.mask) {
+            consumer.accept(this.nodeIds[index], this.playerHashes[index], this.flags[index], this.timestamps[index]);
+            ++sequence;
+            ++count;
+            this.head = sequence;
+        }
+        return count;
+    }
+
+    long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    @FunctionalInterface
+    interface Consumer {
+        void accept(int nodeId, long playerHash, int flags, long timestamp) throws IOException;
+    }
+}
@@ -0,0 +1,70 @@
+package org.teacon.permission.trace;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Binary layout of permission check traces.
+ * <p>
+ * A file starts with {@link #MAGIC} and {@link #VERSION}, followed by
+ * records, each introduced by a tag byte:
+ * <ul>
+ * <li>{@link #TAG_NODE}: varint node id, UTF node name. Precedes the first
+ * check of that node within the file.</li>
+ * <li>{@link #TAG_CHECK}: varint node id, 8 byte hashed UUID, flag byte
+ * ({@link #FLAG_RESULT}, {@link #FLAG_FROM_REPO}), varint nanoseconds
+ * since the previous check of the file.</li>
+ * </ul>
+ * Every file is self-contained, so rotated files can be read on their own.
+ */
+public final class TraceFormat {
+
+    public static final int MAGIC = 0x53505452; // "SPTR"
+    public static final int VERSION = 1;
+
+    public static final byte TAG_NODE = 1;
+    public static final byte TAG_CHECK = 2;
+
+    public static final int FLAG_RESULT = 1;
+    public static final int FLAG_FROM_REPO = 2;
+
+    private TraceFormat() {
+    }
+
+    /**
+     * Stable, unsalted 64-bit hash of a player id. Traces never contain
+     * the id itself, but a replayer holding the same repo can map hashes
+     * back to the players it knows.
+     */
+    public static long hashUuid(UUID id) {
+        return mix(id.getMostSignificantBits() * 31 + mix(id.getLeastSignificantBits()));
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,90 @@
+package org.teacon.permission.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sequential reader of a single trace file written by {@link TraceRecorder}.
+ */
+public final class TraceReader implements Closeable {
+
+    private final DataInputStream in;
+
+    private final Map<Integer, String> nodeNames = new HashMap<>();
+
+    private String node;
+    private long playerHash;
+    private int flags;
+    private long timestamp;
+
+    public TraceReader(Path file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        if (this.in.readInt() != TraceFormat.MAGIC || this.in.readInt() != TraceFormat.VERSION) {
+            this.in.close();
+            throw new IOException("Not a permission check trace: " + file);
+        }
+    }
+
+    /**
+     * Advance to the next check.
+     *
+     * @return false at the end of the file
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            final int tag;
+            try {
+                tag = this.in.readByte();
+            } catch (EOFException e) {
+                return false;
+            }
+            final int nodeId = (int) TraceFormat.readVarLong(this.in);
+            if (tag == TraceFormat.TAG_NODE) {
+                this.nodeNames.put(nodeId, this.in.readUTF());
+            } else if (tag == TraceFormat.TAG_CHECK) {
+                this.node = this.nodeNames.get(nodeId);
+                this.playerHash = this.in.readLong();
+                this.flags = this.in.readByte();
+                this.timestamp += TraceFormat.readVarLong(this.in);
+                return true;
+            } else {
+                throw new IOException("Unknown record tag " + tag);
+            }
+        }
+    }
+
+    public String getNode() {
+        return this.node;
+    }
+
+    public long getPlayerHash() {
+        return this.playerHash;
+    }
+
+    public boolean getResult() {
+        return (this.flags & TraceFormat.FLAG_RESULT) != 0;
+    }
+
+    public boolean isFromRepo() {
+        return (this.flags & TraceFormat.FLAG_FROM_REPO) != 0;
+    }
+
+    /**
+     * @return nanoseconds since the start of the file.
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
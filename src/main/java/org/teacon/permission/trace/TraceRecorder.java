@@ -0,0 +1,165 @@
+package org.teacon.permission.trace;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Records permission checks into rotating trace files, see
+ * {@link TraceFormat}. Checking threads only append to a lock-free buffer;
+ * a background thread does all encoding and I/O.
+ */
+@ThreadSafe
+public final class TraceRecorder {
+
+    private static final Logger LOGGER = LogManager.getLogger("SimplePerms");
+
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Path directory;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    private final TraceBuffer buffer;
+
+    private final Map<String, Integer> nodeIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> nodeNames = new ConcurrentHashMap<>();
+    private final AtomicInteger nextNodeId = new AtomicInteger();
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    // Only touched by the flusher thread
+    private DataOutputStream out;
+    private final BitSet nodesInFile = new BitSet();
+    private long lastTimestamp;
+    private int fileIndex;
+
+    public TraceRecorder(Path directory, long maxFileSize, int maxFiles, int bufferSize) {
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.buffer = new TraceBuffer(bufferSize);
+        this.flusher = new Thread(this::flushLoop, "SimplePerms-Trace-Flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public void record(String node, UUID player, boolean result, boolean fromRepo) {
+        Integer nodeId = this.nodeIds.get(node);
+        if (nodeId == null) {
+            nodeId = this.nodeIds.computeIfAbsent(node, k -> {
+                final int id = this.nextNodeId.getAndIncrement();
+                this.nodeNames.put(id, k);
+                return id;
+            });
+        }
+        this.buffer.offer(nodeId, TraceFormat.hashUuid(player),
+                (result ? TraceFormat.FLAG_RESULT : 0) | (fromRepo ? TraceFormat.FLAG_FROM_REPO : 0), System.nanoTime());
+    }
+
+    public long getDroppedCount() {
+        return this.buffer.getDroppedCount();
+    }
+
+    /**
+     * Stop recording, write out what is buffered and close the current file.
+     */
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.flusher);
+        try {
+            this.flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            Files.createDirectories(this.directory);
+            while (this.running) {
+                if (this.buffer.drain(this::write) > 0) {
+                    this.out.flush();
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+            }
+            this.buffer.drain(this::write);
+        } catch (IOException e) {
+            LOGGER.error("Failed to write permission check trace, recording stopped", e);
+        } finally {
+            this.closeFile();
+        }
+    }
+
+    private void write(int nodeId, long playerHash, int flags, long timestamp) throws IOException {
+        if (this.out == null || this.out.size() >= this.maxFileSize) {
+            this.rotate(timestamp);
+        }
+        if (!this.nodesInFile.get(nodeId)) {
+            this.nodesInFile.set(nodeId);
+            this.out.writeByte(TraceFormat.TAG_NODE);
+            TraceFormat.writeVarLong(this.out, nodeId);
+            this.out.writeUTF(this.nodeNames.get(nodeId));
+        }
+        this.out.writeByte(TraceFormat.TAG_CHECK);
+        TraceFormat.writeVarLong(this.out, nodeId);
+        this.out.writeLong(playerHash);
+        this.out.writeByte(flags);
+        TraceFormat.writeVarLong(this.out, Math.max(0L, timestamp - this.lastTimestamp));
+        this.lastTimestamp = timestamp;
+    }
+
+    private void rotate(long timestamp) throws IOException {
+        this.closeFile();
+        final String name = "trace-" + LocalDateTime.now().format(FILE_TIMESTAMP) + String.format("-%04d.bin", this.fileIndex++);
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.directory.resolve(name)), 1 << 16));
+        this.out.writeInt(TraceFormat.MAGIC);
+        this.out.writeInt(TraceFormat.VERSION);
+        this.nodesInFile.clear();
+        this.lastTimestamp = timestamp;
+        this.deleteOldFiles();
+    }
+
+    private void deleteOldFiles() throws IOException {
+        final List<Path> files;
+        try (Stream<Path> stream = Files.list(this.directory)) {
+            files = stream.filter(p -> p.getFileName().toString().endsWith(".bin")).sorted().collect(Collectors.toList());
+        }
+        for (int i = 0; i < files.size() - this.maxFiles; ++i) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    private void closeFile() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close permission check trace", e);
+            }
+            this.out = null;
+        }
+    }
+}
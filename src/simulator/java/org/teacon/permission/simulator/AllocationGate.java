@@ -0,0 +1,128 @@
+package org.teacon.permission.simulator;
+
+import org.teacon.permission.repo.UserDataRepo;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Fails if a steady-state {@link UserDataRepo#hasPermission} allocates,
+ * measured with the allocation counter of the checking thread. Each case
+ * is warmed up first so that the JIT has settled, then checked many times;
+ * a few bytes per case are tolerated for the counter itself.
+ * <p>
+ * A check right after a membership change has to derive a new snapshot,
+ * which allocates; that case is held to a budget per check that does not
+ * depend on the number of players in the repo, of which there are many.
+ */
+public final class AllocationGate {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int WARMUP = 200_000;
+    private static final int CHECKS = 1_000_000;
+    private static final long TOLERANCE = 1024L;
+
+    private static final int PLAYERS = 100_000;
+    private static final long CHANGE_BUDGET = 8192L;
+
+    /**
+     * Written after every check, so that the JIT cannot drop the calls.
+     */
+    private static volatile Boolean sink;
+
+    private AllocationGate() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final SimulatedHost host = new SimulatedHost();
+        final UserDataRepo repo = new UserDataRepo(host, Files.createTempDirectory("simpleperms-alloc"));
+
+        final int depth = 20;
+        for (int i = 0; i < depth; ++i) {
+            repo.createGroup("level" + i);
+            repo.grant("level" + i, "gate.level" + i, true);
+            if (i > 0) {
+                repo.addParent("level" + i, "level" + (i - 1));
+            }
+        }
+        repo.createGroup("fallback");
+        repo.grant("fallback", "gate.fallback", true);
+        repo.createGroup("admin");
+        repo.grant("admin", "gate.admin", true);
+        repo.setFallbackGroup(0, "fallback");
+        repo.setFallbackGroup(4, "admin");
+
+        final UUID assigned = new UUID(0L, 1L);
+        final UUID unassigned = new UUID(0L, 2L);
+        final UUID unassignedOp = new UUID(0L, 3L);
+        final UUID orphan = new UUID(0L, 4L);
+        final UUID several = new UUID(0L, 5L);
+        repo.assignUserToGroup(assigned, "level" + (depth - 1));
+        repo.assignUserToGroup(several, "level" + (depth / 2));
+        repo.addToGroup(several, "admin", 10);
+        repo.addToGroup(several, "fallback", -10);
+        host.opLevels.put(unassignedOp, 4);
+        repo.assignUserToGroup(orphan, "deleted-group");
+        // Enough players that anything copying all of them per change blows the budget
+        for (int i = 0; i < PLAYERS; ++i) {
+            final UUID id = new UUID(1L, i);
+            repo.assignUserToGroup(id, "level" + (i % depth));
+            if (i % 10 == 0) {
+                repo.addToGroup(id, "admin", i % 3);
+            }
+        }
+        final UUID mover = new UUID(0L, 6L);
+        repo.addToGroup(mover, "admin", 1);
+        final boolean[] flip = new boolean[1];
+
+        final Map<String, Runnable> cases = new LinkedHashMap<>();
+        final String ownNode = "gate.level" + (depth - 1);
+        final String deepNode = "gate.level0";
+        cases.put("assigned, own node", () -> sink = repo.hasPermission(assigned, ownNode));
+        cases.put("assigned, node " + depth + " levels up", () -> sink = repo.hasPermission(assigned, deepNode));
+        cases.put("unassigned, fallback group", () -> sink = repo.hasPermission(unassigned, "gate.fallback"));
+        cases.put("unassigned op, op level fallback", () -> sink = repo.hasPermission(unassignedOp, "gate.admin"));
+        cases.put("assigned, node set nowhere", () -> sink = repo.hasPermission(assigned, "gate.unset"));
+        cases.put("assigned to a missing group", () -> sink = repo.hasPermission(orphan, "gate.fallback"));
+        cases.put("in several groups, lowest priority", () -> sink = repo.hasPermission(several, "gate.fallback"));
+        cases.put("configured check", () -> sink = repo.isConfigured("gate.unset"));
+        cases.put("check right after a membership change", () -> {
+            flip[0] = !flip[0];
+            repo.assignUserToGroup(mover, flip[0] ? "level3" : "level4");
+            sink = repo.hasPermission(mover, "gate.level4");
+        });
+        final Map<String, Long> budgets = new HashMap<>();
+        budgets.put("check right after a membership change", CHANGE_BUDGET);
+
+        // Build the snapshot once, as the first check after a change would
+        repo.snapshot();
+
+        int failures = 0;
+        final long threadId = Thread.currentThread().getId();
+        for (Map.Entry<String, Runnable> entry : cases.entrySet()) {
+            final Runnable check = entry.getValue();
+            for (int i = 0; i < WARMUP; ++i) {
+                check.run();
+            }
+            final long before = THREADS.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < CHECKS; ++i) {
+                check.run();
+            }
+            final long allocated = THREADS.getThreadAllocatedBytes(threadId) - before;
+            final boolean ok = allocated <= TOLERANCE + budgets.getOrDefault(entry.getKey(), 0L) * CHECKS;
+            System.out.printf("[%s] %s: %d bytes over %d checks (%.3f bytes/check)%n",
+                    ok ? "ok" : "FAIL", entry.getKey(), allocated, CHECKS, (double) allocated / CHECKS);
+            if (!ok) {
+                ++failures;
+            }
+        }
+        host.mainThread.shutdownNow();
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
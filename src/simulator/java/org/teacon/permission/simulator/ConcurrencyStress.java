@@ -0,0 +1,348 @@
+package org.teacon.permission.simulator;
+
+import com.mojang.authlib.GameProfile;
+import org.teacon.permission.repo.CompiledGroup;
+import org.teacon.permission.repo.RepoSnapshot;
+import org.teacon.permission.repo.UserDataRepo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * Hammers a {@link UserDataRepo} from many threads at once and checks
+ * invariants a race would break:
+ * <ul>
+ * <li>players of a group no thread modifies always see its nodes, also
+ * while the repo is being reloaded;</li>
+ * <li>a thread sees its own change in the next snapshot, unless a reload
+ * ran meanwhile, which may drop it;</li>
+ * <li>snapshot versions never go backwards;</li>
+ * <li>no operation throws;</li>
+ * <li>the node index agrees with the groups and the members index with
+ * the assignments, although writers race reloads, and changes to a group
+ * reach every online player inheriting from it;</li>
+ * <li>what is saved at the end loads back into the same state.</li>
+ * </ul>
+ * Exits with status 1 on the first round with violations, so that it can
+ * gate the build. Arguments are {@code --key=value} pairs, see
+ * {@link #option}.
+ */
+public final class ConcurrencyStress {
+
+    private static final String STABLE_GROUP = "stable";
+    private static final String STABLE_BASE_GROUP = "stable-base";
+    private static final String STABLE_NODE = "stress.stable";
+    private static final String INHERITED_NODE = "stress.inherited";
+    private static final String UNSET_NODE = "stress.never";
+
+    private final Map<String, String> options;
+
+    private final Queue<String> violations = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder operations = new LongAdder();
+
+    private ConcurrencyStress(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        System.exit(new ConcurrencyStress(options).run());
+    }
+
+    private int option(String key, int defaultValue) {
+        return Integer.parseInt(this.options.getOrDefault(key, Integer.toString(defaultValue)));
+    }
+
+    private int run() throws Exception {
+        final int rounds = this.option("rounds", 5);
+        for (int round = 1; round <= rounds; ++round) {
+            this.round(round);
+            if (!this.violations.isEmpty()) {
+                System.out.printf("[round %d] %d violation(s)%n", round, this.violations.size());
+                this.violations.stream().distinct().limit(20).forEach(v -> System.out.println("  " + v));
+                return 1;
+            }
+        }
+        System.out.printf("No violations in %d round(s), %d operations%n", rounds, this.operations.sum());
+        return 0;
+    }
+
+    private void round(int round) throws Exception {
+        final Path root = Files.createTempDirectory("simpleperms-stress");
+        final SimulatedHost host = new SimulatedHost();
+        final UserDataRepo repo = new UserDataRepo(host, root);
+        final int writerCount = this.option("writers", 4);
+        final int nodesPerWriter = this.option("nodes", 64);
+
+        repo.createGroup(STABLE_BASE_GROUP);
+        repo.grant(STABLE_BASE_GROUP, INHERITED_NODE, true);
+        repo.createGroup(STABLE_GROUP);
+        repo.addParent(STABLE_GROUP, STABLE_BASE_GROUP);
+        repo.grant(STABLE_GROUP, STABLE_NODE, true);
+        repo.setFallbackGroup(0, STABLE_BASE_GROUP);
+        final List<UUID> stablePlayers = new ArrayList<>();
+        final List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < 256; ++i) {
+            final UUID id = new UUID(round, i);
+            stablePlayers.add(id);
+            repo.assignUserToGroup(id, STABLE_GROUP);
+            players.add(new UUID(round, 1000 + i));
+        }
+        for (int i = 0; i < writerCount; ++i) {
+            repo.createGroup("writer" + i);
+            // Otherwise logins would move players of writer groups to the fallback group
+            repo.addParent("writer" + i, STABLE_BASE_GROUP);
+        }
+        // Reloads must find the stable groups on disk
+        repo.save();
+
+        // Odd while loading; writers only check their own changes if no reload overlapped them
+        final AtomicLong loads = new AtomicLong();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < this.option("checkers", 8); ++i) {
+            threads.add(this.worker("Stress-Checker-" + i, running, () -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                long lastVersion = Long.MIN_VALUE;
+                while (running.get()) {
+                    final UUID stable = stablePlayers.get(random.nextInt(stablePlayers.size()));
+                    this.expect(Boolean.TRUE, repo.hasPermission(stable, STABLE_NODE), "stable node of " + stable);
+                    this.expect(Boolean.TRUE, repo.hasPermission(stable, INHERITED_NODE), "inherited node of " + stable);
+                    this.expect(null, repo.hasPermission(players.get(random.nextInt(players.size())), UNSET_NODE), "unset node");
+                    this.expect(true, repo.isConfigured(STABLE_NODE), "configured stable node");
+                    this.expect(STABLE_GROUP, repo.lookup(stable), "group of " + stable);
+                    final RepoSnapshot snapshot = repo.snapshot();
+                    if (snapshot.getVersion() < lastVersion) {
+                        this.violations.add("Snapshot version went from " + lastVersion + " back to " + snapshot.getVersion());
+                    }
+                    lastVersion = snapshot.getVersion();
+                    this.expect(Boolean.TRUE, snapshot.resolve(stable, 0).hasPermission(INHERITED_NODE), "snapshot of " + stable);
+                    this.operations.add(6);
+                }
+            }));
+        }
+        for (int i = 0; i < writerCount; ++i) {
+            final String group = "writer" + i;
+            threads.add(this.worker("Stress-Writer-" + i, running, () -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    final String node = "stress." + group + ".node" + random.nextInt(nodesPerWriter);
+                    final long before = loads.get();
+                    if (random.nextInt(3) == 0) {
+                        repo.revoke(group, node);
+                        final Boolean value = repo.snapshot().getGroup(group).hasPermission(node);
+                        if (isQuiet(loads, before)) {
+                            this.expect(null, value, "revoked " + node);
+                        }
+                    } else {
+                        final boolean value = random.nextBoolean();
+                        repo.grant(group, node, value);
+                        final Boolean granted = repo.snapshot().getGroup(group).hasPermission(node);
+                        final boolean configured = repo.isConfigured(node);
+                        if (isQuiet(loads, before)) {
+                            this.expect(value, granted, "granted " + node);
+                            this.expect(true, configured, "configured " + node);
+                        }
+                    }
+                    this.operations.add(2);
+                }
+            }));
+        }
+        threads.add(this.worker("Stress-Assigner", running, () -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (running.get()) {
+                final UUID id = players.get(random.nextInt(players.size()));
+                final String group = random.nextInt(4) == 0 ? "" : "writer" + random.nextInt(writerCount);
+                final String additional = "writer" + random.nextInt(writerCount);
+                long before = loads.get();
+                final boolean add = random.nextBoolean();
+                if (add) {
+                    repo.addToGroup(id, additional, random.nextInt(5) - 2);
+                } else {
+                    repo.removeFromGroup(id, additional);
+                }
+                // Logins may change the primary group meanwhile, so the snapshot is only checked against itself
+                final RepoSnapshot snapshot = repo.snapshot();
+                final boolean in = snapshot.getAdditionalGroups().getOrDefault(id, Collections.emptyMap()).containsKey(additional);
+                if (isQuiet(loads, before)) {
+                    this.expect(add, in, "additional group of " + id);
+                }
+                this.expect(in || additional.equals(snapshot.lookup(id, 0)), snapshot.resolve(id, 0).getChain().contains(additional),
+                        "combined groups of " + id);
+                before = loads.get();
+                repo.assignUserToGroup(id, group);
+                final String lookup = repo.lookup(id);
+                final String resolved = repo.resolve(id).getName();
+                if (isQuiet(loads, before)) {
+                    this.expect(group.isEmpty() ? STABLE_BASE_GROUP : group, lookup, "assigned group of " + id);
+                    this.expect(group.isEmpty() ? STABLE_BASE_GROUP : group, resolved, "resolved group of " + id);
+                }
+                this.operations.add(3);
+            }
+        }));
+        threads.add(this.worker("Stress-Logins", running, () -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (running.get()) {
+                final UUID id = players.get(random.nextInt(players.size()));
+                host.online.add(id);
+                repo.playerLoggedIn(id);
+                repo.initForSpawn(new GameProfile(id, "stress"), group -> {
+                });
+                repo.playerLoggedOut(id);
+                host.online.remove(id);
+                this.operations.increment();
+            }
+        }));
+        threads.add(this.worker("Stress-Saver", running, () -> {
+            while (running.get()) {
+                repo.save();
+                this.operations.increment();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }));
+        threads.add(this.worker("Stress-Loader", running, () -> {
+            while (running.get()) {
+                loads.incrementAndGet();
+                try {
+                    repo.load();
+                } finally {
+                    loads.incrementAndGet();
+                }
+                this.operations.increment();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+            }
+        }));
+
+        threads.forEach(Thread::start);
+        TimeUnit.MILLISECONDS.sleep(this.option("millis", 2000));
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Reloads finish on the main thread
+        host.mainThread.submit(() -> {
+        }).get();
+
+        this.checkConfiguredNodes(repo, writerCount, nodesPerWriter);
+        this.checkMembers(repo, host, players);
+        repo.save();
+        final UserDataRepo reloaded = new UserDataRepo(new SimulatedHost(), root);
+        this.compare(repo.snapshot(), reloaded.snapshot());
+        host.mainThread.shutdownNow();
+        System.out.printf("[round %d] %d operations so far, %d violation(s)%n", round, this.operations.sum(), this.violations.size());
+    }
+
+    /**
+     * @param before the count of load starts and ends read before a change
+     * @return true if no reload overlapped the change and the checks after it.
+     */
+    private static boolean isQuiet(AtomicLong loads, long before) {
+        return before % 2 == 0 && loads.get() == before;
+    }
+
+    /**
+     * The index of groups setting each node must have stayed in line with
+     * the groups themselves.
+     */
+    private void checkConfiguredNodes(UserDataRepo repo, int writerCount, int nodesPerWriter) {
+        final Map<String, Map<String, Boolean>> index = new HashMap<>();
+        for (String group : repo.groups()) {
+            for (String node : repo.getPermissionNodes(group)) {
+                index.computeIfAbsent(node, k -> new HashMap<>()).put(group, repo.getOwnPermission(group, node));
+            }
+        }
+        for (int i = 0; i < writerCount; ++i) {
+            for (int j = 0; j < nodesPerWriter; ++j) {
+                final String node = "stress.writer" + i + ".node" + j;
+                this.expect(index.containsKey(node), repo.isConfigured(node), "configured " + node + " after the run");
+                this.expect(index.getOrDefault(node, new HashMap<>()), repo.getNodeSetters(node), "groups setting " + node + " after the run");
+            }
+        }
+    }
+
+    /**
+     * Every assignment must be found from its group, and nothing else.
+     */
+    private void checkMembers(UserDataRepo repo, SimulatedHost host, List<UUID> players) {
+        final Map<String, Set<UUID>> expected = new HashMap<>();
+        repo.snapshot().getUsers().forEach((id, group) -> expected.computeIfAbsent(group, k -> new HashSet<>()).add(id));
+        repo.snapshot().getAdditionalGroups().forEach((id, groups) -> groups.keySet()
+                .forEach(group -> expected.computeIfAbsent(group, k -> new HashSet<>()).add(id)));
+        for (String group : repo.groups()) {
+            this.expect(expected.getOrDefault(group, new HashSet<>()), repo.reverseLookup(group).collect(Collectors.toSet()),
+                    "members of " + group + " after the run");
+        }
+        // Every group inherits from the base group, so a change to it affects everyone
+        for (UUID id : players) {
+            host.online.add(id);
+            repo.playerLoggedIn(id);
+        }
+        this.expect(true, repo.affectedBy(STABLE_BASE_GROUP).containsAll(players), "online players affected by the base group");
+        for (UUID id : players) {
+            repo.playerLoggedOut(id);
+            host.online.remove(id);
+        }
+    }
+
+    private void compare(RepoSnapshot saved, RepoSnapshot loaded) {
+        this.expect(saved.getUsers(), loaded.getUsers(), "users after reload");
+        this.expect(saved.getAdditionalGroups(), loaded.getAdditionalGroups(), "additional groups after reload");
+        this.expect(saved.getGroups().keySet(), loaded.getGroups().keySet(), "groups after reload");
+        for (CompiledGroup group : saved.getGroups().values()) {
+            final CompiledGroup other = loaded.getGroup(group.getName());
+            this.expect(group.getChain(), other.getChain(), "parents of " + group.getName() + " after reload");
+            this.expect(group.getPermissions(), other.getPermissions(), "nodes of " + group.getName() + " after reload");
+        }
+        for (UUID id : saved.getAdditionalGroups().keySet()) {
+            this.expect(saved.resolve(id, 0).getPermissions(), loaded.resolve(id, 0).getPermissions(), "combined nodes of " + id + " after reload");
+        }
+    }
+
+    private void expect(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            this.violations.add(what + ": expected " + expected + " but got " + actual);
+        }
+    }
+
+    private Thread worker(String name, AtomicBoolean running, Task task) {
+        return new Thread(() -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                running.set(false);
+                this.violations.add(name + " threw " + e);
+                e.printStackTrace();
+            }
+        }, name);
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,60 @@
+package org.teacon.permission.simulator;
+
+import java.util.Arrays;
+
+/**
+ * Single-threaded reservoir of latency samples. Once full, it keeps every
+ * n-th sample only, so the memory stays fixed no matter how long a run is.
+ */
+final class LatencyRecorder {
+
+    private final long[] samples;
+
+    private int size;
+
+    private int stride = 1;
+
+    private long seen;
+
+    LatencyRecorder(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    void record(long nanos) {
+        if (this.seen++ % this.stride != 0) {
+            return;
+        }
+        if (this.size == this.samples.length) {
+            // Halve the resolution: keep every other sample and sample half as often
+            for (int i = 0; i < this.size / 2; ++i) {
+                this.samples[i] = this.samples[i * 2];
+            }
+            this.size /= 2;
+            this.stride *= 2;
+        }
+        this.samples[this.size++] = nanos;
+    }
+
+    static long[] merge(Iterable<LatencyRecorder> recorders) {
+        int total = 0;
+        for (LatencyRecorder recorder : recorders) {
+            total += recorder.size;
+        }
+        final long[] merged = new long[total];
+        int offset = 0;
+        for (LatencyRecorder recorder : recorders) {
+            System.arraycopy(recorder.samples, 0, merged, offset, recorder.size);
+            offset += recorder.size;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
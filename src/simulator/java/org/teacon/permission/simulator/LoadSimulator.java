@@ -0,0 +1,247 @@
+package org.teacon.permission.simulator;
+
+import com.mojang.authlib.GameProfile;
+import org.teacon.permission.repo.RepoSnapshot;
+import org.teacon.permission.repo.UserDataRepo;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link UserDataRepo} with synthetic players, groups and traffic,
+ * then reports throughput, latency percentiles and allocation.
+ * <p>
+ * Like on a server, logins, logouts and changes run on the simulated main
+ * thread, the only one allowed to look up op levels. Checker threads
+ * resolve against snapshots instead, with op levels fetched on the main
+ * thread before the workload starts; ops do not change while it runs.
+ * <p>
+ * Arguments are {@code --key=value} pairs, see {@link #option}.
+ */
+public final class LoadSimulator {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Map<String, String> options;
+
+    private final SimulatedHost host = new SimulatedHost();
+
+    private final List<UUID> players = new ArrayList<>();
+    private final List<String> groups = new ArrayList<>();
+    private final List<String> nodes = new ArrayList<>();
+
+    private UserDataRepo repo;
+
+    private LoadSimulator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        new LoadSimulator(options).run();
+        System.exit(0);
+    }
+
+    private int option(String key, int defaultValue) {
+        return Integer.parseInt(this.options.getOrDefault(key, Integer.toString(defaultValue)));
+    }
+
+    private void run() throws Exception {
+        final Path root = Files.createTempDirectory("simpleperms-sim");
+        System.out.printf("Repo folder: %s%n", root);
+
+        this.phase("construct", () -> this.repo = new UserDataRepo(this.host, root));
+        this.phase("populate", this::populate);
+        this.phase("save", this.repo::save);
+        this.phase("load", this.repo::load);
+        this.phase("snapshot", this.repo::snapshot);
+        this.workload();
+        this.phase("final save", this.repo::save);
+        this.host.mainThread.shutdownNow();
+    }
+
+    private void populate() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int groupCount = this.option("groups", 50);
+        final int depth = this.option("depth", 5);
+        final int nodeCount = this.option("nodes", 2000);
+        final int grantsPerGroup = this.option("grants", 40);
+        for (int i = 0; i < nodeCount; ++i) {
+            this.nodes.add("sim.mod" + (i % 20) + ".node" + i);
+        }
+        for (int i = 0; i < groupCount; ++i) {
+            final String group = "group" + i;
+            this.groups.add(group);
+            this.repo.createGroup(group);
+            // Groups form chains of the configured depth
+            if (i % depth != 0) {
+                this.repo.addParent(group, "group" + (i - 1));
+            }
+            for (int j = 0; j < grantsPerGroup; ++j) {
+                this.repo.grant(group, this.nodes.get(random.nextInt(nodeCount)), random.nextBoolean());
+            }
+        }
+        this.repo.setFallbackGroup(0, this.groups.get(0));
+        this.repo.setFallbackGroup(4, this.groups.get(groupCount - 1));
+        final int playerCount = this.option("players", 5000);
+        for (int i = 0; i < playerCount; ++i) {
+            final UUID id = new UUID(random.nextLong(), random.nextLong());
+            this.players.add(id);
+            if (random.nextInt(10) == 0) {
+                this.host.opLevels.put(id, random.nextInt(5));
+            }
+            // Some players stay unassigned and resolve to a fallback group
+            if (random.nextInt(4) != 0) {
+                this.repo.assignUserToGroup(id, this.groups.get(random.nextInt(groupCount)));
+            }
+        }
+    }
+
+    private void workload() throws Exception {
+        final int seconds = this.option("seconds", 10);
+        final int checkers = this.option("checkers", 4);
+        final int loginsPerSecond = this.option("logins", 50);
+        final int mutationsPerSecond = this.option("mutations", 5);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder checks = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+        final LongAdder logins = new LongAdder();
+        final LongAdder mutations = new LongAdder();
+        final List<LatencyRecorder> recorders = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        final int[] opLevels = this.host.mainThread.submit(() -> {
+            final int[] levels = new int[this.players.size()];
+            for (int i = 0; i < levels.length; ++i) {
+                levels[i] = this.host.getOpLevel(this.players.get(i));
+            }
+            return levels;
+        }).get();
+
+        for (int i = 0; i < checkers; ++i) {
+            final LatencyRecorder recorder = new LatencyRecorder(1 << 20);
+            recorders.add(recorder);
+            threads.add(new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final long threadId = Thread.currentThread().getId();
+                final long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+                long count = 0;
+                while (running.get()) {
+                    final int player = random.nextInt(this.players.size());
+                    final UUID id = this.players.get(player);
+                    final String node = this.nodes.get(random.nextInt(this.nodes.size()));
+                    final long start = System.nanoTime();
+                    final RepoSnapshot snapshot = this.repo.snapshot();
+                    snapshot.hasPermission(id, node, snapshot.needsOpLevel(id) ? opLevels[player] : 0);
+                    recorder.record(System.nanoTime() - start);
+                    ++count;
+                }
+                // Recording itself does not allocate, so this is the cost of the checks
+                allocated.add(THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore);
+                checks.add(count);
+            }, "Simulated-Checker-" + i));
+        }
+        threads.add(this.paced("Simulated-Logins", loginsPerSecond, running, () -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final UUID id = this.players.get(random.nextInt(this.players.size()));
+            this.host.mainThread.execute(() -> {
+                if (this.host.online.remove(id)) {
+                    this.repo.playerLoggedOut(id);
+                    return;
+                }
+                this.host.online.add(id);
+                this.repo.playerLoggedIn(id);
+                this.repo.initForSpawn(new GameProfile(id, "sim"), group -> {
+                });
+                logins.increment();
+            });
+        }));
+        threads.add(this.paced("Simulated-Admin", mutationsPerSecond, running, () -> {
+            this.host.mainThread.execute(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final String group = this.groups.get(random.nextInt(this.groups.size()));
+                switch (random.nextInt(3)) {
+                    case 0:
+                        this.repo.grant(group, this.nodes.get(random.nextInt(this.nodes.size())), random.nextBoolean());
+                        break;
+                    case 1:
+                        this.repo.revoke(group, this.nodes.get(random.nextInt(this.nodes.size())));
+                        break;
+                    default:
+                        this.repo.assignUserToGroup(this.players.get(random.nextInt(this.players.size())), group);
+                        break;
+                }
+                mutations.increment();
+            });
+        }));
+
+        final long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+
+        final long[] sorted = LatencyRecorder.merge(recorders);
+        System.out.printf("[workload] %.1f s, %d checker thread(s)%n", elapsed, checkers);
+        System.out.printf("  checks: %d (%.0f/s), logins: %d, mutations: %d, display name refreshes: %d%n",
+                checks.sum(), checks.sum() / elapsed, logins.sum(), mutations.sum(), this.host.displayNameRefreshes.sum());
+        System.out.printf("  latency ns: p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                LatencyRecorder.percentile(sorted, 50), LatencyRecorder.percentile(sorted, 90),
+                LatencyRecorder.percentile(sorted, 99), LatencyRecorder.percentile(sorted, 99.9),
+                sorted.length == 0 ? 0L : sorted[sorted.length - 1]);
+        System.out.printf("  allocation: %.1f bytes/check%n", checks.sum() == 0 ? 0.0 : (double) allocated.sum() / checks.sum());
+    }
+
+    private Thread paced(String name, int perSecond, AtomicBoolean running, Runnable action) {
+        return new Thread(() -> {
+            if (perSecond <= 0) {
+                return;
+            }
+            final long interval = TimeUnit.SECONDS.toNanos(1) / perSecond;
+            long next = System.nanoTime();
+            while (running.get()) {
+                action.run();
+                next += interval;
+                final long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }, name);
+    }
+
+    private void phase(String name, Phase phase) throws Exception {
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        phase.run();
+        final long took = System.nanoTime() - start;
+        final long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.printf("[%s] %.3f ms, %d KiB allocated%n", name, took / 1e6, allocated / 1024);
+    }
+
+    @FunctionalInterface
+    private interface Phase {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,61 @@
+package org.teacon.permission.simulator;
+
+import com.mojang.authlib.GameProfile;
+import org.teacon.permission.repo.RepoHost;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stand-in for a server: a set of online players, a table of op levels and
+ * a single "main" thread.
+ */
+final class SimulatedHost implements RepoHost {
+
+    final Set<UUID> online = ConcurrentHashMap.newKeySet();
+
+    final Map<UUID, Integer> opLevels = new ConcurrentHashMap<>();
+
+    final LongAdder displayNameRefreshes = new LongAdder();
+
+    final ExecutorService mainThread = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "Simulated-Server-Thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public Collection<UUID> getOnlinePlayers() {
+        return Collections.unmodifiableSet(this.online);
+    }
+
+    @Override
+    public void refreshDisplayName(UUID id) {
+        if (this.online.contains(id)) {
+            this.displayNameRefreshes.increment();
+        }
+    }
+
+    @Override
+    public int getOpLevel(UUID id) {
+        return this.opLevels.getOrDefault(id, 0);
+    }
+
+    @Override
+    public int getOpLevel(GameProfile profile) {
+        return this.getOpLevel(profile.getId());
+    }
+
+    @Override
+    public Executor getMainExecutor() {
+        return this.mainThread;
+    }
+}
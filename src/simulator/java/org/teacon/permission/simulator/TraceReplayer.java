@@ -0,0 +1,206 @@
+package org.teacon.permission.simulator;
+
+import org.teacon.permission.repo.RepoSnapshot;
+import org.teacon.permission.repo.UserDataRepo;
+import org.teacon.permission.trace.TraceFormat;
+import org.teacon.permission.trace.TraceReader;
+import org.teacon.permission.trace.TraceRecorder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Feeds recorded permission checks into a headless repo and reports how
+ * long each resolution strategy takes, and whether it still agrees with
+ * what was recorded.
+ * <p>
+ * Arguments: {@code --repo=<simpleperms folder> --traces=<file or folder>
+ * [--strategy=repo|snapshot|both]}. The repo folder is copied first and
+ * never modified.
+ * <p>
+ * With {@code --self-check} instead, a repo is built and saved, checks
+ * against it are recorded, and the replay fails unless it loads every
+ * group of the saved repo and agrees with every recorded check.
+ */
+public final class TraceReplayer {
+
+    private final SimulatedHost host = new SimulatedHost();
+
+    private final Map<Long, UUID> players = new HashMap<>();
+
+    private UserDataRepo repo;
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        if (Arrays.asList(args).contains("--self-check")) {
+            System.exit(selfCheck() ? 0 : 1);
+        }
+        if (!options.containsKey("repo") || !options.containsKey("traces")) {
+            System.err.println("Usage: TraceReplayer --repo=<simpleperms folder> --traces=<file or folder> [--strategy=repo|snapshot|both]");
+            System.err.println("       TraceReplayer --self-check");
+            System.exit(2);
+        }
+        final TraceReplayer replayer = new TraceReplayer();
+        replayer.open(Paths.get(options.get("repo")));
+        final List<Path> traces = listTraces(Paths.get(options.get("traces")));
+        final String strategy = options.getOrDefault("strategy", "both");
+        if (!"snapshot".equals(strategy)) {
+            replayer.replay("repo", traces, false);
+        }
+        if (!"repo".equals(strategy)) {
+            replayer.replay("snapshot", traces, true);
+        }
+        replayer.host.mainThread.shutdownNow();
+        System.exit(0);
+    }
+
+    private static boolean selfCheck() throws Exception {
+        final Path root = Files.createTempDirectory("simpleperms-replay-check");
+        final Path repoPath = root.resolve("simpleperms");
+        final SimulatedHost host = new SimulatedHost();
+        final UserDataRepo repo = new UserDataRepo(host, repoPath);
+        final int groups = 16;
+        for (int i = 0; i < groups; ++i) {
+            // Names that are not valid file names as they are
+            final String group = "group/" + i;
+            repo.createGroup(group);
+            repo.grant(group, "check.own" + i, i % 3 != 0);
+            if (i > 0) {
+                repo.addParent(group, "group/" + (i - 1));
+            }
+        }
+        final List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < 256; ++i) {
+            final UUID id = new UUID(2L, i);
+            repo.assignUserToGroup(id, "group/" + (i % groups));
+            players.add(id);
+        }
+        repo.save();
+        host.mainThread.shutdownNow();
+
+        final Path traces = root.resolve("traces");
+        final TraceRecorder recorder = new TraceRecorder(traces, Long.MAX_VALUE, 1, 1 << 16);
+        for (UUID id : players) {
+            for (int i = 0; i < groups; ++i) {
+                final Boolean result = repo.hasPermission(id, "check.own" + i);
+                recorder.record("check.own" + i, id, Boolean.TRUE.equals(result), result != null);
+            }
+        }
+        recorder.close();
+        if (recorder.getDroppedCount() > 0) {
+            System.err.printf("[self-check] %d recorded check(s) dropped%n", recorder.getDroppedCount());
+            return false;
+        }
+
+        final TraceReplayer replayer = new TraceReplayer();
+        replayer.open(repoPath);
+        final List<Path> files = listTraces(traces);
+        long mismatches = replayer.replay("repo", files, false);
+        mismatches += replayer.replay("snapshot", files, true);
+        replayer.host.mainThread.shutdownNow();
+        final int loaded = replayer.repo.groups().size();
+        if (loaded != repo.groups().size()) {
+            System.err.printf("[self-check] %d of %d group(s) loaded%n", loaded, repo.groups().size());
+            return false;
+        }
+        if (mismatches > 0) {
+            System.err.printf("[self-check] %d check(s) differ from the recording%n", mismatches);
+            return false;
+        }
+        System.out.println("[self-check] ok");
+        return true;
+    }
+
+    private static List<Path> listTraces(Path path) throws Exception {
+        if (!Files.isDirectory(path)) {
+            return Collections.singletonList(path);
+        }
+        try (Stream<Path> stream = Files.list(path)) {
+            return stream.filter(p -> p.getFileName().toString().endsWith(".bin")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private void open(Path source) throws Exception {
+        final Path copy = Files.createTempDirectory("simpleperms-replay");
+        // Groups live in a folder of their own, next to the traces, which are not needed
+        try (Stream<Path> stream = Files.walk(source)) {
+            for (Path path : stream.filter(p -> !p.equals(source)).collect(Collectors.toList())) {
+                final Path target = copy.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                } else if (!path.getFileName().toString().endsWith(".bin")) {
+                    Files.copy(path, target);
+                }
+            }
+        }
+        final long start = System.nanoTime();
+        this.repo = new UserDataRepo(this.host, copy);
+        System.out.printf("[load] %.3f ms%n", (System.nanoTime() - start) / 1e6);
+        for (UUID id : this.repo.snapshot().getUsers().keySet()) {
+            this.players.put(TraceFormat.hashUuid(id), id);
+        }
+    }
+
+    private UUID player(long hash) {
+        // Players unknown to the repo resolve to a fallback group, any id will do
+        return this.players.computeIfAbsent(hash, h -> new UUID(h, ~h));
+    }
+
+    /**
+     * @return the number of checks whose result differs from the recording.
+     */
+    private long replay(String name, List<Path> traces, boolean useSnapshot) throws Exception {
+        final LatencyRecorder recorder = new LatencyRecorder(1 << 22);
+        long checks = 0L;
+        long mismatches = 0L;
+        long fromRepo = 0L;
+        for (Path trace : traces) {
+            try (TraceReader reader = new TraceReader(trace)) {
+                while (reader.next()) {
+                    final UUID id = this.player(reader.getPlayerHash());
+                    final String node = reader.getNode();
+                    final long start = System.nanoTime();
+                    final Boolean result;
+                    if (useSnapshot) {
+                        final RepoSnapshot snapshot = this.repo.snapshot();
+                        result = snapshot.hasPermission(id, node, this.host.getOpLevel(id));
+                    } else {
+                        result = this.repo.isConfigured(node) ? this.repo.hasPermission(id, node) : null;
+                    }
+                    recorder.record(System.nanoTime() - start);
+                    ++checks;
+                    if (reader.isFromRepo()) {
+                        ++fromRepo;
+                    }
+                    // The repo now either answers differently, or answers where it used to fall through
+                    if (reader.isFromRepo() ? !Boolean.valueOf(reader.getResult()).equals(result) : result != null) {
+                        ++mismatches;
+                    }
+                }
+            }
+        }
+        final long[] sorted = LatencyRecorder.merge(Collections.singletonList(recorder));
+        System.out.printf("[%s] %d checks from %d file(s), %d answered by the repo when recorded, %d differ now%n",
+                name, checks, traces.size(), fromRepo, mismatches);
+        System.out.printf("  latency ns: p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                LatencyRecorder.percentile(sorted, 50), LatencyRecorder.percentile(sorted, 90),
+                LatencyRecorder.percentile(sorted, 99), LatencyRecorder.percentile(sorted, 99.9),
+                sorted.length == 0 ? 0L : sorted[sorted.length - 1]);
+        return mismatches;
+    }
+}